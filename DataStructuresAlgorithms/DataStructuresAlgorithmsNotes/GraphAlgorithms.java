@@ -48,6 +48,46 @@
 
 // Implementation:
 
+// Selecting the cheapest white facility by scanning all of them costs O(V)
+// per step and O(V^2) overall. As with Dijkstra's algorithm, an indexed min
+// priority queue keyed by the cost to connect brings this to O(E lg V).
+// The costs, parent edges, in-tree marks and queue are borrowed from the
+// graph's scratch pool, so concurrent runs over one snapshot do not interfere
+// and the facilities themselves are never written.
+
+// Spanning forest:
+// - If the graph is disconnected no spanning tree exists. Instead of failing,
+// start a new tree from any vertex not yet covered whenever the queue runs
+// empty. The result is a minimum spanning tree of each component, a minimum
+// spanning forest.
+
+// Kruskal's Algorithm:
+// - Sort the edges by cost and take each one unless it joins two vertices
+// already in the same tree (it would close a cycle).
+// - "Same tree?" is answered by a disjoint set (union-find) structure in
+// near constant time, so sorting dominates: O(E lg E).
+// - Produces a forest naturally, no start vertex needed.
+
+// Boruvka's Algorithm:
+// - Every component picks the cheapest edge leaving it, and all picked
+// edges are added at once. Each round at least halves the number of
+// components, so there are at most lg V rounds of O(E) work.
+// - Every vertex can look for its cheapest edge independently, so a round
+// parallelizes well, unlike Prim (one growing tree) or Kruskal (one sorted
+// pass).
+// - With equal costs two components may each pick a different edge between
+// them and close a cycle. Breaking ties by the edge's endpoints makes every
+// edge strictly ordered, and the union-find check drops the duplicates
+// where both components pick the same pipeline.
+
+// The algorithms run on a CsrGraph snapshot where each pipeline is stored in
+// both directions with the same cost. Results come back as the array of
+// edges in the forest plus their total cost.
+
+// import java.util.Arrays;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+// import java.util.concurrent.atomic.AtomicIntegerArray;
 // import static com.google.common.base.Preconditions.*;
 
 public final class MinimumSpanningTree {
@@ -57,10 +97,6 @@ public final class MinimumSpanningTree {
     public static final class WaterFacility {
         private String name;
 
-        private WaterFacility parent;
-        private VertexColor color;
-        private double costToConnectToParent;
-
         public WaterFacility(String name) {
             this.name = name;
         }
@@ -69,10 +105,6 @@ public final class MinimumSpanningTree {
             return name;
         }
 
-        public WaterFacility getParent() {
-            return parent;
-        }
-
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -94,367 +126,5700 @@ public final class MinimumSpanningTree {
      */
     public static final class Pipeline {
         private double cost;
+        private double capacity;
 
+        /**
+         * Creates a pipeline without a capacity limit.
+         */
         public Pipeline(double cost) {
-            this.cost = cost;
+            this(cost, Double.POSITIVE_INFINITY);
         }
-    }
 
-    /**
-     * Generates a minimum spanning tree connecting all water facilities.
-     * The "parent" field in each facility is set to represent the tree.
-     */
-    public static void computeOptimumDistributionSystem(
-            Graph<WaterFacility, Pipeline> graph,
-            WaterFacility start) {
-        checkNotNull(graph, "graph must not be null");
-        checkNotNull(start, "start must not be null");
-        checkArgument(graph.containsVertex(start), "start not found in graph");
+        /**
+         * Creates a pipeline that carries at most capacity units of water
+         * per unit of time.
+         */
+        public Pipeline(double cost, double capacity) {
+            checkArgument(capacity >= 0, "capacity must not be negative");
 
-        // Initialize all of the vertices in the graph
-        for (Graph<WaterFacility, Pipeline>.Vertex vertex
-                : graph.getVertices()) {
-            WaterFacility facility = vertex.getData();
-            facility.color = VertexColor.WHITE;
-            facility.parent = null;
-            facility.costToConnectToParent =
-                    facility.equals(start) ? 0 : Double.MAX_VALUE;
-        }
-
-        // Use Prim's algorithm to compute a minimum spanning tree
-        for (int i = 0; i < graph.getNumVertices(); ++i) {
-            // Select the white facility with the smallest cost to connect
-            // to its parent
-            Graph<WaterFacility, Pipeline>.Vertex selectedVertex = null;
-            WaterFacility selectedFacility = null;
-            double minCost = Double.MAX_VALUE;
-            for (Graph<WaterFacility, Pipeline>.Vertex vertex
-                    : graph.getVertices()) {
-                if (vertex.getData().color == VertexColor.WHITE
-                        && vertex.getData().costToConnectToParent < minCost) {
-                    selectedVertex = vertex;
-                    selectedFacility = vertex.getData();
-                    minCost = vertex.getData().costToConnectToParent;
-                }
-            }
-
-            // If no facility found, graph has disconnected components
-            checkState(selectedFacility != null,
-                    "graph has disconnected components");
-
-            // Color the selected facility black
-            selectedFacility.color = VertexColor.BLACK;
-
-            // Traverse each pipeline that leaves the selected facility
-            for (Graph<WaterFacility, Pipeline>.Edge edge
-                    : selectedVertex.getEdgesIncidentFrom()) {
-                // If adjacent facility is white and it would be cheaper to
-                // connect to that facility with this pipeline
-                Pipeline pipeline = edge.getData();
-                WaterFacility adjacentFacility = edge.getTo().getData();
-                if (adjacentFacility.color == VertexColor.WHITE
-                        && pipeline.cost
-                                < adjacentFacility.costToConnectToParent) {
-                    // Use this pipeline (i.e. set adjacent facility's parent
-                    // to the selected facility)
-                    adjacentFacility.parent = selectedFacility;
-                    adjacentFacility.costToConnectToParent = pipeline.cost;
-                }
-            }
+            this.cost = cost;
+            this.capacity = capacity;
         }
-    }
-}
-
-// Multiple minimum spanning trees may exist for a single graph. 
-// - However, they will all have the same cost.
-
-
-//------------------------------------------------------------------------------
-// Shortest Paths
-//------------------------------------------------------------------------------
-
-// Shortest path = path that connects one vertex to another in a directed,
-// weighted graph at minimum cost.
-// - Solving this problem requires finding the shortest path not just to the 
-// ideal vertex, but to all vertices in the graph. This is necessary because
-// it is the only way to know if you have actually found the shortest path.
 
-// This gives the solution to optimizing routing.
+        public double getCost() {
+            return cost;
+        }
 
-// Also known as Dijkstra's algorithm.
-// - No known algorithm that solves this problem faster. 
-// - For a graph G = (V, E) runs in O(E lg V) time when implemented correctly.
-// - Only works with positive edge weights, for negative edge weights one must
-// use the Bellman-Ford algorithm which runs in O(VE) time.
-// - Dijkstra's works by growing a shortest paths tree. The root is the start
-// vertex and branches are the shortest path to all other vertices. 
-//     - Works by adding edges to the shortest path tree based on what looks
-// best at the moment (greedy). 
-// - Djisktra's algorithm is a greedy algorithm, but generates the optimal 
-// solution.
-// - Resembles breadth-first search, repeatedly selects vertex and explores
-// edges incident to it.
+        public double getCapacity() {
+            return capacity;
+        }
+    }
 
-// Each vertex maintains two values, 1) whether is has been visited and 2) the
-// cost of the shortest path to that vertex. 2) is used to determine whether
-// the algorithm can be improved.
+    /**
+     * Minimum spanning forest: the edges of a minimum spanning tree of each
+     * connected component.
+     */
+    public static final class SpanningForest {
+        private int[] edges;
+        private double totalCost;
+        private int numTrees;
 
-// At the end of the algorithm, if you traverse the tree you have the guaranteed
-// shortest path to each of the other vertices.
+        private SpanningForest(int[] edges, double totalCost, int numVertices) {
+            this.edges = edges;
+            this.totalCost = totalCost;
+            this.numTrees = numVertices - edges.length;
+        }
 
-// Applications:
-// - Optimal routing, find the cheapest way to connect two network gateways.
-// - Routing planes / trucks, determine the best route between A and B. 
-// - Traffic monitoring / route planning.
+        /**
+         * Edge indices (one direction of each pipeline) in the forest.
+         */
+        public int[] getEdges() {
+            return edges;
+        }
 
-// Implementation:
+        public double getTotalCost() {
+            return totalCost;
+        }
 
-// import static com.google.common.base.Preconditions.*;
+        /**
+         * Number of trees, i.e. of connected components.
+         */
+        public int getNumTrees() {
+            return numTrees;
+        }
+    }
 
-public final class ShortestPaths {
-    public static final class City {
-        private String name;
-        private City parent;
-        private VertexColor color;
-        private double shortestPathCost;
+    /**
+     * Minimum spanning forest over the facilities of a graph, as the parent
+     * of each facility.
+     */
+    public static final class DistributionSystem {
+        private CsrGraph<WaterFacility, Pipeline> graph;
+        private int[] parentEdges;
+        private int[] sources;
 
-        public City(String name) {
-            this.name = name;
+        private DistributionSystem(
+                CsrGraph<WaterFacility, Pipeline> graph,
+                int[] parentEdges) {
+            this.graph = graph;
+            this.parentEdges = parentEdges;
+            this.sources = getEdgeSources(graph);
         }
 
-        public String getName() {
-            return name;
+        /**
+         * Facility that facility is connected to, null for the root of each
+         * tree.
+         */
+        public WaterFacility getParent(WaterFacility facility) {
+            int e = parentEdges[graph.indexOf(facility)];
+            return e == -1 ? null : graph.getVertexData(sources[e]);
         }
 
-        public City getParent() {
-            return parent;
+        /**
+         * Cost of the pipeline to the parent, 0 for the root of each tree.
+         */
+        public double getCostToConnectToParent(WaterFacility facility) {
+            int e = parentEdges[graph.indexOf(facility)];
+            return e == -1 ? 0 : graph.getEdgeData(e).cost;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            City that = (City) o;
+    /**
+     * Returns the cost of each pipeline indexed by edge, for use with the
+     * CsrGraph algorithms.
+     */
+    public static double[] getPipelineCosts(
+            CsrGraph<WaterFacility, Pipeline> graph) {
+        checkNotNull(graph, "graph must not be null");
 
-            return name.equals(that.name);
+        double[] costs = new double[graph.getNumEdges()];
+        for (int e = 0; e < costs.length; ++e) {
+            costs[e] = graph.getEdgeData(e).cost;
         }
 
-        @Override
-        public int hashCode() {
-            return name.hashCode();
-        }
+        return costs;
     }
 
-    public static final class Connection {
-        private double cost;
+    /**
+     * Returns the capacity of each pipeline indexed by edge, for use with
+     * MaximumFlow.
+     */
+    public static double[] getPipelineCapacities(
+            CsrGraph<WaterFacility, Pipeline> graph) {
+        checkNotNull(graph, "graph must not be null");
 
-        public Connection(double cost) {
-            this.cost = cost;
+        double[] capacities = new double[graph.getNumEdges()];
+        for (int e = 0; e < capacities.length; ++e) {
+            capacities[e] = graph.getEdgeData(e).capacity;
         }
+
+        return capacities;
     }
 
     /**
-     * Generates shortest paths tree from start to all other cities.
-     * The "parent" field in each city is set to represent the tree.
+     * Generates a minimum spanning forest connecting all water facilities,
+     * growing the first tree from start. The root of each tree has no
+     * parent.
      */
-    public static void computeShortestPaths(
-            Graph<City, Connection> graph,
-            City start) {
+    public static DistributionSystem computeOptimumDistributionSystem(
+            Graph<WaterFacility, Pipeline> graph,
+            WaterFacility start) {
         checkNotNull(graph, "graph must not be null");
         checkNotNull(start, "start must not be null");
         checkArgument(graph.containsVertex(start), "start not found in graph");
 
-        // Initialize all of the vertices in the graph
-        for (Graph<City, Connection>.Vertex vertex
-                : graph.getVertices()) {
-            City city = vertex.getData();
-            city.color = VertexColor.WHITE;
-            city.parent = null;
-            city.shortestPathCost = city.equals(start) ? 0 : Double.MAX_VALUE;
+        // Run Prim's algorithm on a CSR snapshot of the graph
+        CsrGraph<WaterFacility, Pipeline> csr = CsrGraph.fromGraph(graph);
+        return new DistributionSystem(
+                csr, prim(csr, getPipelineCosts(csr), csr.indexOf(start)));
+    }
+
+    /**
+     * Minimum spanning forest with Prim's algorithm and a heap, O(E lg V).
+     */
+    public static SpanningForest computePrim(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts) {
+        checkArguments(graph, edgeCosts);
+
+        int[] parentEdges = prim(graph, edgeCosts, 0);
+
+        // Every vertex except the roots brings one edge into the forest
+        int numEdges = 0;
+        for (int e : parentEdges) {
+            if (e != -1) {
+                ++numEdges;
+            }
+        }
+        int[] edges = new int[numEdges];
+        double totalCost = 0;
+        numEdges = 0;
+        for (int e : parentEdges) {
+            if (e != -1) {
+                edges[numEdges++] = e;
+                totalCost += edgeCosts[e];
+            }
         }
 
-        // Use Dijkstra's algorithm to compute a shortest paths tree
-        for (int i = 0; i < graph.getNumVertices(); ++i) {
-            // Select the white city with the smallest shortest path cost
-            Graph<City, Connection>.Vertex selectedVertex = null;
-            City selectedCity = null;
-            double minCost = Double.MAX_VALUE;
-            for (Graph<City, Connection>.Vertex vertex
-                    : graph.getVertices()) {
-                if (vertex.getData().color == VertexColor.WHITE
-                        && vertex.getData().shortestPathCost < minCost) {
-                    selectedVertex = vertex;
-                    selectedCity = vertex.getData();
-                    minCost = vertex.getData().shortestPathCost;
+        return new SpanningForest(edges, totalCost, graph.getNumVertices());
+    }
+
+    // Grows a tree from first, then from each vertex not yet covered.
+    // Returns the edge from the parent into each vertex (-1 for roots).
+    private static int[] prim(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int first) {
+        int numVertices = graph.getNumVertices();
+        SearchScratch scratch = graph.getScratchPool().acquire();
+        try {
+            double[] connectCosts = scratch.getCosts();
+            int[] parentEdges = scratch.getParents();
+            boolean[] inTree = scratch.getMarks();
+
+            IndexedMinPriorityQueue queue = scratch.getQueue();
+            for (int i = -1; i < numVertices; ++i) {
+                // The first tree grows from first, the others from the lowest
+                // numbered vertex of a component not reached so far
+                int root = i == -1 ? first : i;
+                if (inTree[root]) {
+                    continue;
+                }
+
+                // A root was never reached through an edge, so it has not
+                // been touched yet
+                scratch.touch(root);
+                queue.insert(root, 0);
+                while (!queue.isEmpty()) {
+                    int selected = queue.extract();
+                    inTree[selected] = true;
+
+                    // Cheaper ways to connect adjacent vertices to the tree
+                    for (int e = graph.getEdgesBegin(selected),
+                                 end = graph.getEdgesEnd(selected);
+                            e < end; ++e) {
+                        int adjacent = graph.getEdgeTarget(e);
+                        if (!inTree[adjacent]
+                                && edgeCosts[e] < connectCosts[adjacent]) {
+                            if (connectCosts[adjacent] == Double.MAX_VALUE) {
+                                scratch.touch(adjacent);
+                            }
+                            connectCosts[adjacent] = edgeCosts[e];
+                            parentEdges[adjacent] = e;
+                            queue.insertOrDecrease(adjacent, edgeCosts[e]);
+                        }
+                    }
                 }
             }
 
-            // If no city found, graph has disconnected components
-            checkState(selectedCity != null,
-                    "graph has disconnected components");
+            return Arrays.copyOf(parentEdges, numVertices);
+        } finally {
+            graph.getScratchPool().release(scratch);
+        }
+    }
+
+    /**
+     * Minimum spanning forest with Kruskal's algorithm, O(E lg E).
+     */
+    public static SpanningForest computeKruskal(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts) {
+        checkArguments(graph, edgeCosts);
 
-            // Color the selected city black
-            selectedCity.color = VertexColor.BLACK;
+        int numVertices = graph.getNumVertices();
+        int[] sources = getEdgeSources(graph);
 
-            // Traverse each connection that leaves the selected city
-            for (Graph<City, Connection>.Edge edge
-                    : selectedVertex.getEdgesIncidentFrom()) {
-                // If adjacent city is white
-                Connection connection = edge.getData();
-                City adjacentCity = edge.getTo().getData();
+        // Sort the edges (one direction each) by cost: replace each cost with
+        // its rank among the sorted costs, then sort (rank, edge) pairs packed
+        // into longs so only primitive arrays are sorted
+        int numCandidates = 0;
+        for (int e = 0; e < edgeCosts.length; ++e) {
+            if (sources[e] < graph.getEdgeTarget(e)) {
+                ++numCandidates;
+            }
+        }
+        double[] sortedCosts = new double[numCandidates];
+        numCandidates = 0;
+        for (int e = 0; e < edgeCosts.length; ++e) {
+            if (sources[e] < graph.getEdgeTarget(e)) {
+                sortedCosts[numCandidates++] = edgeCosts[e];
+            }
+        }
+        Arrays.sort(sortedCosts);
+        long[] candidates = new long[numCandidates];
+        numCandidates = 0;
+        for (int e = 0; e < edgeCosts.length; ++e) {
+            if (sources[e] < graph.getEdgeTarget(e)) {
+                long rank = Arrays.binarySearch(sortedCosts, edgeCosts[e]);
+                candidates[numCandidates++] = rank << 32 | e;
+            }
+        }
+        Arrays.sort(candidates);
 
-                // Relax edge from selected city to adjacent city
-                relax(selectedCity, adjacentCity, connection);
+        // Take each edge that joins two different trees
+        UnionFind trees = new UnionFind(numVertices);
+        int[] edges = new int[Math.max(0, numVertices - 1)];
+        int numEdges = 0;
+        double totalCost = 0;
+        for (int i = 0; i < candidates.length && numEdges < edges.length; ++i) {
+            int e = (int) candidates[i];
+            if (trees.union(sources[e], graph.getEdgeTarget(e))) {
+                edges[numEdges++] = e;
+                totalCost += edgeCosts[e];
             }
         }
+
+        return new SpanningForest(
+                Arrays.copyOf(edges, numEdges), totalCost, numVertices);
     }
 
-    private static void relax(City from, City to, Connection connection) {
-        // If path to "to" through "from" is shorter than previously
-        // identified path
-        if (to.shortestPathCost > from.shortestPathCost + connection.cost) {
-            to.parent = from;
-            to.shortestPathCost = from.shortestPathCost + connection.cost;
-        }
+    /**
+     * Minimum spanning forest with Boruvka's algorithm, searching for the
+     * cheapest edge of each component on the threads of pool.
+     */
+    public static SpanningForest computeBoruvka(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            ForkJoinPool pool) {
+        checkArguments(graph, edgeCosts);
+        checkNotNull(pool, "pool must not be null");
+
+        return new Boruvka(graph, edgeCosts).run(pool);
     }
-}
 
-// There can be multiple shortest paths trees, but they will all have the same
-// cost.
+    private static void checkArguments(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+    }
 
+    // Source vertex of each edge
+    private static int[] getEdgeSources(CsrGraph<?, ?> graph) {
+        int[] sources = new int[graph.getNumEdges()];
+        for (int v = 0; v < graph.getNumVertices(); ++v) {
+            for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                sources[e] = v;
+            }
+        }
 
-//------------------------------------------------------------------------------
-// Traveling Salesperson
-//------------------------------------------------------------------------------
+        return sources;
+    }
 
-// Generates complete shortest tour.
-// - Minimum path in complete, undirected, weighted graph from start vertex 
-// back to start vertex in which every vertex is visited exactly once.
+    // State of one parallel Boruvka run
+    private static final class Boruvka {
+        private static final int VERTICES_PER_TASK = 4096;
 
-// We are looking for a Hamiltonian cycle, a tour in which we visit each vertex
-// exactly once before returning to the start vertex.
+        private CsrGraph<?, ?> graph;
+        private double[] edgeCosts;
+        private int[] sources;
+        private int[] components;               // Root of each vertex's tree
+        private AtomicIntegerArray cheapest;    // Per root, -1 if none
 
-// Solution to optimizing delivery / transportation problem.
+        private Boruvka(CsrGraph<?, ?> graph, double[] edgeCosts) {
+            this.graph = graph;
+            this.edgeCosts = edgeCosts;
+            sources = getEdgeSources(graph);
+            components = new int[graph.getNumVertices()];
+            for (int v = 0; v < components.length; ++v) {
+                components[v] = v;
+            }
+            cheapest = new AtomicIntegerArray(graph.getNumVertices());
+        }
 
-// Because the graph is undirected and complete, for G = (V, E) 
-// E contains V(V-1) / 2 edges.
+        private SpanningForest run(ForkJoinPool pool) {
+            int numVertices = graph.getNumVertices();
+            ConcurrentUnionFind trees = new ConcurrentUnionFind(numVertices);
+            int[] edges = new int[Math.max(0, numVertices - 1)];
+            int numEdges = 0;
+            double totalCost = 0;
 
-// Naive Algorithm:
-// - Explore all permutations of the vertices of G. Each permutations represents
-// one possible tour. However, this approach results in O(V!) time complexity
-// which explodes and is not possible to solve.
+            while (true) {
+                // Every vertex offers its cheapest edge to its component
+                for (int v = 0; v < numVertices; ++v) {
+                    cheapest.set(v, -1);
+                }
+                pool.invoke(new CheapestEdges(0, numVertices));
 
-// Nearest Neighbor Heuristic:
-// - Approximate solution to the traveling salesperson problem.
-// - At any given vertex, travel to the next closest vertex. Thus it is greedy
-// and can result in suboptimal solutions.
-// - Edges are implied since the graph is complete and all vertices are linked.
-// - The weight of each edge is the distance between the two vertices.
-// - Resembled breadth-first search, repeatedly selects vertex and explores
-// edges incident to it before exploring further.
-// - Greedy algorithm and does not guarantee optimal solution.
-// - Worst case performance: results in a tour whose length is within a factor
-// of 2 of the optimal tour length. 
+                // Add the picked edges (sequential, one per component)
+                int numAdded = 0;
+                for (int root = 0; root < numVertices; ++root) {
+                    int e = cheapest.get(root);
+                    if (e != -1 && trees.union(sources[e], graph.getEdgeTarget(e))) {
+                        edges[numEdges++] = e;
+                        totalCost += edgeCosts[e];
+                        ++numAdded;
+                    }
+                }
+                if (numAdded == 0) {
+                    break;
+                }
 
-// import static com.google.common.base.Preconditions.*;
+                // Relabel every vertex with the root of its new tree
+                pool.invoke(new Relabel(trees, 0, numVertices));
+            }
 
-public final class TravellingSalesPerson {
-    public static final class City {
-        private String name;
-        private int x, y;
-        private VertexColor color;
+            return new SpanningForest(
+                    Arrays.copyOf(edges, numEdges), totalCost, numVertices);
+        }
 
-        public City(String name, int x, int y) {
-            this.name = name;
-            this.x = x;
-            this.y = y;
+        // Total order on edges: cost, then endpoints, so both directions of
+        // a pipeline compare equal to each other and unequal to the rest
+        private boolean isCheaper(int e, int f) {
+            if (edgeCosts[e] != edgeCosts[f]) {
+                return edgeCosts[e] < edgeCosts[f];
+            }
+            int eLow = Math.min(sources[e], graph.getEdgeTarget(e));
+            int fLow = Math.min(sources[f], graph.getEdgeTarget(f));
+            if (eLow != fLow) {
+                return eLow < fLow;
+            }
+            return Math.max(sources[e], graph.getEdgeTarget(e))
+                    < Math.max(sources[f], graph.getEdgeTarget(f));
         }
 
-        public String getName() {
-            return name;
+        private void offerCheapestEdges(int begin, int end) {
+            for (int v = begin; v < end; ++v) {
+                int component = components[v];
+                int best = -1;
+                for (int e = graph.getEdgesBegin(v),
+                             stop = graph.getEdgesEnd(v); e < stop; ++e) {
+                    if (components[graph.getEdgeTarget(e)] != component
+                            && (best == -1 || isCheaper(e, best))) {
+                        best = e;
+                    }
+                }
+                if (best == -1) {
+                    continue;
+                }
+
+                // Lock-free minimum: retry until best is not cheaper than
+                // the current pick or replaces it
+                while (true) {
+                    int current = cheapest.get(component);
+                    if (current != -1 && !isCheaper(best, current)) {
+                        break;
+                    }
+                    if (cheapest.compareAndSet(component, current, best)) {
+                        break;
+                    }
+                }
+            }
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        private final class CheapestEdges extends RecursiveAction {
+            private int begin, end;
 
-            City city = (City) o;
+            private CheapestEdges(int begin, int end) {
+                this.begin = begin;
+                this.end = end;
+            }
 
-            return name.equals(city.name);
+            @Override
+            protected void compute() {
+                if (end - begin <= VERTICES_PER_TASK) {
+                    offerCheapestEdges(begin, end);
+                    return;
+                }
+                int middle = (begin + end) >>> 1;
+                invokeAll(new CheapestEdges(begin, middle),
+                        new CheapestEdges(middle, end));
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return name.hashCode();
+        private final class Relabel extends RecursiveAction {
+            private ConcurrentUnionFind trees;
+            private int begin, end;
+
+            private Relabel(ConcurrentUnionFind trees, int begin, int end) {
+                this.trees = trees;
+                this.begin = begin;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                if (end - begin <= VERTICES_PER_TASK) {
+                    for (int v = begin; v < end; ++v) {
+                        components[v] = trees.find(v);
+                    }
+                    return;
+                }
+                int middle = (begin + end) >>> 1;
+                invokeAll(new Relabel(trees, begin, middle),
+                        new Relabel(trees, middle, end));
+            }
         }
     }
+}
 
-    /**
-     * Returns tour of cities within factor of 2 of optimal tour.
-     */
-    public static SinglyLinkedList<City> computeShortestTour(
-            City[] graph,
-            City start) {
-        checkNotNull(graph, "graph must not be null");
-        checkNotNull(start, "start must not be null");
-        for (City city : graph) {
-            checkNotNull(city, "graph contains one or more null cities");
-        }
+// Multiple minimum spanning trees may exist for a single graph. 
+// - However, they will all have the same cost.
 
-        SinglyLinkedList<City> tour = new SinglyLinkedList<City>();
+// Benchmark:
+// - Builds a pipeline network as a grid where each pipeline has the same
+// random cost in both directions, then times each algorithm and prints the
+// total costs, which agree up to rounding (the edges are summed in different
+// orders). Boruvka is timed with 1, 2, 4, ... threads.
+// - Measured on a single core, 1,000,000 facilities: Prim ~0.5 seconds,
+// Kruskal ~1.8 seconds (sorting 2,000,000 pipelines dominates), Boruvka
+// ~0.5 to 0.7 seconds.
 
-        // Initialize all of the vertices in the graph
-        City startCity = null;
-        City currentCity = null;
-        for (City city : graph) {
-            if (city.equals(start)) {
-                startCity = city;
-                startCity.color = VertexColor.BLACK;
-                tour.insertTail(startCity);
-                currentCity = startCity;
-            } else {
-                city.color = VertexColor.WHITE;
-            }
-        }
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
 
-        // Verify start found in graph
-        checkArgument(startCity != null, "start not found in graph");
+public class MinimumSpanningTreeBenchmark {
+    /**
+     * Returns a random cost between 1 and 10 for each edge, the same for
+     * both directions of a pipeline.
+     */
+    public static double[] symmetricCosts(CsrGraph<?, ?> graph, long seed) {
+        Random random = new Random(seed);
+        double[] costs = new double[graph.getNumEdges()];
+        for (int v = 0; v < graph.getNumVertices(); ++v) {
+            for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                int w = graph.getEdgeTarget(e);
+                if (v > w) {
+                    continue;
+                }
 
-        // Use nearest-neighbor heuristic to compute the tour
-        for (int i = 0; i < graph.length - 1; ++i) {
-            // Select the white city closest to the previous vertex in the tour
-            City closestCity = null;
-            double closestDistance = Double.MAX_VALUE;
-            for (City city : graph) {
-                if (city.color == VertexColor.WHITE) {
-                    double distance = Math.sqrt(
-                            Math.pow(city.x - currentCity.x, 2.0)
-                            + Math.pow(city.y - currentCity.y, 2.0));
-                    if (distance < closestDistance) {
-                        closestCity = city;
-                        closestDistance = distance;
+                // Set the edge and its reverse w -> v
+                costs[e] = 1 + 9 * random.nextDouble();
+                for (int f = graph.getEdgesBegin(w); f < graph.getEdgesEnd(w); ++f) {
+                    if (graph.getEdgeTarget(f) == v) {
+                        costs[f] = costs[e];
                     }
                 }
             }
+        }
 
-            // Add the closest city to the tour
-            tour.insertTail(closestCity);
+        return costs;
+    }
 
-            // Color the closest city black
-            closestCity.color = VertexColor.BLACK;
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
 
-            // Make the closest city the current city
-            currentCity = closestCity;
-        }
+        CsrGraph<Object, Object> network =
+                ShortestPathsBenchmark.buildGrid(side, side);
+        double[] costs = symmetricCosts(network, 42);
+        System.out.println(network.getNumVertices() + " facilities, "
+                + network.getNumEdges() / 2 + " pipelines.");
 
-        // Insert the start city again to complete the tour
-        tour.insertTail(startCity);
+        long start = System.nanoTime();
+        MinimumSpanningTree.SpanningForest prim =
+                MinimumSpanningTree.computePrim(network, costs);
+        long stop = System.nanoTime();
+        System.out.println("Prim took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, cost "
+                + prim.getTotalCost() + ".");
 
-        return tour;
+        start = System.nanoTime();
+        MinimumSpanningTree.SpanningForest kruskal =
+                MinimumSpanningTree.computeKruskal(network, costs);
+        stop = System.nanoTime();
+        System.out.println("Kruskal took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, cost "
+                + kruskal.getTotalCost() + ".");
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            start = System.nanoTime();
+            MinimumSpanningTree.SpanningForest boruvka =
+                    MinimumSpanningTree.computeBoruvka(network, costs, pool);
+            stop = System.nanoTime();
+            pool.shutdown();
+            System.out.println("Boruvka with " + threads + " threads took "
+                    + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, cost "
+                    + boruvka.getTotalCost() + ".");
+        }
     }
 }
 
-// Traveling Salesperson Problem is NP-hard, meaning that there is no known
-// polynomial time algorithm to solve it. In this sense it is intractable.
+
+//------------------------------------------------------------------------------
+// Maximum Flow
+//------------------------------------------------------------------------------
+
+// Maximum flow = the most water per unit of time that can be sent from a
+// source facility to a sink facility, when every pipeline carries at most
+// its capacity and no water is lost or created on the way.
+
+// Flow network:
+// - Directed graph with a capacity c(u, v) >= 0 on every edge.
+// - A flow f gives 0 <= f(u, v) <= c(u, v) for every edge, and every vertex
+// except the source and sink has as much flow coming in as going out.
+// - A pipeline that works in both directions is stored as two edges, the
+// flow in each direction is limited by its capacity.
+
+// Residual network:
+// - Holds what can still be changed: an edge with flow f and capacity c can
+// take c - f more (forward arc), or its flow can be reduced by f (reverse
+// arc). Every edge becomes a pair of arcs, and pushing along one arc adds
+// to the other.
+// - An augmenting path = a path from source to sink along arcs with residual
+// capacity left. The flow is maximum once there is none.
+
+// Minimum cut:
+// - Split the vertices into a source side S and a sink side T. Every unit of
+// flow has to cross from S to T, so the capacity of the edges from S to T
+// bounds the flow.
+// - Max-flow min-cut theorem: the maximum flow equals the smallest such
+// capacity. After a maximum flow, the vertices still reachable from the
+// source in the residual network form S, and the edges leaving S are the
+// bottleneck pipelines.
+
+// Dinic's algorithm:
+// - Phase: a breadth-first search from the source labels every vertex with
+// its distance (level) in the residual network. Only arcs from level i to
+// level i + 1 are used.
+// - Find a blocking flow in this layered network: repeatedly search for a
+// path to the sink, push the path's bottleneck and continue from where the
+// search left off. Each vertex remembers its current arc, so arcs that led
+// nowhere are never tried again in the same phase, and a vertex without a
+// way forward is removed from its level.
+// - Each phase increases the distance from source to sink, so there are at
+// most V phases: O(V^2 E) overall, far less on layered networks and unit
+// capacities.
+// - The path search keeps its path in an array instead of recursing, so deep
+// networks do not overflow the call stack.
+
+// Push-relabel:
+// - Works on a preflow instead of paths: vertices may hold excess (more in
+// than out). Each vertex has a height, and excess is only pushed downhill,
+// along an arc to a vertex exactly one lower.
+// - Start by saturating every arc out of the source (height V, the rest 0).
+// - A vertex with excess that cannot push anywhere is relabeled: lifted to
+// one above its lowest residual neighbour.
+// - Excess that cannot reach the sink rises above height V and flows back to
+// the source, so the result is a flow again. O(V^2 E) with any order, O(V^3)
+// with first-in first-out order (used here).
+
+// Global relabeling:
+// - Relabeling one vertex at a time raises heights slowly, and push-relabel
+// can spend most of its time pushing excess back and forth.
+// - Every so often set all heights exactly: a breadth-first search backwards
+// from the sink gives each vertex its residual distance to the sink, and
+// one from the source gives the vertices that cannot reach the sink V +
+// their distance to the source.
+// - Run after about 6V + E units of relabel work, which keeps its cost in
+// proportion and is the most effective speedup in practice.
+
+// Capacities are given per edge of a CsrGraph (like the costs of the
+// shortest path algorithms) and must be finite. Results hold the flow on
+// every edge and the minimum cut.
+
+// import java.util.Arrays;
+// import static com.google.common.base.Preconditions.*;
+
+public final class MaximumFlow {
+    private static final int RELABEL_WORK = 12;
+    private static final int GLOBAL_RELABEL_VERTEX_WORK = 6;
+
+    /**
+     * A maximum flow and the minimum cut it gives.
+     */
+    public static final class Flow {
+        private double value;
+        private double[] edgeFlows;
+        private boolean[] sourceSide;
+        private int[] cutEdges;
+
+        private Flow(
+                double value,
+                double[] edgeFlows,
+                boolean[] sourceSide,
+                int[] cutEdges) {
+            this.value = value;
+            this.edgeFlows = edgeFlows;
+            this.sourceSide = sourceSide;
+            this.cutEdges = cutEdges;
+        }
+
+        /**
+         * Total flow from the source to the sink.
+         */
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * Flow on each edge, indexed by edge.
+         */
+        public double[] getEdgeFlows() {
+            return edgeFlows;
+        }
+
+        /**
+         * True if v is on the source side of the minimum cut.
+         */
+        public boolean isOnSourceSide(int v) {
+            checkElementIndex(v, sourceSide.length, "v");
+            return sourceSide[v];
+        }
+
+        /**
+         * Edges from the source side to the sink side of the minimum cut;
+         * their capacities add up to the value of the flow.
+         */
+        public int[] getCutEdges() {
+            return cutEdges;
+        }
+    }
+
+    /**
+     * Maximum flow through the pipelines between two water facilities.
+     */
+    public static final class Throughput {
+        private CsrGraph<MinimumSpanningTree.WaterFacility,
+                MinimumSpanningTree.Pipeline> graph;
+        private Flow flow;
+
+        private Throughput(
+                CsrGraph<MinimumSpanningTree.WaterFacility,
+                        MinimumSpanningTree.Pipeline> graph,
+                Flow flow) {
+            this.graph = graph;
+            this.flow = flow;
+        }
+
+        public double getMaximumFlow() {
+            return flow.value;
+        }
+
+        /**
+         * Flow through the pipelines from one facility to another.
+         */
+        public double getFlow(
+                MinimumSpanningTree.WaterFacility from,
+                MinimumSpanningTree.WaterFacility to) {
+            int v = graph.indexOf(from);
+            int w = graph.indexOf(to);
+            double total = 0;
+            for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                if (graph.getEdgeTarget(e) == w) {
+                    total += flow.edgeFlows[e];
+                }
+            }
+
+            return total;
+        }
+
+        /**
+         * True if facility is on the source side of the bottleneck, i.e.
+         * more water could still reach it from the source.
+         */
+        public boolean isOnSourceSide(
+                MinimumSpanningTree.WaterFacility facility) {
+            return flow.sourceSide[graph.indexOf(facility)];
+        }
+    }
+
+    /**
+     * Computes the maximum flow from source to sink through pipelines with
+     * a capacity, using push-relabel.
+     */
+    public static Throughput computeMaximumFlow(
+            Graph<MinimumSpanningTree.WaterFacility,
+                    MinimumSpanningTree.Pipeline> graph,
+            MinimumSpanningTree.WaterFacility source,
+            MinimumSpanningTree.WaterFacility sink) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(source, "source must not be null");
+        checkNotNull(sink, "sink must not be null");
+        checkArgument(graph.containsVertex(source),
+                "source not found in graph");
+        checkArgument(graph.containsVertex(sink), "sink not found in graph");
+
+        CsrGraph<MinimumSpanningTree.WaterFacility,
+                MinimumSpanningTree.Pipeline> csr = CsrGraph.fromGraph(graph);
+        return new Throughput(csr, computePushRelabel(csr,
+                MinimumSpanningTree.getPipelineCapacities(csr),
+                csr.indexOf(source), csr.indexOf(sink)));
+    }
+
+    // ========================= Residual network =========================
+
+    // The arcs of each vertex in CSR layout: the forward arc of every edge
+    // leaving it and the reverse arc of every edge entering it
+    private static final class ResidualNetwork {
+        private int[] arcOffsets;           // First arc of each vertex
+        private int[] arcHeads;             // Vertex each arc leads to
+        private int[] arcPartners;          // The other arc of the same edge
+        private double[] residuals;         // Capacity left on each arc
+        private int[] edgeArcs;             // Forward arc of each edge
+
+        private ResidualNetwork(CsrGraph<?, ?> graph, double[] capacities) {
+            int numVertices = graph.getNumVertices();
+            int numEdges = graph.getNumEdges();
+            arcOffsets = new int[numVertices + 1];
+            for (int v = 0; v < numVertices; ++v) {
+                for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                    ++arcOffsets[v + 1];
+                    ++arcOffsets[graph.getEdgeTarget(e) + 1];
+                }
+            }
+            for (int v = 0; v < numVertices; ++v) {
+                arcOffsets[v + 1] += arcOffsets[v];
+            }
+
+            arcHeads = new int[2 * numEdges];
+            arcPartners = new int[2 * numEdges];
+            residuals = new double[2 * numEdges];
+            edgeArcs = new int[numEdges];
+            int[] next = Arrays.copyOf(arcOffsets, numVertices);
+            for (int v = 0; v < numVertices; ++v) {
+                for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                    int w = graph.getEdgeTarget(e);
+                    int forward = next[v]++;
+                    int reverse = next[w]++;
+                    arcHeads[forward] = w;
+                    arcHeads[reverse] = v;
+                    arcPartners[forward] = reverse;
+                    arcPartners[reverse] = forward;
+                    residuals[forward] = capacities[e];
+                    edgeArcs[e] = forward;
+                }
+            }
+        }
+
+        private void push(int arc, double amount) {
+            residuals[arc] -= amount;
+            residuals[arcPartners[arc]] += amount;
+        }
+    }
+
+    // Reads the flows off the residual network and finds the minimum cut:
+    // the vertices still reachable from the source
+    private static Flow finish(
+            CsrGraph<?, ?> graph,
+            double[] capacities,
+            ResidualNetwork network,
+            int source,
+            double value) {
+        int numVertices = graph.getNumVertices();
+        double[] edgeFlows = new double[graph.getNumEdges()];
+        for (int e = 0; e < edgeFlows.length; ++e) {
+            edgeFlows[e] =
+                    capacities[e] - network.residuals[network.edgeArcs[e]];
+        }
+
+        boolean[] sourceSide = new boolean[numVertices];
+        int[] queue = new int[numVertices];
+        int size = 0;
+        sourceSide[source] = true;
+        queue[size++] = source;
+        for (int head = 0; head < size; ++head) {
+            int v = queue[head];
+            for (int a = network.arcOffsets[v]; a < network.arcOffsets[v + 1]; ++a) {
+                int w = network.arcHeads[a];
+                if (network.residuals[a] > 0 && !sourceSide[w]) {
+                    sourceSide[w] = true;
+                    queue[size++] = w;
+                }
+            }
+        }
+
+        int numCutEdges = 0;
+        for (int pass = 0; pass < 2; ++pass) {
+            int[] cutEdges = pass == 0 ? null : new int[numCutEdges];
+            numCutEdges = 0;
+            for (int v = 0; v < numVertices; ++v) {
+                if (!sourceSide[v]) {
+                    continue;
+                }
+                for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                    if (!sourceSide[graph.getEdgeTarget(e)]) {
+                        if (cutEdges != null) {
+                            cutEdges[numCutEdges] = e;
+                        }
+                        ++numCutEdges;
+                    }
+                }
+            }
+            if (cutEdges != null) {
+                return new Flow(value, edgeFlows, sourceSide, cutEdges);
+            }
+        }
+
+        throw new AssertionError();
+    }
+
+    private static void checkArguments(
+            CsrGraph<?, ?> graph,
+            double[] capacities,
+            int source,
+            int sink) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(capacities, "capacities must not be null");
+        checkArgument(capacities.length == graph.getNumEdges(),
+                "capacities must have one entry per edge");
+        checkElementIndex(source, graph.getNumVertices(), "source");
+        checkElementIndex(sink, graph.getNumVertices(), "sink");
+        checkArgument(source != sink, "source and sink must differ");
+        for (double capacity : capacities) {
+            checkArgument(capacity >= 0 && capacity < Double.POSITIVE_INFINITY,
+                    "capacities must be finite and not negative");
+        }
+    }
+
+    // ========================== Dinic's algorithm ===========================
+
+    public static Flow computeDinic(
+            CsrGraph<?, ?> graph,
+            double[] capacities,
+            int source,
+            int sink) {
+        checkArguments(graph, capacities, source, sink);
+
+        ResidualNetwork network = new ResidualNetwork(graph, capacities);
+        int numVertices = graph.getNumVertices();
+        int[] levels = new int[numVertices];
+        int[] queue = new int[numVertices];
+        int[] currentArcs = new int[numVertices];
+        int[] path = new int[numVertices];
+
+        double value = 0;
+        while (computeLevels(network, source, sink, levels, queue)) {
+            System.arraycopy(
+                    network.arcOffsets, 0, currentArcs, 0, numVertices);
+            value += pushBlockingFlow(network, source, sink, levels,
+                    currentArcs, path);
+        }
+
+        return finish(graph, capacities, network, source, value);
+    }
+
+    // Breadth-first search from the source over arcs with capacity left,
+    // stopping at the sink's level. Returns false if the sink is unreachable.
+    private static boolean computeLevels(
+            ResidualNetwork network,
+            int source,
+            int sink,
+            int[] levels,
+            int[] queue) {
+        Arrays.fill(levels, -1);
+        int size = 0;
+        levels[source] = 0;
+        queue[size++] = source;
+        for (int head = 0; head < size; ++head) {
+            int v = queue[head];
+            if (levels[sink] != -1 && levels[v] >= levels[sink]) {
+                break;
+            }
+            for (int a = network.arcOffsets[v]; a < network.arcOffsets[v + 1]; ++a) {
+                int w = network.arcHeads[a];
+                if (network.residuals[a] > 0 && levels[w] == -1) {
+                    levels[w] = levels[v] + 1;
+                    queue[size++] = w;
+                }
+            }
+        }
+
+        return levels[sink] != -1;
+    }
+
+    // Pushes flow along level-increasing paths until none is left. The path
+    // holds the arcs taken from the source.
+    private static double pushBlockingFlow(
+            ResidualNetwork network,
+            int source,
+            int sink,
+            int[] levels,
+            int[] currentArcs,
+            int[] path) {
+        double total = 0;
+        int size = 0;
+        int vertex = source;
+
+        while (true) {
+            if (vertex == sink) {
+                // Push the bottleneck and back up to the tail of the first
+                // arc it saturated
+                double bottleneck = Double.MAX_VALUE;
+                for (int i = 0; i < size; ++i) {
+                    bottleneck =
+                            Math.min(bottleneck, network.residuals[path[i]]);
+                }
+                int saturated = -1;
+                for (int i = 0; i < size; ++i) {
+                    network.push(path[i], bottleneck);
+                    if (saturated == -1 && network.residuals[path[i]] <= 0) {
+                        saturated = i;
+                    }
+                }
+                total += bottleneck;
+                size = saturated;
+                vertex = size == 0 ? source
+                        : network.arcHeads[path[size - 1]];
+                continue;
+            }
+
+            // Advance along the current arc if it leads one level up
+            int end = network.arcOffsets[vertex + 1];
+            while (currentArcs[vertex] < end) {
+                int a = currentArcs[vertex];
+                if (network.residuals[a] > 0
+                        && levels[network.arcHeads[a]] == levels[vertex] + 1) {
+                    break;
+                }
+                ++currentArcs[vertex];
+            }
+
+            if (currentArcs[vertex] < end) {
+                int a = currentArcs[vertex];
+                path[size++] = a;
+                vertex = network.arcHeads[a];
+            } else {
+                // Dead end: drop the vertex from the layered network and
+                // retreat past the arc that led here
+                levels[vertex] = -1;
+                if (size == 0) {
+                    return total;
+                }
+                int a = path[--size];
+                vertex = network.arcHeads[network.arcPartners[a]];
+                ++currentArcs[vertex];
+            }
+        }
+    }
+
+    // ============================ Push-relabel ==============================
+
+    public static Flow computePushRelabel(
+            CsrGraph<?, ?> graph,
+            double[] capacities,
+            int source,
+            int sink) {
+        checkArguments(graph, capacities, source, sink);
+
+        ResidualNetwork network = new ResidualNetwork(graph, capacities);
+        int numVertices = graph.getNumVertices();
+        int[] arcOffsets = network.arcOffsets;
+        int[] arcHeads = network.arcHeads;
+        double[] residuals = network.residuals;
+        double[] excess = new double[numVertices];
+        int[] heights = new int[numVertices];
+        int[] currentArcs = new int[numVertices];
+        int[] queue = new int[numVertices];     // Active vertices, circular
+        boolean[] active = new boolean[numVertices];
+        int[] order = new int[numVertices];     // Global relabel searches
+        int head = 0;
+        int numActive = 0;
+
+        // Saturate every arc out of the source
+        for (int a = arcOffsets[source]; a < arcOffsets[source + 1]; ++a) {
+            int w = arcHeads[a];
+            double amount = residuals[a];
+            if (amount > 0 && w != source) {
+                network.push(a, amount);
+                excess[w] += amount;
+                excess[source] -= amount;
+                if (w != sink && !active[w]) {
+                    active[w] = true;
+                    queue[(head + numActive++) % numVertices] = w;
+                }
+            }
+        }
+        relabelGlobally(network, source, sink, heights, currentArcs, order);
+        long globalRelabelWork = (long) GLOBAL_RELABEL_VERTEX_WORK
+                * numVertices + residuals.length;
+        long work = 0;
+
+        while (numActive > 0) {
+            int v = queue[head];
+            head = (head + 1) % numVertices;
+            --numActive;
+            active[v] = false;
+
+            // Discharge v: push its excess downhill, relabel when stuck
+            while (excess[v] > 0 && heights[v] < 2 * numVertices) {
+                int a = currentArcs[v];
+                if (a == arcOffsets[v + 1]) {
+                    int lowest = 2 * numVertices - 1;
+                    for (int b = arcOffsets[v]; b < arcOffsets[v + 1]; ++b) {
+                        if (residuals[b] > 0) {
+                            lowest = Math.min(lowest, heights[arcHeads[b]]);
+                        }
+                    }
+                    heights[v] = lowest + 1;
+                    currentArcs[v] = arcOffsets[v];
+                    work += RELABEL_WORK + arcOffsets[v + 1] - arcOffsets[v];
+
+                    if (work > globalRelabelWork) {
+                        relabelGlobally(network, source, sink, heights,
+                                currentArcs, order);
+                        work = 0;
+                    }
+                    continue;
+                }
+
+                int w = arcHeads[a];
+                if (residuals[a] > 0 && heights[v] == heights[w] + 1) {
+                    double amount = Math.min(excess[v], residuals[a]);
+                    network.push(a, amount);
+                    excess[v] -= amount;
+                    excess[w] += amount;
+                    if (w != source && w != sink && !active[w]) {
+                        active[w] = true;
+                        queue[(head + numActive++) % numVertices] = w;
+                    }
+                } else {
+                    ++currentArcs[v];
+                }
+            }
+        }
+
+        return finish(graph, capacities, network, source, excess[sink]);
+    }
+
+    // Sets every height to the residual distance to the sink, or for
+    // vertices that cannot reach the sink to V + the distance to the source.
+    // Vertices that reach neither hold no excess and are set to 2V.
+    private static void relabelGlobally(
+            ResidualNetwork network,
+            int source,
+            int sink,
+            int[] heights,
+            int[] currentArcs,
+            int[] order) {
+        int numVertices = heights.length;
+        Arrays.fill(heights, 2 * numVertices);
+        System.arraycopy(network.arcOffsets, 0, currentArcs, 0, numVertices);
+        heights[sink] = 0;
+        heights[source] = numVertices;
+
+        // The search from the source must only claim what the search from
+        // the sink could not reach, so it runs second
+        int size = 0;
+        order[size++] = sink;
+        int head = 0;
+        for (int root = 0; root < 2; ++root) {
+            if (root == 1) {
+                order[size++] = source;
+            }
+            for (; head < size; ++head) {
+                int v = order[head];
+                for (int a = network.arcOffsets[v];
+                        a < network.arcOffsets[v + 1]; ++a) {
+                    // w can push to v if the partner arc w -> v has capacity
+                    int w = network.arcHeads[a];
+                    if (heights[w] == 2 * numVertices
+                            && network.residuals[network.arcPartners[a]] > 0) {
+                        heights[w] = heights[v] + 1;
+                        order[size++] = w;
+                    }
+                }
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Times Dinic's algorithm and push-relabel on a layered network (random
+// edges between consecutive layers, like stages of a distribution system)
+// and on a grid whose left column is fed by the source and whose right
+// column drains into the sink. Capacities are random integers, so both
+// algorithms must agree exactly.
+// - Measured on a single core, 100 layers of 10,000 vertices with 5 edges
+// each: Dinic ~4.4 seconds, push-relabel ~1.4 seconds.
+// - 300 x 300 grid: Dinic ~4.4 seconds, push-relabel ~0.5 seconds. Paths
+// through a grid are long and the level graph grows by little each phase,
+// so Dinic needs many phases; at 1,000 x 1,000 Dinic took ~250 seconds
+// against ~13 seconds for push-relabel.
+
+// import java.util.Arrays;
+// import java.util.Random;
+
+public class MaximumFlowBenchmark {
+    public static void main(String args[]) {
+        int numLayers = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int layerWidth = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int side = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+
+        // Vertex 0 is the source, 1 the sink
+        Random random = new Random(42);
+        int numVertices = 2 + numLayers * layerWidth;
+        int degree = 5;
+        int[] edgeOffsets = new int[numVertices + 1];
+        int[] edgeTargets = new int[
+                2 * layerWidth + (numLayers - 1) * layerWidth * degree];
+        int e = 0;
+        for (int i = 0; i < layerWidth; ++i) {
+            edgeTargets[e++] = 2 + i;
+        }
+        edgeOffsets[1] = e;
+        edgeOffsets[2] = e;
+        for (int layer = 0; layer < numLayers; ++layer) {
+            for (int i = 0; i < layerWidth; ++i) {
+                int v = 2 + layer * layerWidth + i;
+                if (layer == numLayers - 1) {
+                    edgeTargets[e++] = 1;
+                } else {
+                    for (int j = 0; j < degree; ++j) {
+                        edgeTargets[e++] = 2 + (layer + 1) * layerWidth
+                                + random.nextInt(layerWidth);
+                    }
+                }
+                edgeOffsets[v + 1] = e;
+            }
+        }
+        time("Layered network", new CsrGraph<Object, Object>(
+                edgeOffsets, edgeTargets), randomCapacities(e, random), 0, 1);
+
+        // Grid with both directions of every pipeline, plus the source and
+        // sink as the last two vertices
+        int numGrid = side * side;
+        edgeOffsets = new int[numGrid + 3];
+        edgeTargets = new int[4 * numGrid + 2 * side];
+        e = 0;
+        for (int y = 0; y < side; ++y) {
+            for (int x = 0; x < side; ++x) {
+                int v = y * side + x;
+                if (x > 0) edgeTargets[e++] = v - 1;
+                if (x < side - 1) edgeTargets[e++] = v + 1;
+                if (y > 0) edgeTargets[e++] = v - side;
+                if (y < side - 1) edgeTargets[e++] = v + side;
+                if (x == side - 1) edgeTargets[e++] = numGrid + 1;
+                edgeOffsets[v + 1] = e;
+            }
+        }
+        for (int y = 0; y < side; ++y) {
+            edgeTargets[e++] = y * side;
+        }
+        edgeOffsets[numGrid + 1] = e;
+        edgeOffsets[numGrid + 2] = e;
+        edgeTargets = Arrays.copyOf(edgeTargets, e);
+        time("Grid", new CsrGraph<Object, Object>(edgeOffsets, edgeTargets),
+                randomCapacities(e, random), numGrid, numGrid + 1);
+    }
+
+    private static double[] randomCapacities(int numEdges, Random random) {
+        double[] capacities = new double[numEdges];
+        for (int e = 0; e < numEdges; ++e) {
+            capacities[e] = 1 + random.nextInt(100);
+        }
+
+        return capacities;
+    }
+
+    private static void time(
+            String name,
+            CsrGraph<Object, Object> network,
+            double[] capacities,
+            int source,
+            int sink) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        System.out.println(name + ": " + network.getNumVertices()
+                + " vertices, " + network.getNumEdges() + " edges.");
+
+        long start = System.nanoTime();
+        MaximumFlow.Flow dinic =
+                MaximumFlow.computeDinic(network, capacities, source, sink);
+        long stop = System.nanoTime();
+        System.out.println("Dinic took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, flow "
+                + dinic.getValue() + ", " + dinic.getCutEdges().length
+                + " cut edges.");
+
+        start = System.nanoTime();
+        MaximumFlow.Flow pushRelabel = MaximumFlow.computePushRelabel(
+                network, capacities, source, sink);
+        stop = System.nanoTime();
+        System.out.println("Push-relabel took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, flow "
+                + pushRelabel.getValue() + ", " + pushRelabel.getCutEdges().length
+                + " cut edges.");
+    }
+}
+
+//------------------------------------------------------------------------------
+// Shortest Paths
+//------------------------------------------------------------------------------
+
+// Shortest path = path that connects one vertex to another in a directed,
+// weighted graph at minimum cost.
+// - Solving this problem requires finding the shortest path not just to the 
+// ideal vertex, but to all vertices in the graph. This is necessary because
+// it is the only way to know if you have actually found the shortest path.
+
+// This gives the solution to optimizing routing.
+
+// Also known as Dijkstra's algorithm.
+// - No known algorithm that solves this problem faster. 
+// - For a graph G = (V, E) runs in O(E lg V) time when implemented correctly.
+// - Only works with positive edge weights, for negative edge weights one must
+// use the Bellman-Ford algorithm which runs in O(VE) time.
+// - Dijkstra's works by growing a shortest paths tree. The root is the start
+// vertex and branches are the shortest path to all other vertices. 
+//     - Works by adding edges to the shortest path tree based on what looks
+// best at the moment (greedy). 
+// - Djisktra's algorithm is a greedy algorithm, but generates the optimal 
+// solution.
+// - Resembles breadth-first search, repeatedly selects vertex and explores
+// edges incident to it.
+
+// Each vertex maintains two values, 1) whether is has been visited and 2) the
+// cost of the shortest path to that vertex. 2) is used to determine whether
+// the algorithm can be improved.
+
+// At the end of the algorithm, if you traverse the tree you have the guaranteed
+// shortest path to each of the other vertices.
+
+// Applications:
+// - Optimal routing, find the cheapest way to connect two network gateways.
+// - Routing planes / trucks, determine the best route between A and B. 
+// - Traffic monitoring / route planning.
+
+// Implementation:
+
+// Selecting the next vertex by scanning every white vertex costs O(V) per
+// step and O(V^2) overall. The O(E lg V) bound requires a priority queue:
+// - Keep the white vertices with a finite cost in an indexed min priority
+// queue keyed by their shortest path cost.
+// - Extract the cheapest vertex in O(lg V), it becomes black (final).
+// - Relaxing an edge that lowers a queued vertex's cost is a decrease-key,
+// O(lg V). Each edge is relaxed at most once, so O(E lg V) in total.
+// - An alternative is lazy deletion: insert a duplicate entry on every
+// improvement and skip entries whose vertex is already black. It uses a
+// plain heap but holds up to E entries instead of V.
+
+// Stopping early:
+// - Once the queue is empty, every remaining vertex is unreachable from the
+// start. This is not an error, those vertices simply have no path (cost
+// infinity, no parent).
+// - When only one destination matters, stop as soon as it is extracted. Its
+// cost is final at that point and the rest of the graph is never explored.
+
+// The search itself runs on a CsrGraph snapshot and keeps its state in
+// primitive arrays indexed by vertex number, so results come back as a
+// double[] of costs and an int[] of parents (-1 = no parent).
+// - The costs, parents and priority queue of a run are borrowed from the
+// graph's scratch pool (see Search Scratch Space in Graphs.java) and only the
+// entries the run touched are reset afterwards.
+// - The cities are never written, so one shared snapshot can answer queries
+// from many threads at once.
+// - A query that only needs the cost to one destination allocates nothing.
+
+// CITY_CODEC and CONNECTION_CODEC store the city graph in a binary graph
+// file (see Binary Graph Files in Graphs.java).
+
+// import java.nio.ByteBuffer;
+// import java.util.Arrays;
+// import static com.google.common.base.Preconditions.*;
+
+public final class ShortestPaths {
+    public static final class City {
+        private String name;
+        private double x, y;
+
+        public City(String name) {
+            this.name = name;
+        }
+
+        public City(String name, double x, double y) {
+            this.name = name;
+            this.x = x;
+            this.y = y;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            City that = (City) o;
+
+            return name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    public static final class Connection {
+        private double cost;
+
+        public Connection(double cost) {
+            this.cost = cost;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * Stores a city in a graph file as its coordinates and UTF-8 name.
+     */
+    public static final GraphFile.RecordCodec<City> CITY_CODEC =
+            new GraphFile.RecordCodec<City>() {
+                public int getSize(City city) {
+                    return 16 + GraphFile.STRINGS.getSize(city.name);
+                }
+
+                public void encode(City city, ByteBuffer buffer) {
+                    buffer.putDouble(city.x);
+                    buffer.putDouble(city.y);
+                    GraphFile.STRINGS.encode(city.name, buffer);
+                }
+
+                public City decode(ByteBuffer buffer, int size) {
+                    double x = buffer.getDouble();
+                    double y = buffer.getDouble();
+                    return new City(
+                            GraphFile.STRINGS.decode(buffer, size - 16), x, y);
+                }
+            };
+
+    /**
+     * Stores a connection in a graph file as its 8 byte cost.
+     */
+    public static final GraphFile.RecordCodec<Connection> CONNECTION_CODEC =
+            new GraphFile.RecordCodec<Connection>() {
+                public int getSize(Connection connection) {
+                    return 8;
+                }
+
+                public void encode(Connection connection, ByteBuffer buffer) {
+                    buffer.putDouble(connection.cost);
+                }
+
+                public Connection decode(ByteBuffer buffer, int size) {
+                    return new Connection(buffer.getDouble());
+                }
+            };
+
+    /**
+     * Shortest paths tree stored as primitive arrays indexed by vertex.
+     */
+    public static final class ShortestPathsTree {
+        private double[] costs;
+        private int[] parents;
+
+        ShortestPathsTree(double[] costs, int[] parents) {
+            this.costs = costs;
+            this.parents = parents;
+        }
+
+        /**
+         * Cost of the shortest path to each vertex, Double.MAX_VALUE if the
+         * vertex is unreachable or was not reached before the search stopped.
+         */
+        public double[] getCosts() {
+            return costs;
+        }
+
+        /**
+         * Previous vertex on the shortest path to each vertex, -1 for the
+         * start and for vertices not reached.
+         */
+        public int[] getParents() {
+            return parents;
+        }
+
+        public boolean isReachable(int v) {
+            return costs[v] != Double.MAX_VALUE;
+        }
+
+        /**
+         * Returns the vertices on the path from the start to target, or an
+         * empty array if target was not reached.
+         */
+        public int[] getPath(int target) {
+            if (!isReachable(target)) {
+                return new int[0];
+            }
+
+            // Count the vertices on the path, then fill it in backwards
+            int length = 0;
+            for (int v = target; v != -1; v = parents[v]) {
+                ++length;
+            }
+            int[] path = new int[length];
+            for (int v = target; v != -1; v = parents[v]) {
+                path[--length] = v;
+            }
+
+            return path;
+        }
+    }
+
+    /**
+     * Shortest paths tree over the cities of a graph.
+     */
+    public static final class CityShortestPaths {
+        private CsrGraph<City, Connection> graph;
+        private ShortestPathsTree tree;
+
+        private CityShortestPaths(
+                CsrGraph<City, Connection> graph,
+                ShortestPathsTree tree) {
+            this.graph = graph;
+            this.tree = tree;
+        }
+
+        /**
+         * Previous city on the shortest path to city, null for the start and
+         * for cities that cannot be reached.
+         */
+        public City getParent(City city) {
+            int parent = tree.parents[graph.indexOf(city)];
+            return parent == -1 ? null : graph.getVertexData(parent);
+        }
+
+        /**
+         * Cost of the shortest path to city, Double.MAX_VALUE if it cannot be
+         * reached.
+         */
+        public double getShortestPathCost(City city) {
+            return tree.costs[graph.indexOf(city)];
+        }
+    }
+
+    /**
+     * Target passed to search the whole graph rather than stop early.
+     */
+    public static final int ALL_VERTICES = -1;
+
+    /**
+     * Returns the cost of each connection indexed by edge, for use with the
+     * CsrGraph searches. Extract once and reuse for every query.
+     */
+    public static double[] getConnectionCosts(
+            CsrGraph<City, Connection> graph) {
+        checkNotNull(graph, "graph must not be null");
+
+        double[] costs = new double[graph.getNumEdges()];
+        for (int e = 0; e < costs.length; ++e) {
+            costs[e] = graph.getEdgeData(e).cost;
+        }
+
+        return costs;
+    }
+
+    /**
+     * Generates shortest paths tree from start to all other cities. Cities
+     * that cannot be reached from start have no parent.
+     */
+    public static CityShortestPaths computeShortestPaths(
+            Graph<City, Connection> graph,
+            City start) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(start, "start must not be null");
+        checkArgument(graph.containsVertex(start), "start not found in graph");
+
+        // Search a CSR snapshot of the graph
+        CsrGraph<City, Connection> csr = CsrGraph.fromGraph(graph);
+        return new CityShortestPaths(csr, computeShortestPaths(
+                csr, getConnectionCosts(csr), csr.indexOf(start)));
+    }
+
+    /**
+     * Generates shortest paths tree from start to all other vertices.
+     * Edge costs must not be negative.
+     */
+    public static ShortestPathsTree computeShortestPaths(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start) {
+        return computeShortestPath(graph, edgeCosts, start, ALL_VERTICES);
+    }
+
+    /**
+     * Generates shortest paths tree from start, stopping as soon as the
+     * shortest path to target is known. Only the path to target (and to
+     * vertices settled before it) is guaranteed to be final.
+     */
+    public static ShortestPathsTree computeShortestPath(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            int target) {
+        checkArguments(graph, edgeCosts, start);
+        checkArgument(target == ALL_VERTICES
+                        || (target >= 0 && target < graph.getNumVertices()),
+                "target not found in graph");
+
+        // Untouched scratch entries already hold the "not reached" values,
+        // so the result is a straight copy of the scratch arrays
+        SearchScratch scratch = graph.getScratchPool().acquire();
+        try {
+            dijkstra(graph, edgeCosts, start, target, scratch);
+
+            int numVertices = graph.getNumVertices();
+            return new ShortestPathsTree(
+                    Arrays.copyOf(scratch.getCosts(), numVertices),
+                    Arrays.copyOf(scratch.getParents(), numVertices));
+        } finally {
+            graph.getScratchPool().release(scratch);
+        }
+    }
+
+    /**
+     * Returns the cost of the shortest path from start to target,
+     * Double.MAX_VALUE if target cannot be reached. Allocates nothing once
+     * the graph's scratch pool is warm.
+     */
+    public static double computeShortestPathCost(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            int target) {
+        checkArguments(graph, edgeCosts, start);
+        checkElementIndex(target, graph.getNumVertices(), "target");
+
+        SearchScratch scratch = graph.getScratchPool().acquire();
+        try {
+            dijkstra(graph, edgeCosts, start, target, scratch);
+            return scratch.getCosts()[target];
+        } finally {
+            graph.getScratchPool().release(scratch);
+        }
+    }
+
+    private static void checkArguments(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+        checkElementIndex(start, graph.getNumVertices(), "start");
+    }
+
+    // Dijkstra's algorithm from start, leaving the costs and parents of every
+    // vertex it reached in scratch
+    private static void dijkstra(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            int target,
+            SearchScratch scratch) {
+        double[] costs = scratch.getCosts();
+        int[] parents = scratch.getParents();
+        scratch.touch(start);
+        costs[start] = 0;
+
+        // Use Dijkstra's algorithm to compute a shortest paths tree
+        IndexedMinPriorityQueue queue = scratch.getQueue();
+        queue.insert(start, 0);
+        while (!queue.isEmpty()) {
+            // Select the city with the smallest shortest path cost, its cost
+            // is now final (black)
+            int selected = queue.extract();
+            if (selected == target) {
+                break;
+            }
+
+            // Relax each connection that leaves the selected city
+            double selectedCost = costs[selected];
+            for (int e = graph.getEdgesBegin(selected),
+                         end = graph.getEdgesEnd(selected); e < end; ++e) {
+                int adjacent = graph.getEdgeTarget(e);
+                double cost = selectedCost + edgeCosts[e];
+                if (cost < costs[adjacent]) {
+                    if (costs[adjacent] == Double.MAX_VALUE) {
+                        scratch.touch(adjacent);
+                    }
+                    costs[adjacent] = cost;
+                    parents[adjacent] = selected;
+                    queue.insertOrDecrease(adjacent, cost);
+                }
+            }
+        }
+
+        // Queue empty: all remaining vertices are unreachable from start
+    }
+}
+
+// There can be multiple shortest paths trees, but they will all have the same
+// cost.
+
+//------------------------------------------------------------------------------
+// Negative Edge Costs: Bellman-Ford
+//------------------------------------------------------------------------------
+
+// Dijkstra's algorithm assumes a settled vertex can never get cheaper. A
+// negative edge breaks that, a vertex settled early may later be reached
+// more cheaply through it.
+
+// Bellman-Ford:
+// - Relax every edge, V - 1 times. After round k the cost of every vertex
+// whose shortest path has at most k edges is final, and a shortest path
+// never has more than V - 1 edges. O(VE) time.
+// - Early termination: if a whole round changes nothing, no later round will
+// either, so stop.
+// - Negative cycle: a cycle whose costs add up to less than zero makes the
+// cost of every vertex reachable from it minus infinity. If round V still
+// lowers some cost, such a cycle exists.
+// - Any cycle formed by the parent links is a negative cycle. It is found by
+// following parent links from a lowered vertex with Floyd's tortoise and
+// hare (one pointer moves one link per step, the other two, they meet on
+// the cycle), so no extra memory is needed.
+
+// SPFA (Shortest Path Faster Algorithm), queue-based Bellman-Ford:
+// - Only the edges of vertices whose cost changed in the last round can
+// lower anything. Keep those vertices in a FIFO queue (each at most once)
+// instead of rescanning every edge.
+// - Same O(VE) worst case, but on most graphs it finishes after a few
+// passes over the edges.
+// - Negative cycle detection: count the edges on the path to each vertex,
+// a path of V edges must repeat a vertex, i.e. contain a negative cycle.
+// The parent links may not show that cycle yet, in which case the search
+// carries on until they do.
+
+// Applications:
+// - Currency arbitrage: edge cost -log(rate), a negative cycle is a loop of
+// trades that makes money.
+// - Distance vector routing protocols (RIP) are a distributed Bellman-Ford.
+// - Johnson's algorithm uses Bellman-Ford once to reweight the edges so they
+// are all non-negative, then runs Dijkstra from every vertex.
+
+// import java.util.Arrays;
+// import static com.google.common.base.Preconditions.*;
+
+public final class BellmanFord {
+    /**
+     * Thrown when a negative cycle is reachable from the start vertex, so
+     * shortest paths are not defined.
+     */
+    public static final class NegativeCycleException
+            extends IllegalStateException {
+        private int[] cycle;
+
+        private NegativeCycleException(int[] cycle) {
+            super("graph contains a negative cycle");
+            this.cycle = cycle;
+        }
+
+        /**
+         * Returns the vertices that form the cycle, in edge order.
+         */
+        public int[] getCycle() {
+            return cycle;
+        }
+    }
+
+    /**
+     * Generates shortest paths tree from start to all other vertices with
+     * rounds over every edge, stopping after the first round that changes
+     * nothing. Edge costs may be negative.
+     */
+    public static ShortestPaths.ShortestPathsTree computeShortestPaths(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start) throws NegativeCycleException {
+        checkArguments(graph, edgeCosts, start);
+
+        int numVertices = graph.getNumVertices();
+        double[] costs = new double[numVertices];
+        int[] parents = new int[numVertices];
+        Arrays.fill(costs, Double.MAX_VALUE);
+        Arrays.fill(parents, -1);
+        costs[start] = 0;
+
+        // Round V only runs if round V - 1 still changed something
+        for (int round = 1; round <= numVertices; ++round) {
+            int lowered = -1;
+            for (int v = 0; v < numVertices; ++v) {
+                if (costs[v] == Double.MAX_VALUE) {
+                    continue;
+                }
+                for (int e = graph.getEdgesBegin(v),
+                             end = graph.getEdgesEnd(v); e < end; ++e) {
+                    int adjacent = graph.getEdgeTarget(e);
+                    double cost = costs[v] + edgeCosts[e];
+                    if (cost < costs[adjacent]) {
+                        costs[adjacent] = cost;
+                        parents[adjacent] = v;
+                        lowered = adjacent;
+                    }
+                }
+            }
+
+            if (lowered == -1) {
+                return new ShortestPaths.ShortestPathsTree(costs, parents);
+            }
+            if (round == numVertices) {
+                throw new NegativeCycleException(findCycle(parents));
+            }
+        }
+
+        // Not reached, the last round either returns or throws
+        return new ShortestPaths.ShortestPathsTree(costs, parents);
+    }
+
+    /**
+     * Generates shortest paths tree from start to all other vertices,
+     * relaxing only the edges of vertices whose cost changed (SPFA). Edge
+     * costs may be negative.
+     */
+    public static ShortestPaths.ShortestPathsTree computeShortestPathsQueued(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start) throws NegativeCycleException {
+        checkArguments(graph, edgeCosts, start);
+
+        int numVertices = graph.getNumVertices();
+        double[] costs = new double[numVertices];
+        int[] parents = new int[numVertices];
+        int[] pathLengths = new int[numVertices];  // Edges from start
+        boolean[] queued = new boolean[numVertices];
+        Arrays.fill(costs, Double.MAX_VALUE);
+        Arrays.fill(parents, -1);
+        costs[start] = 0;
+
+        // Circular FIFO queue, each vertex is in it at most once
+        int[] queue = new int[numVertices];
+        int head = 0;
+        int size = 0;
+        queue[size++] = start;
+        queued[start] = true;
+
+        while (size > 0) {
+            int v = queue[head];
+            head = head + 1 == numVertices ? 0 : head + 1;
+            --size;
+            queued[v] = false;
+
+            for (int e = graph.getEdgesBegin(v),
+                         end = graph.getEdgesEnd(v); e < end; ++e) {
+                int adjacent = graph.getEdgeTarget(e);
+                double cost = costs[v] + edgeCosts[e];
+                if (cost < costs[adjacent]) {
+                    costs[adjacent] = cost;
+                    parents[adjacent] = v;
+                    pathLengths[adjacent] = pathLengths[v] + 1;
+                    if (pathLengths[adjacent] >= numVertices) {
+                        int[] cycle = findCycle(parents, adjacent);
+                        if (cycle != null) {
+                            throw new NegativeCycleException(cycle);
+                        }
+                    }
+                    if (!queued[adjacent]) {
+                        int tail = head + size;
+                        queue[tail >= numVertices ? tail - numVertices : tail] =
+                                adjacent;
+                        ++size;
+                        queued[adjacent] = true;
+                    }
+                }
+            }
+        }
+
+        return new ShortestPaths.ShortestPathsTree(costs, parents);
+    }
+
+    private static void checkArguments(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+        checkElementIndex(start, graph.getNumVertices(), "start");
+    }
+
+    // Returns any cycle formed by the parent links
+    private static int[] findCycle(int[] parents) {
+        for (int v = 0; v < parents.length; ++v) {
+            int[] cycle = findCycle(parents, v);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+
+        throw new IllegalStateException("no cycle in parent links");
+    }
+
+    // Returns the cycle reached by following parent links from v, or null if
+    // they end at a vertex with no parent
+    private static int[] findCycle(int[] parents, int v) {
+        int slow = v;
+        int fast = v;
+        do {
+            if (parents[fast] == -1 || parents[parents[fast]] == -1) {
+                return null;
+            }
+            fast = parents[parents[fast]];
+            slow = parents[slow];
+        } while (slow != fast);
+
+        // slow is on the cycle, list it in edge order (against the links)
+        int length = 1;
+        for (int u = parents[slow]; u != slow; u = parents[u]) {
+            ++length;
+        }
+        int[] cycle = new int[length];
+        int u = slow;
+        for (int i = length - 1; i >= 0; --i) {
+            cycle[i] = u;
+            u = parents[u];
+        }
+
+        return cycle;
+    }
+}
+
+
+//------------------------------------------------------------------------------
+// Parallel Shortest Paths: Delta-Stepping
+//------------------------------------------------------------------------------
+
+// Dijkstra settles one vertex at a time, in order, so it cannot use more than
+// one core. Bellman-Ford relaxes everything at once (easy to parallelize) but
+// does far more work.
+
+// Delta-stepping sits in between:
+// - Group the queued vertices into buckets of width delta by cost: bucket i
+// holds costs in [i * delta, (i + 1) * delta).
+// - Process the lowest non-empty bucket with all of its vertices in
+// parallel, Bellman-Ford style. Relaxing a light edge (cost <= delta) can put
+// a vertex back into the current bucket, so repeat until the bucket stays
+// empty. Heavy edges (cost > delta) always land in a later bucket, so they
+// are relaxed once, after the bucket is done.
+// - delta = infinity is Bellman-Ford, a tiny delta is Dijkstra. A good delta
+// is around the maximum edge cost divided by the average degree.
+// - Only buckets up to maxEdgeCost / delta ahead of the current one can be
+// non-empty, so the buckets are reused cyclically.
+// - A tiny delta would need millions of cyclic buckets per worker, so their
+// number is capped. A bucket then also holds vertices of later rounds of the
+// cycle, which stay in place until their round comes.
+
+// Avoiding locks:
+// - Each vertex is owned by one worker (v mod number of workers).
+// - Phase 1: workers scan the edges of their frontier vertices in parallel
+// and write relaxation requests (vertex, cost, parent) into a buffer per
+// owner of the target vertex.
+// - Phase 2: each owner applies the requests for its own vertices and files
+// them into its own buckets. Every array entry has exactly one writer per
+// phase, so no atomic operations are needed, and joining the fork-join tasks
+// publishes the writes to the next phase.
+
+// import java.util.Arrays;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+// import static com.google.common.base.Preconditions.*;
+
+public final class DeltaStepping {
+    // Most cyclic buckets per worker, smaller deltas share buckets
+    private static final int MAX_BUCKETS = 1 << 12;
+
+    private CsrGraph<?, ?> graph;
+    private double[] edgeCosts;
+    private double delta;
+    private ForkJoinPool pool;
+    private int numWorkers;
+    private int numBuckets;
+
+    private double[] costs;
+    private int[] parents;
+    private int[] lastProcessed;    // Phase a vertex was last expanded in
+    private int phase;
+    private int numPhases;          // Parallel phases run, light and heavy
+
+    // Per worker state
+    private IntList[][] buckets;    // [worker][bucket mod numBuckets]
+    private IntList[] frontiers;
+    private IntList[] settled;      // Removed from the current bucket
+    private Requests[][] requests;  // [source worker][target owner]
+
+    /**
+     * Generates shortest paths tree from start to all other vertices, using
+     * the threads of pool and a delta based on the costs. Edge costs must not
+     * be negative.
+     */
+    public static ShortestPaths.ShortestPathsTree computeShortestPaths(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+
+        return computeShortestPaths(graph, edgeCosts, start,
+                getDefaultDelta(graph, edgeCosts), pool);
+    }
+
+    /**
+     * Returns the delta used when none is given: the largest edge cost
+     * divided by the average degree.
+     */
+    public static double getDefaultDelta(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+
+        double maxCost = 0;
+        for (double cost : edgeCosts) {
+            maxCost = Math.max(maxCost, cost);
+        }
+        double averageDegree = graph.getNumVertices() == 0 ? 1
+                : (double) graph.getNumEdges() / graph.getNumVertices();
+        double delta = maxCost / Math.max(1, averageDegree);
+
+        return delta > 0 ? delta : 1;
+    }
+
+    /**
+     * Generates shortest paths tree from start to all other vertices, using
+     * the threads of pool and buckets of width delta. Edge costs must not be
+     * negative.
+     */
+    public static ShortestPaths.ShortestPathsTree computeShortestPaths(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            double delta,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkNotNull(pool, "pool must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+        checkElementIndex(start, graph.getNumVertices(), "start");
+        checkArgument(delta > 0, "delta must be positive");
+
+        DeltaStepping search = new DeltaStepping(graph, edgeCosts, delta, pool);
+        search.run(start);
+        return new ShortestPaths.ShortestPathsTree(search.costs, search.parents);
+    }
+
+    /**
+     * Returns the number of parallel phases a search from start runs. The
+     * threads wait for each other after every phase, so the number of
+     * vertices divided by the number of phases is the work shared out at a
+     * time, which bounds the speedup extra cores can give.
+     */
+    public static int countPhases(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int start,
+            double delta,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkNotNull(pool, "pool must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+        checkElementIndex(start, graph.getNumVertices(), "start");
+        checkArgument(delta > 0, "delta must be positive");
+
+        DeltaStepping search = new DeltaStepping(graph, edgeCosts, delta, pool);
+        search.run(start);
+        return search.numPhases;
+    }
+
+    private DeltaStepping(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            double delta,
+            ForkJoinPool pool) {
+        double maxCost = 0;
+        for (double cost : edgeCosts) {
+            checkArgument(cost >= 0, "edge costs must not be negative");
+            maxCost = Math.max(maxCost, cost);
+        }
+
+        this.graph = graph;
+        this.edgeCosts = edgeCosts;
+        this.delta = delta;
+        this.pool = pool;
+        numWorkers = pool.getParallelism();
+        numBuckets = (int) Math.min(maxCost / delta + 2, MAX_BUCKETS);
+
+        int numVertices = graph.getNumVertices();
+        costs = new double[numVertices];
+        parents = new int[numVertices];
+        lastProcessed = new int[numVertices];
+        Arrays.fill(costs, Double.MAX_VALUE);
+        Arrays.fill(parents, -1);
+        Arrays.fill(lastProcessed, -1);
+
+        buckets = new IntList[numWorkers][numBuckets];
+        frontiers = new IntList[numWorkers];
+        settled = new IntList[numWorkers];
+        requests = new Requests[numWorkers][numWorkers];
+        for (int w = 0; w < numWorkers; ++w) {
+            for (int b = 0; b < numBuckets; ++b) {
+                buckets[w][b] = new IntList();
+            }
+            frontiers[w] = new IntList();
+            settled[w] = new IntList();
+            for (int t = 0; t < numWorkers; ++t) {
+                requests[w][t] = new Requests();
+            }
+        }
+    }
+
+    private void run(int start) {
+        costs[start] = 0;
+        buckets[start % numWorkers][0].add(start);
+
+        long bucket = 0;
+        int numIdle = 0;  // Consecutive buckets with nothing to expand
+        while (true) {
+            if (numIdle == numBuckets) {
+                // A whole cycle held nothing of its round, jump ahead to the
+                // earliest vertex still queued
+                bucket = findNextBucket(bucket);
+                if (bucket == -1) {
+                    break;
+                }
+                numIdle = 0;
+            }
+
+            // Light edges may refill the current bucket, repeat until it
+            // holds no more vertices of this round
+            for (int w = 0; w < numWorkers; ++w) {
+                settled[w].clear();
+            }
+            boolean expanded = false;
+            while (takeFrontiers(bucket)) {
+                relax(true, frontiers);
+                expanded = true;
+            }
+
+            // Heavy edges of everything removed from the bucket, once
+            if (expanded) {
+                relax(false, settled);
+                numIdle = 0;
+            } else {
+                ++numIdle;
+            }
+            ++bucket;
+        }
+    }
+
+    // Earliest bucket from bucket on holding a queued vertex, -1 if none
+    private long findNextBucket(long bucket) {
+        long next = -1;
+        for (int w = 0; w < numWorkers; ++w) {
+            for (int b = 0; b < numBuckets; ++b) {
+                IntList entries = buckets[w][b];
+                for (int i = 0; i < entries.size; ++i) {
+                    long vertexBucket = bucketOf(costs[entries.items[i]]);
+                    if (vertexBucket >= bucket
+                            && (next == -1 || vertexBucket < next)) {
+                        next = vertexBucket;
+                    }
+                }
+            }
+        }
+
+        return next;
+    }
+
+    // Moves the vertices of the current bucket of each worker into its
+    // frontier, dropping stale entries (vertex since lowered into an earlier
+    // bucket) and duplicates, and keeping those of later rounds. Returns
+    // whether any frontier is non-empty
+    private boolean takeFrontiers(long bucket) {
+        int b = (int) (bucket % numBuckets);
+        boolean found = false;
+        ++phase;
+        for (int w = 0; w < numWorkers; ++w) {
+            IntList entries = buckets[w][b];
+            IntList frontier = frontiers[w];
+            frontier.clear();
+            int numKept = 0;
+            for (int i = 0; i < entries.size; ++i) {
+                int v = entries.items[i];
+                long vertexBucket = bucketOf(costs[v]);
+                if (vertexBucket == bucket && lastProcessed[v] != phase) {
+                    lastProcessed[v] = phase;
+                    frontier.add(v);
+                    settled[w].add(v);
+                } else if (vertexBucket > bucket) {
+                    entries.items[numKept++] = v;
+                }
+            }
+            entries.size = numKept;
+            found |= frontier.size > 0;
+        }
+
+        return found;
+    }
+
+    private long bucketOf(double cost) {
+        return (long) (cost / delta);
+    }
+
+    // Relaxes the light or heavy edges of the given vertices in two parallel
+    // phases: generate requests, then let each owner apply its own
+    private void relax(boolean light, IntList[] vertices) {
+        ++numPhases;
+        pool.invoke(new PhaseAction(true, light, vertices, 0, numWorkers));
+        pool.invoke(new PhaseAction(false, light, vertices, 0, numWorkers));
+    }
+
+    private void generateRequests(int worker, boolean light, IntList vertices) {
+        Requests[] buffers = requests[worker];
+        for (int i = 0; i < vertices.size; ++i) {
+            int v = vertices.items[i];
+            double cost = costs[v];
+            for (int e = graph.getEdgesBegin(v),
+                         end = graph.getEdgesEnd(v); e < end; ++e) {
+                if ((edgeCosts[e] <= delta) == light) {
+                    int adjacent = graph.getEdgeTarget(e);
+                    buffers[adjacent % numWorkers].add(
+                            adjacent, cost + edgeCosts[e], v);
+                }
+            }
+        }
+    }
+
+    private void applyRequests(int owner) {
+        IntList[] ownBuckets = buckets[owner];
+        for (int source = 0; source < numWorkers; ++source) {
+            Requests buffer = requests[source][owner];
+            for (int i = 0; i < buffer.size; ++i) {
+                int v = buffer.vertices[i];
+                double cost = buffer.costs[i];
+                if (cost < costs[v]) {
+                    costs[v] = cost;
+                    parents[v] = buffer.parents[i];
+                    ownBuckets[(int) (bucketOf(cost) % numBuckets)].add(v);
+                }
+            }
+            buffer.size = 0;
+        }
+    }
+
+    // Runs one phase for a range of workers, splitting the range in half
+    // until one worker remains
+    private final class PhaseAction extends RecursiveAction {
+        private boolean generate;
+        private boolean light;
+        private IntList[] vertices;
+        private int begin, end;
+
+        private PhaseAction(
+                boolean generate,
+                boolean light,
+                IntList[] vertices,
+                int begin,
+                int end) {
+            this.generate = generate;
+            this.light = light;
+            this.vertices = vertices;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > 1) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(
+                        new PhaseAction(generate, light, vertices, begin, middle),
+                        new PhaseAction(generate, light, vertices, middle, end));
+            } else if (generate) {
+                generateRequests(begin, light, vertices[begin]);
+            } else {
+                applyRequests(begin);
+            }
+        }
+    }
+
+    private static final class IntList {
+        private int[] items = new int[0];  // Most buckets stay empty
+        private int size;
+
+        private void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, Math.max(16, 2 * size));
+            }
+            items[size++] = item;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+    }
+
+    // Relaxation requests from one worker to one owner
+    private static final class Requests {
+        private int[] vertices = new int[16];
+        private double[] costs = new double[16];
+        private int[] parents = new int[16];
+        private int size;
+
+        private void add(int vertex, double cost, int parent) {
+            if (size == vertices.length) {
+                vertices = Arrays.copyOf(vertices, 2 * size);
+                costs = Arrays.copyOf(costs, 2 * size);
+                parents = Arrays.copyOf(parents, 2 * size);
+            }
+            vertices[size] = vertex;
+            costs[size] = cost;
+            parents[size] = parent;
+            ++size;
+        }
+    }
+}
+
+// Benchmark:
+// - Times Dijkstra and delta-stepping with 1, 2, 4, ... threads on a grid
+// with random costs, checking that the costs agree.
+// - Times Bellman-Ford rounds against the queue-based version on a grid
+// whose costs were shifted by random vertex potentials: c(u, v) + p(u) - p(v)
+// makes many edges negative, but every cycle keeps its (positive) cost.
+// - The thread counts go up to the number of processors, or to the third
+// argument. Measured on a single core, 1,000,000 vertices: Dijkstra ~0.3
+// seconds, delta-stepping ~0.4 seconds whatever the thread count, so the
+// bucket overhead is about 40% and any speedup has to come from extra cores.
+// - A single core cannot show that speedup, so the benchmark also counts the
+// phases for a range of deltas. Every phase ends with all threads waiting for
+// each other, so the vertices per phase bound the useful thread count. With
+// the default delta (~2.5) the 1,000,000 vertex grid runs ~7,700 phases of
+// ~130 vertices each; 10 times the delta gives ~3,100 phases of ~330
+// vertices, and a hundredth of it ~430,000 phases of 2 vertices. A phase of ~100 vertices is a few microseconds of work, close
+// to the cost of waking the threads, so on this grid extra cores pay off
+// only with a larger delta (more re-relaxed vertices, fewer phases) or a
+// larger graph.
+// - 90,000 vertices with a quarter of the edges negative: Bellman-Ford
+// rounds ~0.3 seconds, queue-based ~0.05 seconds.
+
+// import java.util.Arrays;
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class DeltaSteppingBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int negativeSide = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        CsrGraph<Object, Object> grid =
+                ShortestPathsBenchmark.buildGrid(side, side);
+        double[] costs = ShortestPathsBenchmark.randomCosts(grid.getNumEdges(), 42);
+
+        long start = System.nanoTime();
+        ShortestPaths.ShortestPathsTree expected =
+                ShortestPaths.computeShortestPaths(grid, costs, 0);
+        long stop = System.nanoTime();
+        System.out.println(grid.getNumVertices() + " vertices, Dijkstra took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        // Work per phase bounds the speedup, whatever the core count here
+        ForkJoinPool single = new ForkJoinPool(1);
+        for (double scale : new double[] {0.01, 0.1, 1, 10}) {
+            double delta = scale * DeltaStepping.getDefaultDelta(grid, costs);
+            int numPhases = DeltaStepping.countPhases(
+                    grid, costs, 0, delta, single);
+            System.out.println("Delta " + delta + ": " + numPhases
+                    + " phases, " + grid.getNumVertices() / numPhases
+                    + " vertices per phase on average.");
+        }
+        single.shutdown();
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            start = System.nanoTime();
+            ShortestPaths.ShortestPathsTree tree =
+                    DeltaStepping.computeShortestPaths(grid, costs, 0, pool);
+            stop = System.nanoTime();
+            pool.shutdown();
+            System.out.println("Delta-stepping with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds, costs match: "
+                    + Arrays.equals(tree.getCosts(), expected.getCosts()));
+        }
+
+        // Negative costs without negative cycles
+        CsrGraph<Object, Object> small =
+                ShortestPathsBenchmark.buildGrid(negativeSide, negativeSide);
+        double[] shifted = ShortestPathsBenchmark.randomCosts(
+                small.getNumEdges(), 42);
+        Random random = new Random(7);
+        double[] potentials = new double[small.getNumVertices()];
+        for (int v = 0; v < potentials.length; ++v) {
+            potentials[v] = 20 * random.nextDouble();
+        }
+        int numNegative = 0;
+        for (int v = 0; v < small.getNumVertices(); ++v) {
+            for (int e = small.getEdgesBegin(v); e < small.getEdgesEnd(v); ++e) {
+                shifted[e] += potentials[v] - potentials[small.getEdgeTarget(e)];
+                if (shifted[e] < 0) {
+                    ++numNegative;
+                }
+            }
+        }
+        System.out.println(small.getNumVertices() + " vertices, "
+                + numNegative + " of " + small.getNumEdges()
+                + " edges negative.");
+
+        // Start in the middle, from a corner the rounds follow the vertex
+        // order and finish unrealistically fast
+        int middle = small.getNumVertices() / 2 + negativeSide / 2;
+        start = System.nanoTime();
+        BellmanFord.computeShortestPaths(small, shifted, middle);
+        stop = System.nanoTime();
+        System.out.println("Bellman-Ford took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        start = System.nanoTime();
+        BellmanFord.computeShortestPathsQueued(small, shifted, middle);
+        stop = System.nanoTime();
+        System.out.println("Queue-based Bellman-Ford took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+    }
+}
+
+
+//------------------------------------------------------------------------------
+// Point-to-Point Search
+//------------------------------------------------------------------------------
+
+// - Most routing queries ask for one path from A to B, not the whole tree.
+// Dijkstra with early exit still explores a disc around A whose radius is
+// the distance to B.
+// - Allocating and filling cost/parent arrays of size V for every query also
+// costs O(V) before the search even starts. A reusable search object keeps
+// its arrays between queries and only resets the entries a query touched.
+
+// Bidirectional Dijkstra:
+// - Search forwards from A and backwards from B (over the reversed graph) at
+// the same time, always advancing the side whose next vertex is cheaper.
+// - Whenever an edge reaches a vertex already reached by the other side, a
+// complete A to B path is known, keep the cheapest one (mu).
+// - Stop once the two smallest queued costs add up to at least mu: no path
+// through an unsettled vertex can be cheaper.
+// - Two discs of half the radius cover about half the area of one full disc.
+
+// A* Search:
+// - Dijkstra ordered by cost so far + an estimate of the remaining cost to B.
+// - The estimate (heuristic) must be admissible, i.e. never overestimate the
+// true remaining cost, or the first path found may not be the shortest.
+// - On a map, straight-line (Euclidean) distance times the lowest cost per
+// unit of distance is admissible because no road is shorter than a straight
+// line. The search is pulled towards B and explores a narrow ellipse.
+// - A heuristic of 0 turns A* back into Dijkstra.
+
+// import java.util.Arrays;
+// import static com.google.common.base.Preconditions.*;
+
+/**
+ * Reusable single source, single target shortest path search. Not thread
+ * safe, use one instance per thread.
+ */
+public final class PointToPointSearch {
+    /**
+     * Lower bound on the cost of the cheapest path from v to target.
+     */
+    public interface Heuristic {
+        double estimate(int v, int target);
+    }
+
+    /**
+     * Straight-line distance scaled by the lowest cost per unit distance.
+     */
+    public static final class EuclideanHeuristic implements Heuristic {
+        private double[] x, y;
+        private double costPerUnit;
+
+        public EuclideanHeuristic(double[] x, double[] y, double costPerUnit) {
+            checkNotNull(x, "x must not be null");
+            checkNotNull(y, "y must not be null");
+            checkArgument(x.length == y.length, "x and y must be same length");
+            checkArgument(costPerUnit >= 0, "costPerUnit must not be negative");
+
+            this.x = x;
+            this.y = y;
+            this.costPerUnit = costPerUnit;
+        }
+
+        /**
+         * Uses the coordinates of each city in the graph.
+         */
+        public static EuclideanHeuristic fromCities(
+                CsrGraph<ShortestPaths.City, ?> graph,
+                double costPerUnit) {
+            checkNotNull(graph, "graph must not be null");
+
+            double[] x = new double[graph.getNumVertices()];
+            double[] y = new double[graph.getNumVertices()];
+            for (int v = 0; v < x.length; ++v) {
+                x[v] = graph.getVertexData(v).getX();
+                y[v] = graph.getVertexData(v).getY();
+            }
+
+            return new EuclideanHeuristic(x, y, costPerUnit);
+        }
+
+        public double estimate(int v, int target) {
+            double dx = x[v] - x[target];
+            double dy = y[v] - y[target];
+            return costPerUnit * Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /**
+     * Result of one query.
+     */
+    public static final class Route {
+        private double cost;
+        private int[] path;
+        private int numSettled;
+
+        Route(double cost, int[] path, int numSettled) {
+            this.cost = cost;
+            this.path = path;
+            this.numSettled = numSettled;
+        }
+
+        /**
+         * Cost of the path, Double.MAX_VALUE if target is unreachable.
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        /**
+         * Vertices from start to target, empty if target is unreachable.
+         */
+        public int[] getPath() {
+            return path;
+        }
+
+        /**
+         * Number of vertices settled (extracted from a queue) by the query.
+         */
+        public int getNumSettled() {
+            return numSettled;
+        }
+    }
+
+    private CsrGraph<?, ?> graph;
+    private double[] costs;
+    private CsrGraph<?, ?> reversed;
+    private double[] reversedCosts;
+
+    // Per-query state, reset through the touched list after each query
+    private double[] forwardCosts, backwardCosts;
+    private int[] forwardParents, backwardParents;
+    private IndexedMinPriorityQueue forwardQueue, backwardQueue;
+    private int[] touched;
+    private int numTouched;
+
+    public PointToPointSearch(CsrGraph<?, ?> graph, double[] edgeCosts) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+
+        this.graph = graph;
+        this.costs = edgeCosts;
+
+        int numVertices = graph.getNumVertices();
+        forwardCosts = new double[numVertices];
+        backwardCosts = new double[numVertices];
+        forwardParents = new int[numVertices];
+        backwardParents = new int[numVertices];
+        Arrays.fill(forwardCosts, Double.MAX_VALUE);
+        Arrays.fill(backwardCosts, Double.MAX_VALUE);
+        Arrays.fill(forwardParents, -1);
+        Arrays.fill(backwardParents, -1);
+        forwardQueue = new IndexedMinPriorityQueue(numVertices);
+        backwardQueue = new IndexedMinPriorityQueue(numVertices);
+        touched = new int[numVertices];
+    }
+
+    /**
+     * Unidirectional Dijkstra, stopping once target is settled.
+     */
+    public Route findDijkstra(int start, int target) {
+        return findAStar(start, target, null);
+    }
+
+    /**
+     * A* search guided by an admissible heuristic (null for none).
+     */
+    public Route findAStar(int start, int target, Heuristic heuristic) {
+        checkQuery(start, target);
+
+        touch(start);
+        forwardCosts[start] = 0;
+        forwardQueue.insert(start, estimate(heuristic, start, target));
+
+        int numSettled = 0;
+        while (!forwardQueue.isEmpty()) {
+            int selected = forwardQueue.extract();
+            ++numSettled;
+            if (selected == target) {
+                break;
+            }
+
+            double selectedCost = forwardCosts[selected];
+            for (int e = graph.getEdgesBegin(selected),
+                         end = graph.getEdgesEnd(selected); e < end; ++e) {
+                int adjacent = graph.getEdgeTarget(e);
+                double cost = selectedCost + costs[e];
+                if (cost < forwardCosts[adjacent]) {
+                    if (forwardCosts[adjacent] == Double.MAX_VALUE) {
+                        touch(adjacent);
+                    }
+                    forwardCosts[adjacent] = cost;
+                    forwardParents[adjacent] = selected;
+
+                    // A vertex settled earlier is re-queued if the
+                    // heuristic was admissible but not consistent
+                    forwardQueue.insertOrDecrease(
+                            adjacent, cost + estimate(heuristic, adjacent, target));
+                }
+            }
+        }
+
+        Route route = buildRoute(start, target, target, forwardCosts[target],
+                numSettled);
+        reset();
+        return route;
+    }
+
+    /**
+     * Bidirectional Dijkstra, stopping once the two searches have met and no
+     * cheaper meeting point can exist.
+     */
+    public Route findBidirectional(int start, int target) {
+        checkQuery(start, target);
+
+        // The reversed graph is only built if bidirectional queries are used
+        if (reversed == null) {
+            reversed = graph.reverse();
+            reversedCosts = new double[costs.length];
+            for (int e = 0; e < reversedCosts.length; ++e) {
+                reversedCosts[e] = costs[reversed.getOriginalEdge(e)];
+            }
+        }
+
+        touch(start);
+        forwardCosts[start] = 0;
+        forwardQueue.insert(start, 0);
+        if (target != start) {
+            touch(target);
+        }
+        backwardCosts[target] = 0;
+        backwardQueue.insert(target, 0);
+
+        double best = start == target ? 0 : Double.MAX_VALUE;
+        int meeting = start == target ? start : -1;
+        int numSettled = 0;
+        while (!forwardQueue.isEmpty() && !backwardQueue.isEmpty()) {
+            // No unsettled vertex can lie on a path cheaper than best
+            double forwardMin = forwardQueue.getPriority(forwardQueue.peek());
+            double backwardMin = backwardQueue.getPriority(backwardQueue.peek());
+            if (forwardMin + backwardMin >= best) {
+                break;
+            }
+
+            // Advance the side with the cheaper next vertex
+            boolean forward = forwardMin <= backwardMin;
+            CsrGraph<?, ?> side = forward ? graph : reversed;
+            double[] sideCosts = forward ? costs : reversedCosts;
+            double[] reached = forward ? forwardCosts : backwardCosts;
+            double[] otherReached = forward ? backwardCosts : forwardCosts;
+            int[] parents = forward ? forwardParents : backwardParents;
+            IndexedMinPriorityQueue queue = forward ? forwardQueue : backwardQueue;
+
+            int selected = queue.extract();
+            ++numSettled;
+            double selectedCost = reached[selected];
+            for (int e = side.getEdgesBegin(selected),
+                         end = side.getEdgesEnd(selected); e < end; ++e) {
+                int adjacent = side.getEdgeTarget(e);
+                double cost = selectedCost + sideCosts[e];
+                if (cost < reached[adjacent]) {
+                    if (forwardCosts[adjacent] == Double.MAX_VALUE
+                            && backwardCosts[adjacent] == Double.MAX_VALUE) {
+                        touch(adjacent);
+                    }
+                    reached[adjacent] = cost;
+                    parents[adjacent] = selected;
+                    queue.insertOrDecrease(adjacent, cost);
+                }
+
+                // Reached a vertex the other side has also reached
+                if (otherReached[adjacent] != Double.MAX_VALUE
+                        && reached[adjacent] + otherReached[adjacent] < best) {
+                    best = reached[adjacent] + otherReached[adjacent];
+                    meeting = adjacent;
+                }
+            }
+        }
+
+        Route route = buildRoute(start, target, meeting, best, numSettled);
+        reset();
+        return route;
+    }
+
+    private void checkQuery(int start, int target) {
+        checkElementIndex(start, graph.getNumVertices(), "start");
+        checkElementIndex(target, graph.getNumVertices(), "target");
+    }
+
+    private static double estimate(Heuristic heuristic, int v, int target) {
+        return heuristic == null ? 0 : heuristic.estimate(v, target);
+    }
+
+    private void touch(int v) {
+        touched[numTouched++] = v;
+    }
+
+    // Joins the forward path start..meeting with the backward path
+    // meeting..target
+    private Route buildRoute(
+            int start,
+            int target,
+            int meeting,
+            double cost,
+            int numSettled) {
+        if (meeting == -1 || cost == Double.MAX_VALUE) {
+            return new Route(Double.MAX_VALUE, new int[0], numSettled);
+        }
+
+        int length = 0;
+        for (int v = meeting; v != -1; v = forwardParents[v]) {
+            ++length;
+        }
+        for (int v = backwardParents[meeting]; v != -1; v = backwardParents[v]) {
+            ++length;
+        }
+
+        int[] path = new int[length];
+        int i = 0;
+        for (int v = meeting; v != -1; v = forwardParents[v]) {
+            path[i++] = v;
+        }
+        for (int left = 0, right = i - 1; left < right; ++left, --right) {
+            int temp = path[left];
+            path[left] = path[right];
+            path[right] = temp;
+        }
+        for (int v = backwardParents[meeting]; v != -1; v = backwardParents[v]) {
+            path[i++] = v;
+        }
+
+        return new Route(cost, path, numSettled);
+    }
+
+    // Restores the per-query state in O(vertices touched)
+    private void reset() {
+        for (int i = 0; i < numTouched; ++i) {
+            int v = touched[i];
+            forwardCosts[v] = Double.MAX_VALUE;
+            backwardCosts[v] = Double.MAX_VALUE;
+            forwardParents[v] = -1;
+            backwardParents[v] = -1;
+        }
+        numTouched = 0;
+        forwardQueue.clear();
+        backwardQueue.clear();
+    }
+}
+
+// Benchmark:
+// - A road network is close to a planar grid: every intersection connects to
+// a handful of neighbours. The benchmark builds a width x height grid with
+// random costs directly in CSR form (no Graph objects), then times a full
+// shortest paths tree and a single-target query.
+// - It then times point-to-point queries between random vertices on the grid
+// and on a road-like graph (jittered intersections, cost = length times a
+// random slowdown) for Dijkstra, bidirectional Dijkstra and A*.
+// - Sample run (1,000 x 1,000, random start and target, settled vertices per
+// query): grid Dijkstra 480K, bidirectional 330K, A* 370K; roads Dijkstra
+// 480K, bidirectional 330K, A* 260K. Latency follows the settled counts.
+// - Sample run (1,000 x 1,000 grid): full tree ~0.5 seconds.
+// - Pass the grid side as an argument, e.g. 3163 for a 10M-vertex graph
+// (needs roughly -Xmx2g): full tree ~7 seconds.
+
+// import java.util.Random;
+
+public class ShortestPathsBenchmark {
+    /**
+     * Builds a width x height grid where each vertex connects to its
+     * horizontal and vertical neighbours in both directions.
+     */
+    public static CsrGraph<Object, Object> buildGrid(int width, int height) {
+        int numVertices = width * height;
+        int[] edgeOffsets = new int[numVertices + 1];
+        int[] edgeTargets = new int[4 * numVertices];
+
+        int e = 0;
+        for (int v = 0; v < numVertices; ++v) {
+            int x = v % width;
+            int y = v / width;
+            edgeOffsets[v] = e;
+            if (x > 0) edgeTargets[e++] = v - 1;
+            if (x < width - 1) edgeTargets[e++] = v + 1;
+            if (y > 0) edgeTargets[e++] = v - width;
+            if (y < height - 1) edgeTargets[e++] = v + width;
+        }
+        edgeOffsets[numVertices] = e;
+
+        return new CsrGraph<Object, Object>(
+                edgeOffsets, Arrays.copyOf(edgeTargets, e));
+    }
+
+    /**
+     * Returns a random cost between 1 and 10 for each edge.
+     */
+    public static double[] randomCosts(int numEdges, long seed) {
+        Random random = new Random(seed);
+        double[] costs = new double[numEdges];
+        for (int e = 0; e < numEdges; ++e) {
+            costs[e] = 1 + 9 * random.nextDouble();
+        }
+
+        return costs;
+    }
+
+    /**
+     * Returns the x (index 0) and y (index 1) coordinates of each grid
+     * vertex, each moved randomly by up to jitter in both directions.
+     */
+    public static double[][] gridCoordinates(
+            int width,
+            int height,
+            double jitter,
+            long seed) {
+        Random random = new Random(seed);
+        double[][] coordinates = new double[2][width * height];
+        for (int v = 0; v < width * height; ++v) {
+            coordinates[0][v] = v % width + jitter * (2 * random.nextDouble() - 1);
+            coordinates[1][v] = v / width + jitter * (2 * random.nextDouble() - 1);
+        }
+
+        return coordinates;
+    }
+
+    /**
+     * Returns the straight-line length of each edge times a random slowdown
+     * between 1 and maxSlowdown, like roads with different speed limits.
+     */
+    public static double[] lengthCosts(
+            CsrGraph<?, ?> graph,
+            double[][] coordinates,
+            double maxSlowdown,
+            long seed) {
+        Random random = new Random(seed);
+        double[] costs = new double[graph.getNumEdges()];
+        for (int v = 0; v < graph.getNumVertices(); ++v) {
+            for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                int w = graph.getEdgeTarget(e);
+                double dx = coordinates[0][v] - coordinates[0][w];
+                double dy = coordinates[1][v] - coordinates[1][w];
+                costs[e] = Math.sqrt(dx * dx + dy * dy)
+                        * (1 + (maxSlowdown - 1) * random.nextDouble());
+            }
+        }
+
+        return costs;
+    }
+
+    // Times the same random queries with each point-to-point mode
+    private static void timeQueries(
+            String name,
+            CsrGraph<?, ?> graph,
+            double[] costs,
+            double[][] coordinates,
+            int queries) {
+        final double NANO_SECONDS_PER_MICRO_SECOND = 1000;
+
+        PointToPointSearch search = new PointToPointSearch(graph, costs);
+        PointToPointSearch.Heuristic heuristic =
+                new PointToPointSearch.EuclideanHeuristic(
+                        coordinates[0], coordinates[1], 1.0);
+        Random random = new Random(7);
+        int[] starts = new int[queries];
+        int[] targets = new int[queries];
+        for (int i = 0; i < queries; ++i) {
+            starts[i] = random.nextInt(graph.getNumVertices());
+            targets[i] = random.nextInt(graph.getNumVertices());
+        }
+
+        String[] modes = {"Dijkstra", "Bidirectional", "A*"};
+        for (int mode = 0; mode < modes.length; ++mode) {
+            long settled = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; ++i) {
+                PointToPointSearch.Route route;
+                if (mode == 0) {
+                    route = search.findDijkstra(starts[i], targets[i]);
+                } else if (mode == 1) {
+                    route = search.findBidirectional(starts[i], targets[i]);
+                } else {
+                    route = search.findAStar(starts[i], targets[i], heuristic);
+                }
+                settled += route.getNumSettled();
+            }
+            long stop = System.nanoTime();
+
+            System.out.println(name + " " + modes[mode] + ": "
+                    + (stop - start) / NANO_SECONDS_PER_MICRO_SECOND / queries
+                    + " microseconds/query, "
+                    + settled / queries + " vertices settled/query.");
+        }
+    }
+
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        CsrGraph<Object, Object> grid = buildGrid(side, side);
+        double[] costs = randomCosts(grid.getNumEdges(), 42);
+        Random random = new Random(7);
+
+        // Full shortest paths tree from a corner
+        long start = System.nanoTime();
+        ShortestPaths.computeShortestPaths(grid, costs, 0);
+        long stop = System.nanoTime();
+        System.out.println(grid.getNumVertices() + " vertices, full tree took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        // Single-target queries between random vertices
+        int queries = 20;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; ++i) {
+            ShortestPaths.computeShortestPath(grid, costs,
+                    random.nextInt(grid.getNumVertices()),
+                    random.nextInt(grid.getNumVertices()));
+        }
+        stop = System.nanoTime();
+        System.out.println("Single-target query took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND / queries
+                + " seconds on average.");
+
+        // Point-to-point modes; costs are at least 1 per unit of distance so
+        // the Euclidean heuristic is admissible
+        timeQueries("Grid", grid, costs,
+                gridCoordinates(side, side, 0, 42), 20);
+        double[][] coordinates = gridCoordinates(side, side, 0.4, 42);
+        timeQueries("Roads", grid,
+                lengthCosts(grid, coordinates, 3.0, 42), coordinates, 20);
+    }
+}
+
+
+//------------------------------------------------------------------------------
+// Contraction Hierarchies
+//------------------------------------------------------------------------------
+
+// When the graph rarely changes but is queried millions of times, it pays to
+// do expensive work once (preprocessing) so each query is tiny.
+
+// Contraction:
+// - Order the vertices by "importance" (a local street is unimportant, a
+// motorway junction is important).
+// - Remove (contract) the vertices one at a time, least important first.
+// When v is removed, every shortest path u -> v -> w between remaining
+// neighbours must survive, so a shortcut edge u -> w with cost
+// c(u, v) + c(v, w) is added, remembering v as its middle vertex.
+// - A shortcut is unnecessary if a witness path u -> w that avoids v and is no
+// more expensive exists. A small Dijkstra search from u (limited in cost, in
+// vertices settled and in hops, i.e. edges on the witness path) looks for
+// one. Missing a witness only adds a redundant shortcut, it never breaks
+// correctness, but every redundant shortcut makes the graph denser, later
+// contractions slower and queries scan more edges. Witnesses are almost
+// always a few hops long, so a hop limit keeps the search small while a
+// generous settle limit still finds them.
+// - Each vertex's rank is its position in the contraction order.
+
+// Node ordering:
+// - Contract first the vertices whose removal adds the fewest shortcuts
+// relative to the edges it removes (edge difference), plus the number of
+// neighbours already contracted so contraction spreads evenly over the graph,
+// plus the vertex's level (the longest chain of contracted vertices below it)
+// so the hierarchy stays shallow.
+// - Priorities change as neighbours are contracted. The neighbours of a
+// contracted vertex are updated right away, and lazy updates recompute a
+// vertex's priority when it reaches the front of the queue and put it back
+// if it is no longer the smallest.
+// - Priorities are only estimates, so their witness searches settle far
+// fewer vertices than the searches made during the actual contraction.
+// - Each edge is kept in its source's outgoing and its target's incoming
+// arrays, and each copy records the position of the other. Removing a
+// contracted vertex's edges, or lowering the cost of an edge from both sides,
+// then takes constant time instead of a scan of the neighbour's edges, which
+// matters once the upper levels grow hundreds of edges per vertex.
+
+// Query:
+// - Every shortest path can be rewritten (using shortcuts) so it first only
+// goes up in rank and then only goes down.
+// - Run a bidirectional Dijkstra where the forward search only follows edges
+// to higher ranked vertices and the backward search does the same on the
+// reversed graph. Both searches stay in a tiny "upward" part of the graph,
+// typically a few hundred vertices even for road networks with millions.
+// - Stall on demand: a vertex reached more cheaply through a higher ranked
+// neighbour cannot be on a shortest path, so its edges are not followed.
+// - The best meeting vertex gives the cost. The path is recovered by
+// recursively replacing each shortcut with its two halves.
+
+// Index file:
+// - The upward graphs are stored in CSR form (offsets, targets, costs and
+// middle vertices) and written with NIO buffers, so loading is a handful of
+// bulk reads rather than rebuilding from the original graph.
+// - Each vertex's edges are sorted by target. After building or loading,
+// each shortcut's two halves are found once by binary search and kept as
+// edge numbers, so unpacking a path looks nothing up.
+
+// Re-contraction:
+// - When edge costs change (e.g. traffic) but the road layout does not, the
+// expensive part, choosing the order, can be skipped: contract again with
+// the previous order and the new costs. The result is still correct, only
+// possibly a little less efficient than a freshly ordered hierarchy.
+
+// Usage with the ShortestPaths city graph:
+// CsrGraph<City, Connection> csr = CsrGraph.fromGraph(graph);
+// ContractionHierarchy hierarchy = ContractionHierarchy.build(
+//         csr, ShortestPaths.getConnectionCosts(csr));
+// hierarchy.newQuery().findShortestPath(
+//         csr.indexOf(from), csr.indexOf(to));
+
+// import java.io.IOException;
+// import java.nio.ByteBuffer;
+// import java.nio.channels.FileChannel;
+// import java.nio.file.Path;
+// import java.nio.file.StandardOpenOption;
+// import java.util.Arrays;
+// import static com.google.common.base.Preconditions.*;
+
+public final class ContractionHierarchy {
+    private static final int MAGIC = 0x43484958;        // "CHIX"
+    private static final int VERSION = 2;
+
+    private int[] ranks;                // Contraction position of each vertex
+
+    // Edges (original and shortcuts) to higher ranked vertices, by source
+    private int[] forwardOffsets;
+    private int[] forwardTargets;
+    private double[] forwardCosts;
+    private int[] forwardMiddles;       // Contracted middle vertex, -1 if none
+
+    // Edges from higher ranked vertices, by target (i.e. reversed)
+    private int[] backwardOffsets;
+    private int[] backwardTargets;
+    private double[] backwardCosts;
+    private int[] backwardMiddles;
+
+    // Hierarchy edges are numbered forward edges first, then backward edges.
+    // The numbers of the two halves of each shortcut, -1 for original edges
+    private int[] firstHalves;
+    private int[] secondHalves;
+
+    private ContractionHierarchy() {
+    }
+
+    /**
+     * Chooses a contraction order and builds the hierarchy.
+     */
+    public static ContractionHierarchy build(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts) {
+        checkGraph(graph, edgeCosts);
+
+        return new Contractor(graph, edgeCosts).contract(null);
+    }
+
+    /**
+     * Builds the hierarchy contracting vertices in a previously computed
+     * order, e.g. after edge costs changed.
+     */
+    public static ContractionHierarchy build(
+            CsrGraph<?, ?> graph,
+            double[] edgeCosts,
+            int[] order) {
+        checkGraph(graph, edgeCosts);
+        checkNotNull(order, "order must not be null");
+        checkArgument(order.length == graph.getNumVertices(),
+                "order must hold every vertex");
+
+        return new Contractor(graph, edgeCosts).contract(order);
+    }
+
+    private static void checkGraph(CsrGraph<?, ?> graph, double[] edgeCosts) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(edgeCosts, "edgeCosts must not be null");
+        checkArgument(edgeCosts.length == graph.getNumEdges(),
+                "edgeCosts must hold one cost per edge");
+    }
+
+    public int getNumVertices() {
+        return ranks.length;
+    }
+
+    /**
+     * Returns the number of upward edges (original edges plus shortcuts).
+     */
+    public int getNumEdges() {
+        return forwardTargets.length + backwardTargets.length;
+    }
+
+    /**
+     * Returns the vertices in the order they were contracted.
+     */
+    public int[] getContractionOrder() {
+        int[] order = new int[ranks.length];
+        for (int v = 0; v < ranks.length; ++v) {
+            order[ranks[v]] = v;
+        }
+
+        return order;
+    }
+
+    /**
+     * Creates a query engine. Each thread needs its own.
+     */
+    public Query newQuery() {
+        return new Query();
+    }
+
+    // =========================== Index file methods ===========================
+    public void save(Path file) throws IOException {
+        checkNotNull(file, "file must not be null");
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            writeInts(channel, buffer, new int[] {
+                    MAGIC,
+                    VERSION,
+                    ranks.length,
+                    forwardTargets.length,
+                    backwardTargets.length});
+            writeInts(channel, buffer, ranks);
+            writeInts(channel, buffer, forwardOffsets);
+            writeInts(channel, buffer, forwardTargets);
+            writeDoubles(channel, buffer, forwardCosts);
+            writeInts(channel, buffer, forwardMiddles);
+            writeInts(channel, buffer, backwardOffsets);
+            writeInts(channel, buffer, backwardTargets);
+            writeDoubles(channel, buffer, backwardCosts);
+            writeInts(channel, buffer, backwardMiddles);
+        }
+    }
+
+    public static ContractionHierarchy load(Path file) throws IOException {
+        checkNotNull(file, "file must not be null");
+
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            int[] header = readInts(channel, buffer, 5);
+            if (header[0] != MAGIC || header[1] != VERSION) {
+                throw new IOException("not a contraction hierarchy index");
+            }
+            int numVertices = header[2];
+            int numForward = header[3];
+            int numBackward = header[4];
+
+            ContractionHierarchy hierarchy = new ContractionHierarchy();
+            hierarchy.ranks = readInts(channel, buffer, numVertices);
+            hierarchy.forwardOffsets = readInts(channel, buffer, numVertices + 1);
+            hierarchy.forwardTargets = readInts(channel, buffer, numForward);
+            hierarchy.forwardCosts = readDoubles(channel, buffer, numForward);
+            hierarchy.forwardMiddles = readInts(channel, buffer, numForward);
+            hierarchy.backwardOffsets = readInts(channel, buffer, numVertices + 1);
+            hierarchy.backwardTargets = readInts(channel, buffer, numBackward);
+            hierarchy.backwardCosts = readDoubles(channel, buffer, numBackward);
+            hierarchy.backwardMiddles = readInts(channel, buffer, numBackward);
+            hierarchy.linkHalves();
+            return hierarchy;
+        }
+    }
+
+    private static void writeInts(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int[] values) throws IOException {
+        for (int i = 0; i < values.length; ) {
+            int count = Math.min(values.length - i, buffer.capacity() / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, i, count);
+            buffer.limit(count * 4);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            i += count;
+        }
+    }
+
+    private static void writeDoubles(
+            FileChannel channel,
+            ByteBuffer buffer,
+            double[] values) throws IOException {
+        for (int i = 0; i < values.length; ) {
+            int count = Math.min(values.length - i, buffer.capacity() / 8);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(values, i, count);
+            buffer.limit(count * 8);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            i += count;
+        }
+    }
+
+    private static int[] readInts(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int length) throws IOException {
+        int[] values = new int[length];
+        for (int i = 0; i < length; ) {
+            int count = Math.min(length - i, buffer.capacity() / 4);
+            fill(channel, buffer, count * 4);
+            buffer.asIntBuffer().get(values, i, count);
+            i += count;
+        }
+
+        return values;
+    }
+
+    private static double[] readDoubles(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int length) throws IOException {
+        double[] values = new double[length];
+        for (int i = 0; i < length; ) {
+            int count = Math.min(length - i, buffer.capacity() / 8);
+            fill(channel, buffer, count * 8);
+            buffer.asDoubleBuffer().get(values, i, count);
+            i += count;
+        }
+
+        return values;
+    }
+
+    // Reads exactly numBytes into the start of buffer
+    private static void fill(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int numBytes) throws IOException {
+        buffer.clear();
+        buffer.limit(numBytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("truncated contraction hierarchy index");
+            }
+        }
+        buffer.flip();
+    }
+
+    // ============================= Query engine =============================
+    /**
+     * Reusable query engine. Not thread safe, use one per thread.
+     */
+    public final class Query {
+        private double[] forwardReached, backwardReached;
+        private int[] forwardParents, backwardParents;
+        private int[] forwardParentEdges, backwardParentEdges;
+        private IndexedMinPriorityQueue forwardQueue, backwardQueue;
+        private int[] touched;
+        private int numTouched;
+
+        // Cheapest path found so far and the vertex where its halves meet
+        private double best;
+        private int meeting;
+
+        private Query() {
+            int numVertices = ranks.length;
+            forwardReached = new double[numVertices];
+            backwardReached = new double[numVertices];
+            forwardParents = new int[numVertices];
+            backwardParents = new int[numVertices];
+            forwardParentEdges = new int[numVertices];
+            backwardParentEdges = new int[numVertices];
+            Arrays.fill(forwardReached, Double.MAX_VALUE);
+            Arrays.fill(backwardReached, Double.MAX_VALUE);
+            forwardQueue = new IndexedMinPriorityQueue(numVertices);
+            backwardQueue = new IndexedMinPriorityQueue(numVertices);
+            touched = new int[numVertices];
+        }
+
+        public PointToPointSearch.Route findShortestPath(int start, int target) {
+            checkElementIndex(start, ranks.length, "start");
+            checkElementIndex(target, ranks.length, "target");
+
+            best = Double.MAX_VALUE;
+            meeting = -1;
+            reach(forwardReached, forwardParents, forwardParentEdges,
+                    forwardQueue, start, 0, -1, -1);
+            reach(backwardReached, backwardParents, backwardParentEdges,
+                    backwardQueue, target, 0, -1, -1);
+
+            int numSettled = 0;
+            while (true) {
+                // Each side stops once it cannot improve on the best path
+                boolean forwardDone = forwardQueue.isEmpty()
+                        || forwardQueue.getPriority(forwardQueue.peek()) >= best;
+                boolean backwardDone = backwardQueue.isEmpty()
+                        || backwardQueue.getPriority(backwardQueue.peek()) >= best;
+                if (forwardDone && backwardDone) {
+                    break;
+                }
+                boolean forward = backwardDone || (!forwardDone
+                        && forwardQueue.getPriority(forwardQueue.peek())
+                                <= backwardQueue.getPriority(backwardQueue.peek()));
+
+                // Settle the next vertex on the chosen side
+                if (forward) {
+                    settle(forwardReached, forwardParents, forwardParentEdges,
+                            forwardQueue, 0,
+                            forwardOffsets, forwardTargets, forwardCosts,
+                            backwardOffsets, backwardTargets, backwardCosts);
+                } else {
+                    settle(backwardReached, backwardParents, backwardParentEdges,
+                            backwardQueue, forwardTargets.length,
+                            backwardOffsets, backwardTargets, backwardCosts,
+                            forwardOffsets, forwardTargets, forwardCosts);
+                }
+                ++numSettled;
+            }
+
+            PointToPointSearch.Route route = meeting == -1
+                    ? new PointToPointSearch.Route(
+                            Double.MAX_VALUE, new int[0], numSettled)
+                    : new PointToPointSearch.Route(
+                            best, unpack(meeting), numSettled);
+            reset();
+            return route;
+        }
+
+        // Edge e of this side's arrays is hierarchy edge firstEdge + e
+        private void settle(
+                double[] reached,
+                int[] parents,
+                int[] parentEdges,
+                IndexedMinPriorityQueue queue,
+                int firstEdge,
+                int[] offsets,
+                int[] targets,
+                double[] costs,
+                int[] stallOffsets,
+                int[] stallTargets,
+                double[] stallCosts) {
+            int v = queue.extract();
+            double cost = reached[v];
+
+            // Stall on demand: if a higher ranked vertex reaches v more
+            // cheaply, v is not on a shortest path and its edges are skipped
+            for (int e = stallOffsets[v]; e < stallOffsets[v + 1]; ++e) {
+                double via = reached[stallTargets[e]];
+                if (via != Double.MAX_VALUE && via + stallCosts[e] < cost) {
+                    return;
+                }
+            }
+
+            for (int e = offsets[v]; e < offsets[v + 1]; ++e) {
+                reach(reached, parents, parentEdges, queue,
+                        targets[e], cost + costs[e], v, firstEdge + e);
+            }
+        }
+
+        private void reach(
+                double[] reached,
+                int[] parents,
+                int[] parentEdges,
+                IndexedMinPriorityQueue queue,
+                int v,
+                double cost,
+                int parent,
+                int parentEdge) {
+            // A vertex costing at least the best path cannot improve on it,
+            // leaving it out keeps the queues small
+            if (cost < reached[v] && cost < best) {
+                if (forwardReached[v] == Double.MAX_VALUE
+                        && backwardReached[v] == Double.MAX_VALUE) {
+                    touched[numTouched++] = v;
+                }
+                reached[v] = cost;
+                parents[v] = parent;
+                parentEdges[v] = parentEdge;
+                queue.insertOrDecrease(v, cost);
+
+                // Both sides reached v: a path through v exists
+                if (forwardReached[v] != Double.MAX_VALUE
+                        && backwardReached[v] != Double.MAX_VALUE
+                        && forwardReached[v] + backwardReached[v] < best) {
+                    best = forwardReached[v] + backwardReached[v];
+                    meeting = v;
+                }
+            }
+        }
+
+        // Lists the original vertices from start through meeting to target
+        private int[] unpack(int meeting) {
+            // Hierarchy edges of the upward path start..meeting, then of the
+            // downward path meeting..target, each with the vertex it enters
+            int numUp = 0;
+            for (int v = meeting; forwardParents[v] != -1; v = forwardParents[v]) {
+                ++numUp;
+            }
+            int numDown = 0;
+            for (int v = meeting; backwardParents[v] != -1; v = backwardParents[v]) {
+                ++numDown;
+            }
+            int[] edges = new int[numUp + numDown];
+            int[] ends = new int[numUp + numDown];
+            int start = meeting;
+            for (int i = numUp; forwardParents[start] != -1; ) {
+                --i;
+                edges[i] = forwardParentEdges[start];
+                ends[i] = start;
+                start = forwardParents[start];
+            }
+            int i = numUp;
+            for (int v = meeting; backwardParents[v] != -1; v = backwardParents[v]) {
+                edges[i] = backwardParentEdges[v];
+                ends[i] = backwardParents[v];
+                ++i;
+            }
+
+            // Replace every shortcut with its two halves, using an explicit
+            // stack of (edge, vertex it enters) pairs still to be expanded
+            int[] path = new int[16];
+            int pathLength = 0;
+            path[pathLength++] = start;
+            int[] stack = new int[32];
+            for (int h = 0; h < edges.length; ++h) {
+                int size = 0;
+                stack[size++] = edges[h];
+                stack[size++] = ends[h];
+                while (size > 0) {
+                    int to = stack[--size];
+                    int edge = stack[--size];
+                    if (firstHalves[edge] == -1) {
+                        if (pathLength == path.length) {
+                            path = Arrays.copyOf(path, 2 * pathLength);
+                        }
+                        path[pathLength++] = to;
+                    } else {
+                        if (size + 4 > stack.length) {
+                            stack = Arrays.copyOf(stack, 2 * stack.length);
+                        }
+                        // Second half is expanded after the first half
+                        stack[size++] = secondHalves[edge];
+                        stack[size++] = to;
+                        stack[size++] = firstHalves[edge];
+                        stack[size++] = getMiddle(edge);
+                    }
+                }
+            }
+
+            return Arrays.copyOf(path, pathLength);
+        }
+
+        private void reset() {
+            for (int i = 0; i < numTouched; ++i) {
+                forwardReached[touched[i]] = Double.MAX_VALUE;
+                backwardReached[touched[i]] = Double.MAX_VALUE;
+            }
+            numTouched = 0;
+            forwardQueue.clear();
+            backwardQueue.clear();
+        }
+    }
+
+    private int getMiddle(int edge) {
+        return edge < forwardTargets.length
+                ? forwardMiddles[edge]
+                : backwardMiddles[edge - forwardTargets.length];
+    }
+
+    // Numbers the halves of every shortcut, so unpacking needs no search. A
+    // shortcut from -> to skips a lower ranked middle vertex m: its first half
+    // from -> m is a backward edge of m, its second half m -> to a forward
+    // edge of m, found by binary search in m's edges sorted by target
+    private void linkHalves() {
+        int numForward = forwardTargets.length;
+        firstHalves = new int[numForward + backwardTargets.length];
+        secondHalves = new int[numForward + backwardTargets.length];
+        for (int v = 0; v < ranks.length; ++v) {
+            for (int e = forwardOffsets[v]; e < forwardOffsets[v + 1]; ++e) {
+                linkHalves(e, v, forwardTargets[e], forwardMiddles[e]);
+            }
+            for (int e = backwardOffsets[v]; e < backwardOffsets[v + 1]; ++e) {
+                linkHalves(numForward + e, backwardTargets[e], v,
+                        backwardMiddles[e]);
+            }
+        }
+    }
+
+    private void linkHalves(int edge, int from, int to, int middle) {
+        if (middle == -1) {
+            firstHalves[edge] = -1;
+            secondHalves[edge] = -1;
+            return;
+        }
+
+        int first = Arrays.binarySearch(backwardTargets,
+                backwardOffsets[middle], backwardOffsets[middle + 1], from);
+        int second = Arrays.binarySearch(forwardTargets,
+                forwardOffsets[middle], forwardOffsets[middle + 1], to);
+        if (first < 0 || second < 0) {
+            throw new IllegalStateException("shortcut half not in hierarchy");
+        }
+        firstHalves[edge] = forwardTargets.length + first;
+        secondHalves[edge] = second;
+    }
+
+    // ============================ Preprocessing ============================
+    /**
+     * Contracts the vertices of a graph. Each vertex keeps growable arrays of
+     * its edges to vertices not yet contracted; once a vertex is contracted
+     * its arrays are frozen and hold exactly its edges to higher ranks.
+     * Every edge is stored in both its source's outgoing and its target's
+     * incoming arrays, and each copy knows the position of the other (its
+     * twin), so edges are updated and removed without scanning.
+     */
+    private static final class Contractor {
+        // Witness searches made only to estimate a priority are cut short.
+        // Both kinds also stop after a few edges (hops): long witnesses are
+        // rare, and the search is then far smaller than a settle limit alone
+        private static final int SIMULATION_SETTLE_LIMIT = 500;
+        private static final int SIMULATION_HOP_LIMIT = 3;
+        private static final int CONTRACTION_SETTLE_LIMIT = 2000;
+        private static final int CONTRACTION_HOP_LIMIT = 6;
+
+        private int numVertices;
+        private int[][] outTargets, inTargets;
+        private double[][] outCosts, inCosts;
+        private int[][] outMiddles, inMiddles;
+        private int[][] outTwins, inTwins;      // Position of the other copy
+        private int[] outCounts, inCounts;
+        private int[] contractedNeighbours;
+        private int[] lastContractedNeighbour;
+        private int[] levels;                   // Depth below each vertex
+        private IndexedMinPriorityQueue queue;  // Vertices not yet contracted
+
+        // Position of each target in the indexed vertex's outgoing edges,
+        // -1 if absent (see indexEdges)
+        private int[] edgePositions;
+
+        // Witness search state, reset after each search
+        private double[] witnessCosts;
+        private int[] witnessHops;
+        private IndexedMinPriorityQueue witnessQueue;
+        private int[] witnessTouched;
+        private int numWitnessTouched;
+
+        // Shortcuts found for the vertex being contracted, grouped by source
+        private int[] shortcutFrom = new int[16];
+        private int[] shortcutTo = new int[16];
+        private double[] shortcutCosts = new double[16];
+        private int numShortcuts;
+
+        private Contractor(CsrGraph<?, ?> graph, double[] edgeCosts) {
+            numVertices = graph.getNumVertices();
+            outTargets = new int[numVertices][];
+            inTargets = new int[numVertices][];
+            outCosts = new double[numVertices][];
+            inCosts = new double[numVertices][];
+            outMiddles = new int[numVertices][];
+            inMiddles = new int[numVertices][];
+            outTwins = new int[numVertices][];
+            inTwins = new int[numVertices][];
+            outCounts = new int[numVertices];
+            inCounts = new int[numVertices];
+            for (int v = 0; v < numVertices; ++v) {
+                outTargets[v] = new int[4];
+                inTargets[v] = new int[4];
+                outCosts[v] = new double[4];
+                inCosts[v] = new double[4];
+                outMiddles[v] = new int[4];
+                inMiddles[v] = new int[4];
+                outTwins[v] = new int[4];
+                inTwins[v] = new int[4];
+            }
+            contractedNeighbours = new int[numVertices];
+            lastContractedNeighbour = new int[numVertices];
+            Arrays.fill(lastContractedNeighbour, -1);
+            levels = new int[numVertices];
+            edgePositions = new int[numVertices];
+            Arrays.fill(edgePositions, -1);
+
+            witnessCosts = new double[numVertices];
+            Arrays.fill(witnessCosts, Double.MAX_VALUE);
+            witnessHops = new int[numVertices];
+            witnessQueue = new IndexedMinPriorityQueue(numVertices);
+            witnessTouched = new int[numVertices];
+
+            // Self loops never lie on a shortest path, parallel edges keep
+            // the cheapest cost
+            for (int v = 0; v < numVertices; ++v) {
+                for (int e = graph.getEdgesBegin(v); e < graph.getEdgesEnd(v); ++e) {
+                    if (graph.getEdgeTarget(e) != v) {
+                        addEdge(v, graph.getEdgeTarget(e), edgeCosts[e], -1);
+                    }
+                }
+                clearIndex(v);
+            }
+        }
+
+        private ContractionHierarchy contract(int[] order) {
+            int[] ranks = new int[numVertices];
+            if (order != null) {
+                // Contract in the given order
+                for (int rank = 0; rank < numVertices; ++rank) {
+                    contractVertex(order[rank]);
+                    ranks[order[rank]] = rank;
+                }
+            } else {
+                // Contract the vertex with the smallest priority next
+                queue = new IndexedMinPriorityQueue(numVertices);
+                for (int v = 0; v < numVertices; ++v) {
+                    queue.insert(v, priority(v));
+                }
+                int rank = 0;
+                while (!queue.isEmpty()) {
+                    int v = queue.extract();
+
+                    // Lazy update: requeue if no longer the smallest
+                    double priority = priority(v);
+                    if (!queue.isEmpty()
+                            && priority > queue.getPriority(queue.peek())) {
+                        queue.insert(v, priority);
+                        continue;
+                    }
+
+                    contractVertex(v);
+                    ranks[v] = rank++;
+                }
+            }
+
+            return buildHierarchy(ranks);
+        }
+
+        // Weighted edge difference plus contracted neighbours and level
+        private double priority(int v) {
+            int numShortcuts = findShortcuts(
+                    v, SIMULATION_SETTLE_LIMIT, SIMULATION_HOP_LIMIT);
+            return 2 * (numShortcuts - outCounts[v] - inCounts[v])
+                    + contractedNeighbours[v] + levels[v];
+        }
+
+        private void contractVertex(int v) {
+            findShortcuts(v, CONTRACTION_SETTLE_LIMIT, CONTRACTION_HOP_LIMIT);
+            for (int i = 0; i < numShortcuts; ) {
+                int from = shortcutFrom[i];
+                indexEdges(from);
+                for (; i < numShortcuts && shortcutFrom[i] == from; ++i) {
+                    addEdge(from, shortcutTo[i], shortcutCosts[i], v);
+                }
+                clearIndex(from);
+            }
+
+            // Detach v from its neighbours, freezing its own edges
+            for (int i = 0; i < outCounts[v]; ++i) {
+                removeIncoming(outTargets[v][i], outTwins[v][i]);
+            }
+            for (int i = 0; i < inCounts[v]; ++i) {
+                removeOutgoing(inTargets[v][i], inTwins[v][i]);
+            }
+
+            // Neighbours lost an edge, so their priorities changed
+            for (int i = 0; i < outCounts[v]; ++i) {
+                updateNeighbour(outTargets[v][i], v);
+            }
+            for (int i = 0; i < inCounts[v]; ++i) {
+                updateNeighbour(inTargets[v][i], v);
+            }
+        }
+
+        // Neighbours joined by edges both ways are updated once
+        private void updateNeighbour(int u, int contractedVertex) {
+            if (lastContractedNeighbour[u] == contractedVertex) {
+                return;
+            }
+            lastContractedNeighbour[u] = contractedVertex;
+            ++contractedNeighbours[u];
+            levels[u] = Math.max(levels[u], levels[contractedVertex] + 1);
+            if (queue != null && queue.contains(u)) {
+                queue.changePriority(u, priority(u));
+            }
+        }
+
+        // Collects the shortcuts needed to contract v, returns their number
+        private int findShortcuts(int v, int settleLimit, int hopLimit) {
+            numShortcuts = 0;
+            for (int i = 0; i < inCounts[v]; ++i) {
+                int u = inTargets[v][i];
+                double costToV = inCosts[v][i];
+
+                // Longest path through v worth finding a witness for
+                double maxCost = -1;
+                for (int j = 0; j < outCounts[v]; ++j) {
+                    if (outTargets[v][j] != u) {
+                        maxCost = Math.max(maxCost, costToV + outCosts[v][j]);
+                    }
+                }
+                if (maxCost < 0) {
+                    continue;
+                }
+
+                witnessSearch(u, v, maxCost, settleLimit, hopLimit);
+                for (int j = 0; j < outCounts[v]; ++j) {
+                    int w = outTargets[v][j];
+                    double cost = costToV + outCosts[v][j];
+                    if (w != u && witnessCosts[w] > cost) {
+                        recordShortcut(u, w, cost);
+                    }
+                }
+                resetWitness();
+            }
+
+            return numShortcuts;
+        }
+
+        // Limited Dijkstra from source that never passes through excluded
+        private void witnessSearch(
+                int source,
+                int excluded,
+                double maxCost,
+                int settleLimit,
+                int hopLimit) {
+            witnessCosts[source] = 0;
+            witnessHops[source] = 0;
+            witnessTouched[numWitnessTouched++] = source;
+            witnessQueue.insert(source, 0);
+
+            int numSettled = 0;
+            while (!witnessQueue.isEmpty() && numSettled < settleLimit) {
+                int v = witnessQueue.extract();
+                ++numSettled;
+                if (witnessCosts[v] > maxCost) {
+                    break;
+                }
+                if (witnessHops[v] == hopLimit) {
+                    continue;
+                }
+
+                for (int i = 0; i < outCounts[v]; ++i) {
+                    int w = outTargets[v][i];
+                    double cost = witnessCosts[v] + outCosts[v][i];
+                    if (w != excluded && cost < witnessCosts[w]) {
+                        if (witnessCosts[w] == Double.MAX_VALUE) {
+                            witnessTouched[numWitnessTouched++] = w;
+                        }
+                        witnessCosts[w] = cost;
+                        witnessHops[w] = witnessHops[v] + 1;
+                        witnessQueue.insertOrDecrease(w, cost);
+                    }
+                }
+            }
+        }
+
+        private void resetWitness() {
+            for (int i = 0; i < numWitnessTouched; ++i) {
+                witnessCosts[witnessTouched[i]] = Double.MAX_VALUE;
+            }
+            numWitnessTouched = 0;
+            witnessQueue.clear();
+        }
+
+        private void recordShortcut(int from, int to, double cost) {
+            if (numShortcuts == shortcutFrom.length) {
+                shortcutFrom = Arrays.copyOf(shortcutFrom, 2 * numShortcuts);
+                shortcutTo = Arrays.copyOf(shortcutTo, 2 * numShortcuts);
+                shortcutCosts = Arrays.copyOf(shortcutCosts, 2 * numShortcuts);
+            }
+            shortcutFrom[numShortcuts] = from;
+            shortcutTo[numShortcuts] = to;
+            shortcutCosts[numShortcuts] = cost;
+            ++numShortcuts;
+        }
+
+        // Lets addEdge find the existing edges of from by their target
+        private void indexEdges(int from) {
+            for (int i = 0; i < outCounts[from]; ++i) {
+                edgePositions[outTargets[from][i]] = i;
+            }
+        }
+
+        private void clearIndex(int from) {
+            for (int i = 0; i < outCounts[from]; ++i) {
+                edgePositions[outTargets[from][i]] = -1;
+            }
+        }
+
+        // Adds edge from -> to, or lowers the cost of an existing one. The
+        // edges of from must be indexed
+        private void addEdge(int from, int to, double cost, int middle) {
+            int i = edgePositions[to];
+            if (i != -1) {
+                if (cost < outCosts[from][i]) {
+                    int j = outTwins[from][i];
+                    outCosts[from][i] = cost;
+                    outMiddles[from][i] = middle;
+                    inCosts[to][j] = cost;
+                    inMiddles[to][j] = middle;
+                }
+                return;
+            }
+
+            i = outCounts[from];
+            if (i == outTargets[from].length) {
+                int capacity = 2 * i;
+                outTargets[from] = Arrays.copyOf(outTargets[from], capacity);
+                outCosts[from] = Arrays.copyOf(outCosts[from], capacity);
+                outMiddles[from] = Arrays.copyOf(outMiddles[from], capacity);
+                outTwins[from] = Arrays.copyOf(outTwins[from], capacity);
+            }
+            int j = inCounts[to];
+            if (j == inTargets[to].length) {
+                int capacity = 2 * j;
+                inTargets[to] = Arrays.copyOf(inTargets[to], capacity);
+                inCosts[to] = Arrays.copyOf(inCosts[to], capacity);
+                inMiddles[to] = Arrays.copyOf(inMiddles[to], capacity);
+                inTwins[to] = Arrays.copyOf(inTwins[to], capacity);
+            }
+
+            outTargets[from][i] = to;
+            outCosts[from][i] = cost;
+            outMiddles[from][i] = middle;
+            outTwins[from][i] = j;
+            ++outCounts[from];
+            inTargets[to][j] = from;
+            inCosts[to][j] = cost;
+            inMiddles[to][j] = middle;
+            inTwins[to][j] = i;
+            ++inCounts[to];
+            edgePositions[to] = i;
+        }
+
+        // Removes incoming edge i of v (swap with last, then repair the twin
+        // of the moved edge)
+        private void removeIncoming(int v, int i) {
+            int last = --inCounts[v];
+            if (i != last) {
+                inTargets[v][i] = inTargets[v][last];
+                inCosts[v][i] = inCosts[v][last];
+                inMiddles[v][i] = inMiddles[v][last];
+                inTwins[v][i] = inTwins[v][last];
+                outTwins[inTargets[v][i]][inTwins[v][i]] = i;
+            }
+        }
+
+        // Removes outgoing edge i of v (swap with last, then repair the twin
+        // of the moved edge)
+        private void removeOutgoing(int v, int i) {
+            int last = --outCounts[v];
+            if (i != last) {
+                outTargets[v][i] = outTargets[v][last];
+                outCosts[v][i] = outCosts[v][last];
+                outMiddles[v][i] = outMiddles[v][last];
+                outTwins[v][i] = outTwins[v][last];
+                inTwins[outTargets[v][i]][outTwins[v][i]] = i;
+            }
+        }
+
+        // The frozen edges of each vertex lead to higher ranks: outgoing
+        // edges form the forward graph, incoming edges the backward graph.
+        // Each vertex's edges are sorted by target for linkHalves
+        private ContractionHierarchy buildHierarchy(int[] ranks) {
+            ContractionHierarchy hierarchy = new ContractionHierarchy();
+            hierarchy.ranks = ranks;
+            hierarchy.forwardOffsets = new int[numVertices + 1];
+            hierarchy.backwardOffsets = new int[numVertices + 1];
+            for (int v = 0; v < numVertices; ++v) {
+                hierarchy.forwardOffsets[v + 1] =
+                        hierarchy.forwardOffsets[v] + outCounts[v];
+                hierarchy.backwardOffsets[v + 1] =
+                        hierarchy.backwardOffsets[v] + inCounts[v];
+            }
+
+            int numForward = hierarchy.forwardOffsets[numVertices];
+            int numBackward = hierarchy.backwardOffsets[numVertices];
+            hierarchy.forwardTargets = new int[numForward];
+            hierarchy.forwardCosts = new double[numForward];
+            hierarchy.forwardMiddles = new int[numForward];
+            hierarchy.backwardTargets = new int[numBackward];
+            hierarchy.backwardCosts = new double[numBackward];
+            hierarchy.backwardMiddles = new int[numBackward];
+            for (int v = 0; v < numVertices; ++v) {
+                int forward = hierarchy.forwardOffsets[v];
+                System.arraycopy(outTargets[v], 0,
+                        hierarchy.forwardTargets, forward, outCounts[v]);
+                System.arraycopy(outCosts[v], 0,
+                        hierarchy.forwardCosts, forward, outCounts[v]);
+                System.arraycopy(outMiddles[v], 0,
+                        hierarchy.forwardMiddles, forward, outCounts[v]);
+                sortByTarget(hierarchy.forwardTargets, hierarchy.forwardCosts,
+                        hierarchy.forwardMiddles, forward,
+                        hierarchy.forwardOffsets[v + 1]);
+
+                int backward = hierarchy.backwardOffsets[v];
+                System.arraycopy(inTargets[v], 0,
+                        hierarchy.backwardTargets, backward, inCounts[v]);
+                System.arraycopy(inCosts[v], 0,
+                        hierarchy.backwardCosts, backward, inCounts[v]);
+                System.arraycopy(inMiddles[v], 0,
+                        hierarchy.backwardMiddles, backward, inCounts[v]);
+                sortByTarget(hierarchy.backwardTargets, hierarchy.backwardCosts,
+                        hierarchy.backwardMiddles, backward,
+                        hierarchy.backwardOffsets[v + 1]);
+            }
+            hierarchy.linkHalves();
+
+            return hierarchy;
+        }
+
+        // Insertion sort of the edges begin..end - 1, vertices have few
+        private static void sortByTarget(
+                int[] targets,
+                double[] costs,
+                int[] middles,
+                int begin,
+                int end) {
+            for (int i = begin + 1; i < end; ++i) {
+                int target = targets[i];
+                double cost = costs[i];
+                int middle = middles[i];
+                int j = i - 1;
+                while (j >= begin && targets[j] > target) {
+                    targets[j + 1] = targets[j];
+                    costs[j + 1] = costs[j];
+                    middles[j + 1] = middles[j];
+                    --j;
+                }
+                targets[j + 1] = target;
+                costs[j + 1] = cost;
+                middles[j + 1] = middle;
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Builds a road network on a grid: streets, an arterial road every 8th row
+// and column and a motorway every 64th, each class faster than the one
+// below. Times the node ordering and contraction, saves and reloads the
+// index file, then compares query latency against bidirectional Dijkstra
+// and times re-contraction with the saved order after the costs change.
+// - 90,000 vertices: preprocessing ~15 seconds, ~800,000 hierarchy edges,
+// queries ~120 microseconds against ~11 milliseconds for bidirectional
+// Dijkstra, re-contraction after congestion ~5 seconds.
+// - 250,000 vertices (the default): preprocessing ~42 seconds, ~2,240,000
+// hierarchy edges, queries ~155 microseconds including path unpacking
+// against ~37 milliseconds, re-contraction ~13 seconds. A query settles
+// only ~150 vertices.
+// - Query time grows with the grid side: the upper levels of a grid contract
+// into dense separators (rows of junctions crossing the whole map), and the
+// query scans their edges. Real road networks have far smaller separators.
+
+// import java.nio.file.Files;
+// import java.nio.file.Path;
+
+public class ContractionHierarchyBenchmark {
+    /**
+     * Returns the travel time of each edge of a width x width grid: its
+     * length divided by the speed of its road class. The same both ways.
+     */
+    public static double[] roadCosts(
+            CsrGraph<?, ?> grid,
+            double[][] coordinates,
+            int width) {
+        double[] costs = new double[grid.getNumEdges()];
+        for (int v = 0; v < grid.getNumVertices(); ++v) {
+            for (int e = grid.getEdgesBegin(v); e < grid.getEdgesEnd(v); ++e) {
+                int w = grid.getEdgeTarget(e);
+                double dx = coordinates[0][v] - coordinates[0][w];
+                double dy = coordinates[1][v] - coordinates[1][w];
+
+                // Row of a horizontal edge, column of a vertical one
+                int line = v / width == w / width ? v / width : v % width;
+                double slowdown = line % 64 == 0 ? 0.3
+                        : line % 8 == 0 ? 1.0
+                        : 2.0;
+                costs[e] = Math.sqrt(dx * dx + dy * dy) * slowdown;
+            }
+        }
+
+        return costs;
+    }
+
+    public static void main(String args[]) throws IOException {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        final double NANO_SECONDS_PER_MICRO_SECOND = 1000;
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int queries = 10000;
+
+        CsrGraph<Object, Object> roads =
+                ShortestPathsBenchmark.buildGrid(side, side);
+        double[][] coordinates =
+                ShortestPathsBenchmark.gridCoordinates(side, side, 0.4, 42);
+        double[] costs = roadCosts(roads, coordinates, side);
+
+        // Preprocessing
+        long start = System.nanoTime();
+        ContractionHierarchy hierarchy = ContractionHierarchy.build(roads, costs);
+        long stop = System.nanoTime();
+        System.out.println(roads.getNumVertices() + " vertices, "
+                + roads.getNumEdges() + " edges, preprocessing took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, "
+                + hierarchy.getNumEdges() + " hierarchy edges.");
+
+        // Index file round trip
+        Path file = Files.createTempFile("roads", ".chix");
+        start = System.nanoTime();
+        hierarchy.save(file);
+        hierarchy = ContractionHierarchy.load(file);
+        stop = System.nanoTime();
+        System.out.println("Index file is " + Files.size(file)
+                + " bytes, save and load took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+        Files.delete(file);
+
+        // Query latency
+        Random random = new Random(7);
+        int[] starts = new int[queries];
+        int[] targets = new int[queries];
+        for (int i = 0; i < queries; ++i) {
+            starts[i] = random.nextInt(roads.getNumVertices());
+            targets[i] = random.nextInt(roads.getNumVertices());
+        }
+        ContractionHierarchy.Query query = hierarchy.newQuery();
+        start = System.nanoTime();
+        for (int i = 0; i < queries; ++i) {
+            query.findShortestPath(starts[i], targets[i]);
+        }
+        stop = System.nanoTime();
+        System.out.println("Hierarchy query took "
+                + (stop - start) / NANO_SECONDS_PER_MICRO_SECOND / queries
+                + " microseconds on average.");
+
+        PointToPointSearch search = new PointToPointSearch(roads, costs);
+        start = System.nanoTime();
+        for (int i = 0; i < queries / 100; ++i) {
+            search.findBidirectional(starts[i], targets[i]);
+        }
+        stop = System.nanoTime();
+        System.out.println("Bidirectional Dijkstra query took "
+                + (stop - start) / NANO_SECONDS_PER_MICRO_SECOND / (queries / 100)
+                + " microseconds on average.");
+
+        // Re-contraction with the existing order after congestion slows
+        // down one edge in a hundred
+        double[] newCosts = costs.clone();
+        for (int e = 0; e < newCosts.length; e += 100) {
+            newCosts[e] *= 2;
+        }
+        start = System.nanoTime();
+        ContractionHierarchy updated = ContractionHierarchy.build(
+                roads, newCosts, hierarchy.getContractionOrder());
+        stop = System.nanoTime();
+        System.out.println("Re-contraction took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, "
+                + updated.getNumEdges() + " hierarchy edges.");
+    }
+}
+
+
+//------------------------------------------------------------------------------
+// Traveling Salesperson
+//------------------------------------------------------------------------------
+
+// Generates complete shortest tour.
+// - Minimum path in complete, undirected, weighted graph from start vertex 
+// back to start vertex in which every vertex is visited exactly once.
+
+// We are looking for a Hamiltonian cycle, a tour in which we visit each vertex
+// exactly once before returning to the start vertex.
+
+// Solution to optimizing delivery / transportation problem.
+
+// Because the graph is undirected and complete, for G = (V, E) 
+// E contains V(V-1) / 2 edges.
+
+// Naive Algorithm:
+// - Explore all permutations of the vertices of G. Each permutations represents
+// one possible tour. However, this approach results in O(V!) time complexity
+// which explodes and is not possible to solve.
+
+// Nearest Neighbor Heuristic:
+// - Approximate solution to the traveling salesperson problem.
+// - At any given vertex, travel to the next closest vertex. Thus it is greedy
+// and can result in suboptimal solutions.
+// - Edges are implied since the graph is complete and all vertices are linked.
+// - The weight of each edge is the distance between the two vertices.
+// - Resembled breadth-first search, repeatedly selects vertex and explores
+// edges incident to it before exploring further.
+// - Greedy algorithm and does not guarantee optimal solution.
+// - Worst case performance: results in a tour whose length is within a factor
+// of 2 of the optimal tour length. 
+
+// Scaling to 100,000+ cities:
+// - Scanning every white city for the nearest one makes the heuristic
+// O(V^2), 10^10 distance computations for 100,000 delivery stops.
+// - A spatial index (a k-d tree, see CityKdTree below) answers "nearest
+// remaining city" in about O(lg V) by only looking near the query. Visited
+// cities are removed from the index, so the whole tour takes O(V lg V).
+// - Comparing squared distances avoids a square root per candidate, and
+// Math.pow(d, 2.0) is much slower than d * d.
+
+// Local search (tour improvement):
+// - 2-opt: remove two edges (a, b) and (c, d) and reconnect as (a, c) and
+// (b, d), which reverses the path b..c. Repeat while some move shortens the
+// tour. Removes all crossings, typically ~5% above optimal on random cities
+// compared to ~25% for nearest neighbour.
+// - Or-opt: move a segment of 1 to 3 consecutive cities (possibly reversed)
+// between two other adjacent cities.
+// - Neighbour lists: an improving move must add an edge (a, c) shorter than
+// a removed edge (a, b), so only the K (~8) nearest cities of a are tried
+// as c, and the list is scanned in order of distance until d(a, c) >= d(a, b).
+// - Don't-look bits: a city whose neighbourhood gave no improvement is not
+// examined again until one of its tour edges changes. Implemented as a FIFO
+// queue of cities to look at; the endpoints of every applied move are queued
+// again.
+// - The tour is an array plus the position of each city in it. Reversing a
+// path costs its length, but reversing the rest of the cycle instead gives
+// the same tour, so the shorter side is always reversed (at most V / 2).
+
+// Multi-start:
+// - Local search stops in a local optimum that depends on the starting tour.
+// Running it from nearest neighbour tours with different start cities on
+// several threads, and keeping the best, trades CPU time for quality.
+// - A shared deadline bounds the total time.
+
+// import java.util.ArrayList;
+// import java.util.Arrays;
+// import java.util.List;
+// import java.util.Random;
+// import java.util.concurrent.Callable;
+// import java.util.concurrent.ExecutionException;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.Future;
+// import static com.google.common.base.Preconditions.*;
+
+public final class TravellingSalesPerson {
+    public static final class City {
+        private String name;
+        private int x, y;
+
+        public City(String name, int x, int y) {
+            this.name = name;
+            this.x = x;
+            this.y = y;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            City city = (City) o;
+
+            return name.equals(city.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    /**
+     * Returns tour of cities within factor of 2 of optimal tour.
+     */
+    public static SinglyLinkedList<City> computeShortestTour(
+            City[] graph,
+            City start) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(start, "start must not be null");
+        for (City city : graph) {
+            checkNotNull(city, "graph contains one or more null cities");
+        }
+
+        // Find the start city in the graph
+        int startIndex = -1;
+        for (int i = 0; i < graph.length && startIndex == -1; ++i) {
+            if (graph[i].equals(start)) {
+                startIndex = i;
+            }
+        }
+        checkArgument(startIndex != -1, "start not found in graph");
+
+        // Use nearest-neighbor heuristic to compute the tour
+        int[] order = computeNearestNeighbourTour(graph, startIndex);
+        SinglyLinkedList<City> tour = new SinglyLinkedList<City>();
+        for (int city : order) {
+            tour.insertTail(graph[city]);
+        }
+
+        // Insert the start city again to complete the tour
+        tour.insertTail(graph[startIndex]);
+
+        return tour;
+    }
+
+    /**
+     * Returns the indices of the cities in nearest neighbour order, starting
+     * at start. Each step asks a k-d tree for the nearest remaining city in
+     * about O(lg V), O(V lg V) for the whole tour.
+     */
+    public static int[] computeNearestNeighbourTour(City[] cities, int start) {
+        checkCities(cities);
+        checkElementIndex(start, cities.length, "start");
+
+        return nearestNeighbourTour(
+                getXs(cities), getYs(cities), new CityKdTree(cities), start);
+    }
+
+    /**
+     * Improves tour in place with 2-opt and Or-opt moves until no move
+     * helps or the time budget runs out.
+     */
+    public static void improveTour(
+            City[] cities,
+            int[] tour,
+            long timeBudgetNanos) {
+        checkCities(cities);
+        checkTour(cities, tour);
+
+        double[] xs = getXs(cities);
+        double[] ys = getYs(cities);
+        int[] neighbours = findNeighbours(
+                xs, ys, new CityKdTree(cities), NUM_NEIGHBOURS);
+        new LocalSearch(xs, ys, neighbours, tour,
+                System.nanoTime() + timeBudgetNanos).run();
+    }
+
+    /**
+     * Runs nearest neighbour construction and local search from numStarts
+     * distinct random start cities (at most one per city) on the threads of
+     * pool, and returns the shortest tour found within the time budget.
+     */
+    public static int[] computeTour(
+            final City[] cities,
+            int numStarts,
+            long timeBudgetNanos,
+            ForkJoinPool pool) throws
+            InterruptedException {
+        checkCities(cities);
+        checkArgument(numStarts > 0, "numStarts must be positive");
+        checkNotNull(pool, "pool must not be null");
+
+        final long deadline = System.nanoTime() + timeBudgetNanos;
+        final double[] xs = getXs(cities);
+        final double[] ys = getYs(cities);
+        final int[] neighbours = findNeighbours(
+                xs, ys, new CityKdTree(cities), NUM_NEIGHBOURS);
+
+        // One task per distinct start city, drawn by a partial Fisher-Yates
+        // shuffle of the first numStarts positions; each task gets its own
+        // tree (removals) and tour, the coordinates and neighbour lists are
+        // shared read-only
+        int numDistinct = Math.min(numStarts, cities.length);
+        int[] order = new int[cities.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Random random = new Random(42);
+        List<Callable<int[]>> starts = new ArrayList<Callable<int[]>>();
+        for (int i = 0; i < numDistinct; ++i) {
+            int j = i + random.nextInt(order.length - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            final int start = order[i];
+            starts.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    int[] tour = nearestNeighbourTour(
+                            xs, ys, new CityKdTree(cities), start);
+                    new LocalSearch(xs, ys, neighbours, tour, deadline).run();
+                    return tour;
+                }
+            });
+        }
+
+        int[] best = null;
+        double bestLength = Double.MAX_VALUE;
+        for (Future<int[]> future : pool.invokeAll(starts)) {
+            int[] tour;
+            try {
+                tour = future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            double length = getTourLength(xs, ys, tour);
+            if (length < bestLength) {
+                best = tour;
+                bestLength = length;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Length of the closed tour through the cities in the given order.
+     */
+    public static double getTourLength(City[] cities, int[] tour) {
+        checkCities(cities);
+        checkTour(cities, tour);
+
+        return getTourLength(getXs(cities), getYs(cities), tour);
+    }
+
+    private static final int NUM_NEIGHBOURS = 8;
+
+    private static void checkCities(City[] cities) {
+        checkNotNull(cities, "cities must not be null");
+        checkArgument(cities.length > 0, "cities must not be empty");
+        for (City city : cities) {
+            checkNotNull(city, "cities contains one or more null cities");
+        }
+    }
+
+    private static void checkTour(City[] cities, int[] tour) {
+        checkNotNull(tour, "tour must not be null");
+        checkArgument(tour.length == cities.length,
+                "tour must visit every city once");
+        boolean[] seen = new boolean[cities.length];
+        for (int city : tour) {
+            checkElementIndex(city, cities.length, "city");
+            checkArgument(!seen[city], "tour must visit every city once");
+            seen[city] = true;
+        }
+    }
+
+    private static double[] getXs(City[] cities) {
+        double[] xs = new double[cities.length];
+        for (int i = 0; i < cities.length; ++i) {
+            xs[i] = cities[i].x;
+        }
+        return xs;
+    }
+
+    private static double[] getYs(City[] cities) {
+        double[] ys = new double[cities.length];
+        for (int i = 0; i < cities.length; ++i) {
+            ys[i] = cities[i].y;
+        }
+        return ys;
+    }
+
+    private static double distance(double[] xs, double[] ys, int a, int b) {
+        double dx = xs[a] - xs[b];
+        double dy = ys[a] - ys[b];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static double getTourLength(double[] xs, double[] ys, int[] tour) {
+        double length = 0;
+        for (int i = 0; i < tour.length; ++i) {
+            length += distance(xs, ys, tour[i], tour[(i + 1) % tour.length]);
+        }
+        return length;
+    }
+
+    private static int[] nearestNeighbourTour(
+            double[] xs,
+            double[] ys,
+            CityKdTree tree,
+            int start) {
+        int[] tour = new int[xs.length];
+        tour[0] = start;
+        tree.remove(start);
+        for (int i = 1; i < tour.length; ++i) {
+            // Closest city not yet visited, then take it out of the tree
+            int current = tour[i - 1];
+            int closest = tree.findNearest(xs[current], ys[current]);
+            tree.remove(closest);
+            tour[i] = closest;
+        }
+
+        return tour;
+    }
+
+    // The k nearest other cities of every city, k per city, nearest first
+    // (k is lowered if there are not enough cities)
+    private static int[] findNeighbours(
+            double[] xs,
+            double[] ys,
+            CityKdTree tree,
+            int k) {
+        int n = xs.length;
+        k = Math.min(k, n - 1);
+        int[] neighbours = new int[n * k];
+        int[] nearest = new int[k + 1];
+        for (int city = 0; city < n; ++city) {
+            // The city itself is among its k + 1 nearest, unless more than
+            // k others share its location
+            int numFound = tree.findNearest(xs[city], ys[city], k + 1, nearest);
+            int numNeighbours = 0;
+            for (int i = 0; i < numFound && numNeighbours < k; ++i) {
+                if (nearest[i] != city) {
+                    neighbours[city * k + numNeighbours++] = nearest[i];
+                }
+            }
+        }
+
+        return neighbours;
+    }
+
+    // 2-opt and Or-opt with neighbour lists and a queue of cities to look at
+    private static final class LocalSearch {
+        private static final double EPSILON = 1e-9;
+        private static final int MOVES_PER_TIME_CHECK = 256;
+
+        private double[] xs, ys;
+        private int[] neighbours;
+        private int numNeighbours;
+        private int[] tour;
+        private int[] positions;    // Index of each city in tour
+        private long deadline;
+
+        private int[] queue;        // Circular, each city at most once
+        private int head, size;
+        private boolean[] queued;
+
+        private LocalSearch(
+                double[] xs,
+                double[] ys,
+                int[] neighbours,
+                int[] tour,
+                long deadline) {
+            this.xs = xs;
+            this.ys = ys;
+            this.neighbours = neighbours;
+            this.numNeighbours = neighbours.length / Math.max(tour.length, 1);
+            this.tour = tour;
+            this.deadline = deadline;
+
+            int n = tour.length;
+            positions = new int[n];
+            for (int i = 0; i < n; ++i) {
+                positions[tour[i]] = i;
+            }
+            queue = new int[n];
+            queued = new boolean[n];
+            for (int city : tour) {
+                push(city);
+            }
+        }
+
+        private void run() {
+            // Too few cities for the moves to be well defined
+            if (tour.length < 8) {
+                return;
+            }
+
+            int numSteps = 0;
+            while (size > 0) {
+                if (++numSteps % MOVES_PER_TIME_CHECK == 0
+                        && System.nanoTime() > deadline) {
+                    return;
+                }
+
+                int city = queue[head];
+                head = head + 1 == queue.length ? 0 : head + 1;
+                --size;
+                queued[city] = false;
+
+                if (improveTwoOpt(city) || improveOrOpt(city)) {
+                    push(city);
+                }
+            }
+        }
+
+        private void push(int city) {
+            if (!queued[city]) {
+                int tail = head + size;
+                queue[tail >= queue.length ? tail - queue.length : tail] = city;
+                ++size;
+                queued[city] = true;
+            }
+        }
+
+        private int next(int city) {
+            int position = positions[city] + 1;
+            return tour[position == tour.length ? 0 : position];
+        }
+
+        private int previous(int city) {
+            int position = positions[city] - 1;
+            return tour[position < 0 ? tour.length - 1 : position];
+        }
+
+        private double distance(int a, int b) {
+            return TravellingSalesPerson.distance(xs, ys, a, b);
+        }
+
+        // Tries edges (a, c) to a's nearest neighbours c, replacing the tour
+        // edge on either side of a
+        private boolean improveTwoOpt(int a) {
+            for (int side = 0; side < 2; ++side) {
+                int b = side == 0 ? next(a) : previous(a);
+                double removedAB = distance(a, b);
+                for (int i = a * numNeighbours,
+                             end = i + numNeighbours; i < end; ++i) {
+                    int c = neighbours[i];
+                    double addedAC = distance(a, c);
+                    if (addedAC >= removedAB) {
+                        break;
+                    }
+                    int d = side == 0 ? next(c) : previous(c);
+                    if (c == b || d == a) {
+                        continue;
+                    }
+
+                    double delta = addedAC + distance(b, d)
+                            - removedAB - distance(c, d);
+                    if (delta < -EPSILON) {
+                        if (side == 0) {
+                            makeTwoOptMove(a, b, c, d);
+                        } else {
+                            makeTwoOptMove(b, a, d, c);
+                        }
+                        push(a);
+                        push(b);
+                        push(c);
+                        push(d);
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        // Tries moving the segment of 1 to 3 cities starting at s1 next to a
+        // neighbour of either end of the segment
+        private boolean improveOrOpt(int s1) {
+            int s2 = s1;
+            for (int length = 1; length <= 3; ++length) {
+                if (length > 1) {
+                    s2 = next(s2);
+                }
+                int p = previous(s1);
+                int n = next(s2);
+                if (p == s2 || n == p) {
+                    return false;
+                }
+
+                double removed = distance(p, s1) + distance(s2, n)
+                        - distance(p, n);
+                if (removed <= EPSILON) {
+                    continue;
+                }
+
+                for (int end = 0; end < 2; ++end) {
+                    int from = end == 0 ? s1 : s2;
+                    for (int i = from * numNeighbours,
+                                 stop = i + numNeighbours; i < stop; ++i) {
+                        int c = neighbours[i];
+                        if (distance(from, c) >= removed) {
+                            break;
+                        }
+                        if (isInSegment(c, s1, s2, length)) {
+                            continue;
+                        }
+
+                        // Between c and either of its tour neighbours
+                        for (int side = 0; side < 2; ++side) {
+                            int x = side == 0 ? c : previous(c);
+                            int y = side == 0 ? next(c) : c;
+                            if (isInSegment(x, s1, s2, length)
+                                    || isInSegment(y, s1, s2, length)
+                                    || y == p) {
+                                continue;
+                            }
+
+                            double kept = distance(x, s1) + distance(s2, y);
+                            double reversed = distance(x, s2) + distance(s1, y);
+                            double delta = Math.min(kept, reversed)
+                                    - distance(x, y) - removed;
+                            if (delta < -EPSILON) {
+                                moveSegment(p, s1, s2, n, x, y, kept <= reversed);
+                                push(p);
+                                push(n);
+                                push(s1);
+                                push(s2);
+                                push(x);
+                                push(y);
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private boolean isInSegment(int city, int s1, int s2, int length) {
+            return city == s1 || city == s2 || (length == 3 && city == next(s1));
+        }
+
+        // Moves p s1..s2 n ... x y to p n ... x s1..s2 y (or x s2..s1 y)
+        // with three (or two) 2-opt moves
+        private void moveSegment(
+                int p, int s1, int s2, int n, int x, int y, boolean keep) {
+            makeTwoOptMove(p, s1, x, y);        // p x ... n s2..s1 y
+            makeTwoOptMove(p, x, n, s2);        // p n ... x s2..s1 y
+            if (keep) {
+                makeTwoOptMove(x, s2, s1, y);   // p n ... x s1..s2 y
+            }
+        }
+
+        // Replaces edges (a, b) and (c, d) with (a, c) and (b, d), where the
+        // tour runs a b ... c d in one of its two directions
+        private void makeTwoOptMove(int a, int b, int c, int d) {
+            if (next(a) == b) {
+                reverse(b, c);
+            } else {
+                reverse(c, b);
+            }
+        }
+
+        // Reverses the path from -> to (following next), or the rest of the
+        // cycle if that is shorter; both give the same tour
+        private void reverse(int from, int to) {
+            int n = tour.length;
+            int i = positions[from];
+            int j = positions[to];
+            int length = j - i;
+            if (length < 0) {
+                length += n;
+            }
+            ++length;
+            if (2 * length > n) {
+                i = j + 1 == n ? 0 : j + 1;
+                j = positions[from] == 0 ? n - 1 : positions[from] - 1;
+                length = n - length;
+            }
+
+            for (int swaps = length / 2; swaps > 0; --swaps) {
+                int cityI = tour[i];
+                int cityJ = tour[j];
+                tour[i] = cityJ;
+                positions[cityJ] = i;
+                tour[j] = cityI;
+                positions[cityI] = j;
+                i = i + 1 == n ? 0 : i + 1;
+                j = j == 0 ? n - 1 : j - 1;
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Random cities on a 1,000,000 x 1,000,000 square. For n random cities in
+// an area A the optimal tour is close to 0.7124 * sqrt(n * A), which serves
+// as the reference for tour quality.
+// - Reports nearest neighbour construction, then local search and
+// multi-start local search under increasing time budgets.
+// - Measured on a single core, 100,000 cities: nearest neighbour 23% above
+// the reference in ~0.2 seconds (including the k-d tree build); 2-opt +
+// Or-opt converges to ~7% above in ~0.6 seconds (a 0.2 second budget stops
+// at ~15%); 4 starts reach ~6.8% in ~1.9 seconds. The old O(V^2) scan
+// needs 10^10 distance computations for the nearest neighbour tour alone.
+
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class TravellingSalesPersonBenchmark {
+    public static void main(String args[]) throws InterruptedException {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int numCities = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int side = 1000000;
+
+        Random random = new Random(42);
+        TravellingSalesPerson.City[] cities =
+                new TravellingSalesPerson.City[numCities];
+        for (int i = 0; i < numCities; ++i) {
+            cities[i] = new TravellingSalesPerson.City("city" + i,
+                    random.nextInt(side), random.nextInt(side));
+        }
+        double reference = 0.7124 * Math.sqrt((double) numCities * side * side);
+
+        long start = System.nanoTime();
+        int[] nearestNeighbour =
+                TravellingSalesPerson.computeNearestNeighbourTour(cities, 0);
+        long stop = System.nanoTime();
+        report("Nearest neighbour", cities, nearestNeighbour, reference,
+                (stop - start) / NANO_SECONDS_PER_SECOND);
+
+        double[] budgets = {0.05, 0.2, 1, 5};
+        for (double budget : budgets) {
+            int[] tour = nearestNeighbour.clone();
+            start = System.nanoTime();
+            TravellingSalesPerson.improveTour(cities, tour,
+                    (long) (budget * NANO_SECONDS_PER_SECOND));
+            stop = System.nanoTime();
+            report("2-opt + Or-opt, budget " + budget + "s", cities, tour,
+                    reference, (stop - start) / NANO_SECONDS_PER_SECOND);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        for (double budget : budgets) {
+            start = System.nanoTime();
+            int[] tour = TravellingSalesPerson.computeTour(cities, 2 * threads,
+                    (long) (budget * NANO_SECONDS_PER_SECOND), pool);
+            stop = System.nanoTime();
+            report(2 * threads + " starts on " + threads + " threads, budget "
+                    + budget + "s", cities, tour, reference,
+                    (stop - start) / NANO_SECONDS_PER_SECOND);
+        }
+        pool.shutdown();
+    }
+
+    private static void report(
+            String name,
+            TravellingSalesPerson.City[] cities,
+            int[] tour,
+            double reference,
+            double seconds) {
+        double length = TravellingSalesPerson.getTourLength(cities, tour);
+        System.out.printf("%s: %.1f%% above reference, took %.2f seconds.%n",
+                name, 100 * (length / reference - 1), seconds);
+    }
+}
+
+// Traveling Salesperson Problem is NP-hard, meaning that there is no known
+// polynomial time algorithm to solve it. In this sense it is intractable.
+
+
+//------------------------------------------------------------------------------
+// Spatial Index: k-d Tree
+//------------------------------------------------------------------------------
+
+// k-d tree = binary search tree over points in k dimensions. Each node splits
+// its points with a line through one coordinate: points with a smaller
+// coordinate go left, the rest go right.
+
+// Bulk construction:
+// - Pick the coordinate (x or y) with the larger spread, put the median point
+// at the node, build the two halves recursively. Finding the median with
+// quickselect is O(n), so the whole build is O(n lg n).
+// - The tree is implicit: the points are reordered in one array so that the
+// node for the range [lo, hi) is the point at (lo + hi) / 2, its left subtree
+// is [lo, mid) and its right subtree [mid + 1, hi). No node objects or child
+// pointers, and the coordinates are copied into the same order so a search
+// reads memory mostly sequentially.
+
+// Nearest neighbour search:
+// - Descend to the side of the split line containing the query first, then
+// visit the other side only if the split line is closer than the best
+// distance found so far. About O(lg n) for evenly spread points.
+
+// Deletion:
+// - Removing points from a balanced tree and rebalancing is complicated. For
+// "visit each city once" workloads it is enough to mark a point removed and
+// keep a count of live points in each subtree, so empty subtrees are skipped
+// and searches stay fast even when most points are gone.
+
+// k nearest and radius queries work the same way, pruning with the k-th best
+// distance or with the radius. Results go into arrays supplied by the caller,
+// so queries do not allocate.
+
+// import static com.google.common.base.Preconditions.*;
+
+/**
+ * Static 2-D k-d tree over the coordinates of an array of cities, with
+ * removal. Cities are identified by their index in that array. Queries keep
+ * their state in fields, so one tree must not be searched by several threads
+ * at once.
+ */
+public final class CityKdTree {
+    private int[] cities;       // City at each tree position
+    private int[] positions;    // Tree position of each city
+    private double[] xs, ys;    // Coordinates by tree position
+    private byte[] splits;      // 0 = split on x, 1 = on y, by tree position
+    private int[] liveCounts;   // Live cities in the subtree of each node
+    private boolean[] removed;  // By tree position
+
+    // Query state
+    private double queryX, queryY;
+    private int best;
+    private double bestSquared;
+    private int[] found;
+    private double[] foundSquared = new double[16];
+    private int numFound, maxFound;
+    private double radiusSquared;
+
+    /**
+     * Builds the tree over all cities in O(n lg n).
+     */
+    public CityKdTree(TravellingSalesPerson.City[] cities) {
+        checkNotNull(cities, "cities must not be null");
+
+        int n = cities.length;
+        this.cities = new int[n];
+        xs = new double[n];
+        ys = new double[n];
+        for (int i = 0; i < n; ++i) {
+            checkNotNull(cities[i], "cities contains one or more null cities");
+            this.cities[i] = i;
+            xs[i] = cities[i].getX();
+            ys[i] = cities[i].getY();
+        }
+        splits = new byte[n];
+        liveCounts = new int[n];
+        removed = new boolean[n];
+        build(0, n);
+
+        positions = new int[n];
+        for (int p = 0; p < n; ++p) {
+            positions[this.cities[p]] = p;
+        }
+    }
+
+    /**
+     * Number of cities not removed.
+     */
+    public int getSize() {
+        return cities.length == 0 ? 0 : liveCounts[cities.length >>> 1];
+    }
+
+    public boolean contains(int city) {
+        checkElementIndex(city, cities.length, "city");
+        return !removed[positions[city]];
+    }
+
+    /**
+     * Removes city from the tree, O(lg n).
+     */
+    public void remove(int city) {
+        checkArgument(contains(city), "city already removed");
+        setRemoved(positions[city], true);
+    }
+
+    /**
+     * Puts a removed city back into the tree, O(lg n).
+     */
+    public void restore(int city) {
+        checkArgument(!contains(city), "city not removed");
+        setRemoved(positions[city], false);
+    }
+
+    /**
+     * Returns the nearest city to (x, y) that has not been removed, or -1 if
+     * all cities were removed.
+     */
+    public int findNearest(double x, double y) {
+        queryX = x;
+        queryY = y;
+        best = -1;
+        bestSquared = Double.MAX_VALUE;
+        searchNearest(0, cities.length);
+        return best == -1 ? -1 : cities[best];
+    }
+
+    /**
+     * Stores the (up to) k nearest cities to (x, y) in result, nearest first,
+     * and returns how many were stored.
+     */
+    public int findNearest(double x, double y, int k, int[] result) {
+        checkArgument(k >= 0, "k must not be negative");
+        checkNotNull(result, "result must not be null");
+        checkArgument(result.length >= k, "result must hold k cities");
+
+        if (foundSquared.length < k) {
+            foundSquared = new double[k];
+        }
+        queryX = x;
+        queryY = y;
+        found = result;
+        numFound = 0;
+        maxFound = k;
+        if (k > 0) {
+            searchNearestK(0, cities.length);
+        }
+
+        // Turn tree positions into cities
+        for (int i = 0; i < numFound; ++i) {
+            result[i] = cities[result[i]];
+        }
+        found = null;
+        return numFound;
+    }
+
+    /**
+     * Stores the cities within radius of (x, y) in result, in no particular
+     * order, and returns how many there are. If that is more than
+     * result.length only the first result.length are stored.
+     */
+    public int findWithinRadius(double x, double y, double radius, int[] result) {
+        checkArgument(radius >= 0, "radius must not be negative");
+        checkNotNull(result, "result must not be null");
+
+        queryX = x;
+        queryY = y;
+        radiusSquared = radius * radius;
+        found = result;
+        numFound = 0;
+        searchRadius(0, cities.length);
+        found = null;
+        return numFound;
+    }
+
+    // Puts the median of [lo, hi) by the coordinate with the larger spread
+    // at the middle, then builds both halves
+    private void build(int lo, int hi) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        liveCounts[mid] = hi - lo;
+        if (hi - lo == 1) {
+            return;
+        }
+
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int p = lo; p < hi; ++p) {
+            minX = Math.min(minX, xs[p]);
+            maxX = Math.max(maxX, xs[p]);
+            minY = Math.min(minY, ys[p]);
+            maxY = Math.max(maxY, ys[p]);
+        }
+        byte split = maxX - minX >= maxY - minY ? (byte) 0 : (byte) 1;
+        select(lo, hi, mid, split == 0 ? xs : ys);
+        splits[mid] = split;
+
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    // Quickselect: reorders [lo, hi) so position k holds the value that
+    // would be there if sorted by keys, smaller or equal values before it
+    // and larger or equal after it
+    private void select(int lo, int hi, int k, double[] keys) {
+        int left = lo;
+        int right = hi - 1;
+        while (left < right) {
+            // Median of three pivot
+            int middle = (left + right) >>> 1;
+            if (keys[middle] < keys[left]) swap(middle, left);
+            if (keys[right] < keys[left]) swap(right, left);
+            if (keys[right] < keys[middle]) swap(right, middle);
+            double pivot = keys[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (keys[i] < pivot) ++i;
+                while (keys[j] > pivot) --j;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int p, int q) {
+        int city = cities[p];
+        cities[p] = cities[q];
+        cities[q] = city;
+        double x = xs[p];
+        xs[p] = xs[q];
+        xs[q] = x;
+        double y = ys[p];
+        ys[p] = ys[q];
+        ys[q] = y;
+    }
+
+    // Updates the live counts on the path from the root to position
+    private void setRemoved(int position, boolean isRemoved) {
+        removed[position] = isRemoved;
+        int change = isRemoved ? -1 : 1;
+        int lo = 0;
+        int hi = cities.length;
+        while (true) {
+            int mid = (lo + hi) >>> 1;
+            liveCounts[mid] += change;
+            if (position == mid) {
+                return;
+            } else if (position < mid) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+    }
+
+    private void searchNearest(int lo, int hi) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (liveCounts[mid] == 0) {
+            return;
+        }
+
+        if (!removed[mid]) {
+            double dx = xs[mid] - queryX;
+            double dy = ys[mid] - queryY;
+            double squared = dx * dx + dy * dy;
+            if (squared < bestSquared) {
+                best = mid;
+                bestSquared = squared;
+            }
+        }
+
+        // Query's side of the split line first, the other side only if the
+        // line is closer than the best city so far
+        double diff = splits[mid] == 0 ? queryX - xs[mid] : queryY - ys[mid];
+        if (diff < 0) {
+            searchNearest(lo, mid);
+            if (diff * diff < bestSquared) {
+                searchNearest(mid + 1, hi);
+            }
+        } else {
+            searchNearest(mid + 1, hi);
+            if (diff * diff < bestSquared) {
+                searchNearest(lo, mid);
+            }
+        }
+    }
+
+    private void searchNearestK(int lo, int hi) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (liveCounts[mid] == 0) {
+            return;
+        }
+
+        if (!removed[mid]) {
+            double dx = xs[mid] - queryX;
+            double dy = ys[mid] - queryY;
+            double squared = dx * dx + dy * dy;
+            if (numFound < maxFound || squared < foundSquared[maxFound - 1]) {
+                // Insertion into the sorted candidates (k is small)
+                int i = numFound < maxFound ? numFound++ : maxFound - 1;
+                while (i > 0 && foundSquared[i - 1] > squared) {
+                    found[i] = found[i - 1];
+                    foundSquared[i] = foundSquared[i - 1];
+                    --i;
+                }
+                found[i] = mid;
+                foundSquared[i] = squared;
+            }
+        }
+
+        double diff = splits[mid] == 0 ? queryX - xs[mid] : queryY - ys[mid];
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        searchNearestK(nearLo, nearHi);
+        if (numFound < maxFound || diff * diff < foundSquared[maxFound - 1]) {
+            searchNearestK(farLo, farHi);
+        }
+    }
+
+    private void searchRadius(int lo, int hi) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (liveCounts[mid] == 0) {
+            return;
+        }
+
+        if (!removed[mid]) {
+            double dx = xs[mid] - queryX;
+            double dy = ys[mid] - queryY;
+            if (dx * dx + dy * dy <= radiusSquared) {
+                if (numFound < found.length) {
+                    found[numFound] = cities[mid];
+                }
+                ++numFound;
+            }
+        }
+
+        double diff = splits[mid] == 0 ? queryX - xs[mid] : queryY - ys[mid];
+        if (diff <= 0 || diff * diff <= radiusSquared) {
+            searchRadius(lo, mid);
+        }
+        if (diff >= 0 || diff * diff <= radiusSquared) {
+            searchRadius(mid + 1, hi);
+        }
+    }
+}
+
+//------------------------------------------------------------------------------
+// Centrality
+//------------------------------------------------------------------------------
+
+// Centrality = how important a vertex is, e.g. which servers in a network
+// matter most. Different definitions answer different questions.
+
+// Degree centrality:
+// - Fraction of the other vertices a vertex links to (out-degree) or is
+// linked from (in-degree). O(V + E), but only looks one hop away.
+
+// Closeness centrality:
+// - How close a vertex is to everything it can reach: (r - 1) / (sum of
+// distances to the r - 1 vertices it reaches).
+// - In a disconnected graph a vertex that reaches only a few close vertices
+// would score highly, so the score is scaled by (r - 1) / (V - 1) (the
+// Wasserman-Faust correction).
+// - Needs a breadth-first search from every vertex, O(V (V + E)). The
+// searches are independent and run in parallel.
+
+// Betweenness centrality:
+// - How often a vertex lies on shortest paths between other vertices, i.e.
+// how much traffic would route through a server.
+// - Brandes' algorithm: a breadth-first search from source s counts the
+// shortest paths sigma[v] to every vertex. Walking the vertices back in
+// order of decreasing distance, each vertex v passes on its dependency
+// delta[v] = sum over edges v -> w on a shortest path of
+// sigma[v] / sigma[w] * (1 + delta[w]).
+// - Summing delta over all sources gives the exact betweenness, O(V E).
+// - Sampling k random sources and scaling by V / k gives an unbiased
+// estimate in O(k E). The important vertices stand out after a few hundred
+// sources.
+// - Each worker takes a share of the sources with its own arrays, the
+// workers' scores are added up at the end.
+
+// PageRank:
+// - A random surfer follows a random out-edge with probability d (the
+// damping factor, usually 0.85) and jumps to a random vertex otherwise.
+// The rank of a vertex is the fraction of time spent there.
+// - rank'[v] = (1 - d) / V + d * (sum over u -> v of rank[u] / outDegree[u]
+// + dangling / V), where dangling is the rank of vertices without
+// out-edges, spread evenly so no rank is lost.
+// - Power iteration: repeat until the ranks change by less than a tolerance
+// (L1 norm) or an iteration limit is reached. The error shrinks by about a
+// factor d per iteration.
+// - Pull instead of push: each vertex sums its incoming contributions over
+// the reversed CSR graph. Every vertex is written by exactly one worker, so
+// the iteration is parallel without atomics or locks.
+
+// Every result is a primitive array of scores indexed by CSR vertex number.
+
+// Usage with the BreadthFirstSearch server network:
+// CsrGraph<Server, ?> csr = CsrGraph.fromGraph(graph);
+// double[] ranks = Centrality.computePageRank(csr, pool).getScores();
+// csr.getVertexData(v).getName() has rank ranks[v].
+
+// import java.util.Arrays;
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+// import java.util.concurrent.RecursiveTask;
+// import static com.google.common.base.Preconditions.*;
+
+public final class Centrality {
+    public static final double DEFAULT_DAMPING = 0.85;
+    public static final double DEFAULT_TOLERANCE = 1e-9;
+    public static final int DEFAULT_MAX_ITERATIONS = 100;
+    private static final int VERTICES_PER_TASK = 4096;
+
+    /**
+     * PageRank scores and how the iteration ended.
+     */
+    public static final class PageRank {
+        private double[] scores;
+        private int numIterations;
+        private double change;
+
+        private PageRank(double[] scores, int numIterations, double change) {
+            this.scores = scores;
+            this.numIterations = numIterations;
+            this.change = change;
+        }
+
+        /**
+         * Rank of each vertex, the ranks add up to 1.
+         */
+        public double[] getScores() {
+            return scores;
+        }
+
+        public int getNumIterations() {
+            return numIterations;
+        }
+
+        /**
+         * L1 change of the ranks in the last iteration.
+         */
+        public double getChange() {
+            return change;
+        }
+
+        public boolean isConverged(double tolerance) {
+            return change < tolerance;
+        }
+    }
+
+    // ============================ Degree methods ============================
+
+    /**
+     * Out-degree of each vertex divided by V - 1.
+     */
+    public static double[] computeOutDegreeCentrality(CsrGraph<?, ?> graph) {
+        checkNotNull(graph, "graph must not be null");
+
+        int numVertices = graph.getNumVertices();
+        double scale = numVertices > 1 ? 1.0 / (numVertices - 1) : 0;
+        double[] scores = new double[numVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            scores[v] = (graph.getEdgesEnd(v) - graph.getEdgesBegin(v)) * scale;
+        }
+
+        return scores;
+    }
+
+    /**
+     * In-degree of each vertex divided by V - 1.
+     */
+    public static double[] computeInDegreeCentrality(CsrGraph<?, ?> graph) {
+        checkNotNull(graph, "graph must not be null");
+
+        int numVertices = graph.getNumVertices();
+        double scale = numVertices > 1 ? 1.0 / (numVertices - 1) : 0;
+        double[] scores = new double[numVertices];
+        for (int e = 0; e < graph.getNumEdges(); ++e) {
+            scores[graph.getEdgeTarget(e)] += scale;
+        }
+
+        return scores;
+    }
+
+    // =========================== PageRank methods ===========================
+
+    public static PageRank computePageRank(
+            CsrGraph<?, ?> graph,
+            ForkJoinPool pool) {
+        return computePageRank(graph, DEFAULT_DAMPING, DEFAULT_TOLERANCE,
+                DEFAULT_MAX_ITERATIONS, pool);
+    }
+
+    /**
+     * PageRank by power iteration, stopping once the L1 change of the ranks
+     * drops below tolerance or after maxIterations iterations.
+     */
+    public static PageRank computePageRank(
+            CsrGraph<?, ?> graph,
+            final double damping,
+            double tolerance,
+            int maxIterations,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkArgument(damping >= 0 && damping < 1,
+                "damping must be in [0, 1)");
+        checkArgument(tolerance >= 0, "tolerance must not be negative");
+        checkArgument(maxIterations > 0, "maxIterations must be positive");
+        checkNotNull(pool, "pool must not be null");
+
+        final int numVertices = graph.getNumVertices();
+        if (numVertices == 0) {
+            return new PageRank(new double[0], 0, 0);
+        }
+
+        // Incoming edges of each vertex, and how many edges leave it
+        final CsrGraph<?, ?> incoming = graph.reverse();
+        final int[] outDegrees = new int[numVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            outDegrees[v] = graph.getEdgesEnd(v) - graph.getEdgesBegin(v);
+        }
+
+        final double[][] ranks = {
+                new double[numVertices], new double[numVertices]};
+        final double[] contributions = new double[numVertices];
+        Arrays.fill(ranks[0], 1.0 / numVertices);
+
+        int iteration = 0;
+        double change = Double.MAX_VALUE;
+        while (iteration < maxIterations && change >= tolerance) {
+            final double[] current = ranks[iteration & 1];
+            final double[] next = ranks[(iteration + 1) & 1];
+
+            // Share of its rank each vertex sends along every out-edge;
+            // vertices without out-edges give their rank to everyone
+            double dangling = sum(pool, numVertices, new RangeBody() {
+                public double run(int begin, int end) {
+                    double dangling = 0;
+                    for (int v = begin; v < end; ++v) {
+                        if (outDegrees[v] == 0) {
+                            dangling += current[v];
+                            contributions[v] = 0;
+                        } else {
+                            contributions[v] = current[v] / outDegrees[v];
+                        }
+                    }
+                    return dangling;
+                }
+            });
+
+            // Each vertex pulls its incoming contributions
+            final double base =
+                    (1 - damping + damping * dangling) / numVertices;
+            change = sum(pool, numVertices, new RangeBody() {
+                public double run(int begin, int end) {
+                    double change = 0;
+                    for (int v = begin; v < end; ++v) {
+                        double incomingRank = 0;
+                        for (int e = incoming.getEdgesBegin(v),
+                                     last = incoming.getEdgesEnd(v);
+                                e < last; ++e) {
+                            incomingRank +=
+                                    contributions[incoming.getEdgeTarget(e)];
+                        }
+                        next[v] = base + damping * incomingRank;
+                        change += Math.abs(next[v] - current[v]);
+                    }
+                    return change;
+                }
+            });
+            ++iteration;
+        }
+
+        return new PageRank(ranks[iteration & 1], iteration, change);
+    }
+
+    // ========================= Betweenness methods ==========================
+
+    /**
+     * Estimates betweenness centrality from numSamples random sources
+     * (without repeats), scaled up to all V sources. With numSamples >= V
+     * the result is exact. Paths are counted in edge direction, so for an
+     * undirected graph stored in both directions every pair counts twice.
+     */
+    public static double[] computeBetweenness(
+            CsrGraph<?, ?> graph,
+            int numSamples,
+            long seed,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkArgument(numSamples > 0, "numSamples must be positive");
+        checkNotNull(pool, "pool must not be null");
+
+        int numVertices = graph.getNumVertices();
+        numSamples = Math.min(numSamples, numVertices);
+
+        // The first numSamples entries of a partial shuffle are the sources
+        int[] sources = new int[numVertices];
+        for (int v = 0; v < numVertices; ++v) {
+            sources[v] = v;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < numSamples; ++i) {
+            int j = i + random.nextInt(numVertices - i);
+            int source = sources[j];
+            sources[j] = sources[i];
+            sources[i] = source;
+        }
+
+        if (numSamples == 0) {
+            return new double[numVertices];
+        }
+        int sourcesPerTask = (numSamples + pool.getParallelism() - 1)
+                / pool.getParallelism();
+        double[] scores = pool.invoke(new BrandesTask(
+                graph, sources, 0, numSamples, sourcesPerTask));
+
+        double scale = (double) numVertices / numSamples;
+        for (int v = 0; v < numVertices; ++v) {
+            scores[v] *= scale;
+        }
+
+        return scores;
+    }
+
+    // Runs Brandes' algorithm from a range of sources, one task per share of
+    // sources so each task allocates its arrays once
+    private static final class BrandesTask extends RecursiveTask<double[]> {
+        private CsrGraph<?, ?> graph;
+        private int[] sources;
+        private int begin, end;
+        private int sourcesPerTask;
+
+        private BrandesTask(
+                CsrGraph<?, ?> graph,
+                int[] sources,
+                int begin,
+                int end,
+                int sourcesPerTask) {
+            this.graph = graph;
+            this.sources = sources;
+            this.begin = begin;
+            this.end = end;
+            this.sourcesPerTask = sourcesPerTask;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (end - begin > sourcesPerTask) {
+                int middle = (begin + end) >>> 1;
+                BrandesTask left = new BrandesTask(
+                        graph, sources, begin, middle, sourcesPerTask);
+                left.fork();
+                double[] scores = new BrandesTask(
+                        graph, sources, middle, end, sourcesPerTask).compute();
+                double[] leftScores = left.join();
+                for (int v = 0; v < scores.length; ++v) {
+                    scores[v] += leftScores[v];
+                }
+                return scores;
+            }
+
+            int numVertices = graph.getNumVertices();
+            double[] scores = new double[numVertices];
+            int[] distances = new int[numVertices];
+            double[] numPaths = new double[numVertices];
+            double[] dependencies = new double[numVertices];
+            int[] order = new int[numVertices];
+            Arrays.fill(distances, -1);
+
+            for (int i = begin; i < end; ++i) {
+                int source = sources[i];
+
+                // Count shortest paths breadth-first; order doubles as the
+                // queue and lists the reached vertices by distance
+                distances[source] = 0;
+                numPaths[source] = 1;
+                order[0] = source;
+                int numReached = 1;
+                for (int head = 0; head < numReached; ++head) {
+                    int v = order[head];
+                    for (int e = graph.getEdgesBegin(v),
+                                 last = graph.getEdgesEnd(v); e < last; ++e) {
+                        int w = graph.getEdgeTarget(e);
+                        if (distances[w] == -1) {
+                            distances[w] = distances[v] + 1;
+                            order[numReached++] = w;
+                        }
+                        if (distances[w] == distances[v] + 1) {
+                            numPaths[w] += numPaths[v];
+                        }
+                    }
+                }
+
+                // Accumulate dependencies from the farthest vertices back
+                for (int j = numReached - 1; j > 0; --j) {
+                    int v = order[j];
+                    double dependency = 0;
+                    for (int e = graph.getEdgesBegin(v),
+                                 last = graph.getEdgesEnd(v); e < last; ++e) {
+                        int w = graph.getEdgeTarget(e);
+                        if (distances[w] == distances[v] + 1) {
+                            dependency += numPaths[v] / numPaths[w]
+                                    * (1 + dependencies[w]);
+                        }
+                    }
+                    dependencies[v] = dependency;
+                    scores[v] += dependency;
+                }
+
+                // Reset only what this source touched
+                for (int j = 0; j < numReached; ++j) {
+                    int v = order[j];
+                    distances[v] = -1;
+                    numPaths[v] = 0;
+                    dependencies[v] = 0;
+                }
+            }
+
+            return scores;
+        }
+    }
+
+    // ========================== Closeness methods ===========================
+
+    /**
+     * Closeness centrality of every vertex from the distances to the
+     * vertices it reaches, with the Wasserman-Faust correction for
+     * disconnected graphs. Vertices that reach nothing score 0.
+     */
+    public static double[] computeCloseness(
+            final CsrGraph<?, ?> graph,
+            ForkJoinPool pool) {
+        checkNotNull(graph, "graph must not be null");
+        checkNotNull(pool, "pool must not be null");
+
+        int numVertices = graph.getNumVertices();
+        double[] scores = new double[numVertices];
+        if (numVertices == 0) {
+            return scores;
+        }
+        int sourcesPerTask = (numVertices + pool.getParallelism() - 1)
+                / pool.getParallelism();
+        pool.invoke(new ClosenessTask(
+                graph, scores, 0, numVertices, sourcesPerTask));
+
+        return scores;
+    }
+
+    // Runs a breadth-first search from a range of sources, one task per share
+    // of sources so each task allocates its arrays once
+    private static final class ClosenessTask extends RecursiveAction {
+        private CsrGraph<?, ?> graph;
+        private double[] scores;
+        private int begin, end;
+        private int sourcesPerTask;
+
+        private ClosenessTask(
+                CsrGraph<?, ?> graph,
+                double[] scores,
+                int begin,
+                int end,
+                int sourcesPerTask) {
+            this.graph = graph;
+            this.scores = scores;
+            this.begin = begin;
+            this.end = end;
+            this.sourcesPerTask = sourcesPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin > sourcesPerTask) {
+                int middle = (begin + end) >>> 1;
+                invokeAll(
+                        new ClosenessTask(
+                                graph, scores, begin, middle, sourcesPerTask),
+                        new ClosenessTask(
+                                graph, scores, middle, end, sourcesPerTask));
+                return;
+            }
+
+            int numVertices = graph.getNumVertices();
+            int[] distances = new int[numVertices];
+            int[] queue = new int[numVertices];
+            Arrays.fill(distances, -1);
+
+            for (int source = begin; source < end; ++source) {
+                distances[source] = 0;
+                queue[0] = source;
+                int numReached = 1;
+                long totalDistance = 0;
+                for (int head = 0; head < numReached; ++head) {
+                    int v = queue[head];
+                    totalDistance += distances[v];
+                    for (int e = graph.getEdgesBegin(v),
+                                 last = graph.getEdgesEnd(v); e < last; ++e) {
+                        int w = graph.getEdgeTarget(e);
+                        if (distances[w] == -1) {
+                            distances[w] = distances[v] + 1;
+                            queue[numReached++] = w;
+                        }
+                    }
+                }
+
+                if (totalDistance > 0) {
+                    double reached = numReached - 1;
+                    scores[source] = reached / totalDistance
+                            * reached / (numVertices - 1);
+                }
+                for (int j = 0; j < numReached; ++j) {
+                    distances[queue[j]] = -1;
+                }
+            }
+        }
+    }
+
+    // ============================ Range methods =============================
+
+    // Work on the vertices begin up to end, returning a partial sum
+    private interface RangeBody {
+        double run(int begin, int end);
+    }
+
+    // Runs body over 0 up to numVertices in parallel and adds up the results.
+    // The ranges are split the same way every time, so the sum does not
+    // depend on the number of threads.
+    private static double sum(
+            ForkJoinPool pool,
+            int numVertices,
+            RangeBody body) {
+        return pool.invoke(new RangeTask(body, 0, numVertices));
+    }
+
+    private static final class RangeTask extends RecursiveTask<Double> {
+        private RangeBody body;
+        private int begin, end;
+
+        private RangeTask(RangeBody body, int begin, int end) {
+            this.body = body;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected Double compute() {
+            if (end - begin <= VERTICES_PER_TASK) {
+                return body.run(begin, end);
+            }
+
+            int middle = (begin + end) >>> 1;
+            RangeTask left = new RangeTask(body, begin, middle);
+            left.fork();
+            double right = new RangeTask(body, middle, end).compute();
+            return left.join() + right;
+        }
+    }
+}
+
+// Benchmark:
+// - Times PageRank with 1, 2, 4, ... threads on a random graph whose edges
+// favour low-numbered vertices (a few hubs, like a server network), then
+// sampled betweenness and exact closeness on a smaller graph.
+// - The thread counts go up to the number of processors, or to the fourth
+// argument. Measured on a single core, 1,000,000 vertices and 8,000,000
+// edges: PageRank ~1 second (19 iterations to 1e-9), betweenness ~0.3
+// seconds per sampled source (20 sources ~6 seconds), closeness of 5,000
+// vertices ~0.7 seconds.
+
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class CentralityBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int numVertices = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numSamples = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int closenessVertices =
+                args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        CsrGraph<Object, Object> graph = buildHubGraph(numVertices, 8, 42);
+        System.out.println(graph.getNumVertices() + " vertices, "
+                + graph.getNumEdges() + " edges.");
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long start = System.nanoTime();
+            Centrality.PageRank ranks = Centrality.computePageRank(graph, pool);
+            long stop = System.nanoTime();
+            pool.shutdown();
+            System.out.println("PageRank with " + threads + " threads took "
+                    + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, "
+                    + ranks.getNumIterations() + " iterations, rank of vertex 0: "
+                    + ranks.getScores()[0]);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(maxThreads);
+        long start = System.nanoTime();
+        double[] betweenness =
+                Centrality.computeBetweenness(graph, numSamples, 7, pool);
+        long stop = System.nanoTime();
+        System.out.println(numSamples + "-source betweenness took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND
+                + " seconds, betweenness of vertex 0: " + betweenness[0]);
+
+        CsrGraph<Object, Object> small = buildHubGraph(closenessVertices, 8, 42);
+        start = System.nanoTime();
+        double[] closeness = Centrality.computeCloseness(small, pool);
+        stop = System.nanoTime();
+        pool.shutdown();
+        System.out.println(closenessVertices + "-vertex closeness took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND
+                + " seconds, closeness of vertex 0: " + closeness[0]);
+    }
+
+    // Every vertex gets outDegree edges to random targets, with target
+    // numbers skewed towards 0 so the first vertices become hubs
+    public static CsrGraph<Object, Object> buildHubGraph(
+            int numVertices,
+            int outDegree,
+            long seed) {
+        Random random = new Random(seed);
+        int[] edgeOffsets = new int[numVertices + 1];
+        int[] edgeTargets = new int[numVertices * outDegree];
+        for (int v = 0; v < numVertices; ++v) {
+            edgeOffsets[v + 1] = edgeOffsets[v] + outDegree;
+            for (int e = edgeOffsets[v]; e < edgeOffsets[v + 1]; ++e) {
+                double x = random.nextDouble();
+                edgeTargets[e] = (int) (x * x * numVertices);
+            }
+        }
+
+        return new CsrGraph<Object, Object>(edgeOffsets, edgeTargets);
+    }
+}
@@ -307,6 +307,220 @@ public class Main {
     }
 }
 
+//------------------------------------------------------------------------------
+// Indexed Priority Queues 
+//------------------------------------------------------------------------------
+
+// Graph algorithms such as Dijkstra's and Prim's repeatedly need the vertex
+// with the smallest cost, and they also lower the cost of vertices that are
+// already waiting in the queue (decrease-key).
+
+// The priority queue above cannot find an item inside the heap, so the only
+// options are to scan every vertex (O(V) per step) or to insert a duplicate
+// entry and skip stale ones later (lazy deletion).
+
+// An indexed priority queue stores items as ints 0..capacity-1 (e.g. vertex
+// numbers) and remembers where each item sits in the heap:
+// - heap[i] = item stored at heap position i.
+// - positions[item] = heap position of item, or -1 if not in the queue.
+// - priorities[item] = priority of item.
+// - Decrease-key looks up the item's position in O(1) and sifts it up in
+// O(log n), so Dijkstra's algorithm runs in O(E log V).
+// - Everything is stored in primitive arrays, there are no objects per item.
+
+// Implementation.
+// Note* that this is a min-queue, the smallest priority is extracted first.
+
+// import java.util.Arrays;
+
+public class IndexedMinPriorityQueue {
+    private int[] heap;             // Items in heap order
+    private int[] positions;        // Heap position of each item, -1 if absent
+    private double[] priorities;    // Priority of each item
+    private int size;
+
+    public IndexedMinPriorityQueue(int capacity) {
+        heap = new int[capacity];
+        positions = new int[capacity];
+        priorities = new double[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    public int getCapacity() {
+        return heap.length;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int item) {
+        return positions[item] >= 0;
+    }
+
+    public double getPriority(int item) throws NoSuchElementException {
+        if (!contains(item)) {
+            throw new NoSuchElementException();
+        }
+
+        return priorities[item];
+    }
+
+    public void insert(int item, double priority) throws
+            IllegalStateException {
+        if (contains(item)) {
+            throw new IllegalStateException("Item already in priority queue");
+        }
+
+        // Insert as right-most node in last level and push it upward
+        heap[size] = item;
+        positions[item] = size;
+        priorities[item] = priority;
+        ++size;
+        siftUp(size - 1);
+    }
+
+    public void decreasePriority(int item, double priority) throws
+            NoSuchElementException,
+            IllegalArgumentException {
+        if (!contains(item)) {
+            throw new NoSuchElementException();
+        }
+        if (priority > priorities[item]) {
+            throw new IllegalArgumentException(
+                    "priority must not be greater than current priority");
+        }
+
+        priorities[item] = priority;
+        siftUp(positions[item]);
+    }
+
+    /**
+     * Sets the priority of a queued item, moving it up or down the heap.
+     */
+    public void changePriority(int item, double priority) throws
+            NoSuchElementException {
+        if (!contains(item)) {
+            throw new NoSuchElementException();
+        }
+
+        double previous = priorities[item];
+        priorities[item] = priority;
+        if (priority < previous) {
+            siftUp(positions[item]);
+        } else {
+            siftDown(positions[item]);
+        }
+    }
+
+    /**
+     * Inserts item, or lowers its priority if it is already queued and the
+     * new priority is smaller. Returns whether the queue changed.
+     */
+    public boolean insertOrDecrease(int item, double priority) {
+        if (!contains(item)) {
+            insert(item, priority);
+            return true;
+        }
+        if (priority < priorities[item]) {
+            decreasePriority(item, priority);
+            return true;
+        }
+        return false;
+    }
+
+    public int peek() throws IllegalStateException {
+        if (isEmpty()) {
+            throw new IllegalStateException(
+                    "Cannot peek into empty priority queue");
+        }
+
+        return heap[0];
+    }
+
+    public int extract() throws IllegalStateException {
+        if (isEmpty()) {
+            throw new IllegalStateException(
+                    "Cannot extract from empty priority queue");
+        }
+
+        // Replace the root with the right-most node and push it downward
+        int extracted = heap[0];
+        --size;
+        positions[extracted] = -1;
+        if (size > 0) {
+            heap[0] = heap[size];
+            positions[heap[0]] = 0;
+            siftDown(0);
+        }
+
+        return extracted;
+    }
+
+    /**
+     * Removes all items in O(size) rather than O(capacity), so the queue can
+     * be reused between runs.
+     */
+    public void clear() {
+        for (int i = 0; i < size; ++i) {
+            positions[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        int item = heap[position];
+        double priority = priorities[item];
+
+        // Move parents down until the item's position is found
+        while (position > 0) {
+            int parentPosition = (position - 1) / 2;
+            int parent = heap[parentPosition];
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            heap[position] = parent;
+            positions[parent] = position;
+            position = parentPosition;
+        }
+
+        heap[position] = item;
+        positions[item] = position;
+    }
+
+    private void siftDown(int position) {
+        int item = heap[position];
+        double priority = priorities[item];
+
+        // Move smaller children up until the item's position is found
+        while (true) {
+            int childPosition = position * 2 + 1;
+            if (childPosition >= size) {
+                break;
+            }
+            if (childPosition + 1 < size
+                    && priorities[heap[childPosition + 1]]
+                            < priorities[heap[childPosition]]) {
+                ++childPosition;
+            }
+            int child = heap[childPosition];
+            if (priorities[child] >= priority) {
+                break;
+            }
+            heap[position] = child;
+            positions[child] = position;
+            position = childPosition;
+        }
+
+        heap[position] = item;
+        positions[item] = position;
+    }
+}
+
 //------------------------------------------------------------------------------
 // Huffman Coding 
 //------------------------------------------------------------------------------
@@ -279,16 +279,26 @@ public class Main {
 
 public class InsertionSort {
     public static <T> void insertionSort(T[] array, Comparator<? super T> comparator) {
+        insertionSort(array, 0, array.length - 1, comparator);
+    }
+
+    // Sorts only the elements from index first to index last (inclusive), so
+    // other sorts can hand it their small pieces.
+    public static <T> void insertionSort(
+            T[] array,
+            int first,
+            int last,
+            Comparator<? super T> comparator) {
 
         // Repeatedly insert the next unsorted element (the key) into the
         // sorted elements
-        for (int j = 1; j < array.length; ++j) {
+        for (int j = first + 1; j <= last; ++j) {
             T key = array[j];
 
             // Move backward through sorted elements, shifting each one up
             // until we find the location where the key will be inserted
             int i = j - 1;
-            while (i >= 0 && comparator.compare(array[i], key) > 0) {
+            while (i >= first && comparator.compare(array[i], key) > 0) {
                 array[i + 1] = array[i];
                 --i;
             }
@@ -346,41 +356,240 @@ public class InsertionSort {
 
 // Does not work if you cannot load all of the data into memory at once.
 
-
-
+// Introsort:
+// - Random pivots make the O(n^2) case unlikely, but do not rule it out, and
+// recursing into both halves can still nest O(n) calls deep.
+// - Recurse only into the smaller partition and loop on the larger one (tail
+// call elimination by hand). The smaller side is at most half, so the call
+// stack never gets deeper than log n.
+// - Count the partitioning levels. Past 2 log n levels the pivots have been
+// bad far too often, so the range is finished with heapsort: O(n log n) in
+// every case, in-place, only slower on average. This makes the worst case
+// O(n log n) no matter the input (introspective sort, Musser 1997).
+// - Small ranges are left to insertion sort. Below a few dozen elements it
+// beats partitioning, which spends most of its time on overhead (flat from
+// about 24 to 64 elements in the benchmark; larger cutoffs do more
+// comparisons, so 32 keeps costly comparators cheap).
+
+// Pivot selection:
+// - Median of three random elements for small ranges.
+// - Ninther for large ranges: the median of the medians of three groups of
+// three. Costs 12 comparisons instead of 3, but lands much closer to the
+// true median, which pays off once a partition pass costs thousands of
+// comparisons.
+// - The random positions come from ThreadLocalRandom. Creating a new Random
+// for every partition allocates an object and seeds it from a shared
+// counter each time; the thread's own generator needs neither and is safe
+// to use from many threads at once.
+
+// Partitioning schemes:
+// - Two-way (Hoare): one pivot, two partitions. Elements equal to the pivot
+// can land on either side, so an array of only a few distinct keys keeps
+// swapping and splitting runs of equal elements that are already in place.
+// - Three-way (Dutch national flag, Dijkstra): one pivot, three partitions
+// (less than, equal to, greater than). The equal partition is finished
+// and never looked at again, so an array with d distinct keys takes
+// O(n log d) instead of O(n log n). Slightly more swaps on distinct keys.
+// - Dual-pivot (Yaroslavskiy, the sort in Arrays.sort for primitives): two
+// pivots p1 <= p2 split the range into three parts (< p1, between, > p2)
+// in one pass. Each level shrinks the range to about a third, so there are
+// fewer levels and fewer passes over memory than with one pivot.
+// - quickSort samples the array once to choose: if many of the sampled
+// elements are equal, three-way partitioning; otherwise dual-pivot. The
+// other schemes have their own entry points to compare against.
+
+// Parallel quicksort:
+// - After partitioning, the two sides are independent and can be sorted by
+// different threads (fork-join), down to a sequential threshold.
+// - Sorting the sides in parallel is not enough: the first partition pass
+// touches all n elements on one thread, so the speedup can never exceed
+// about log n. The large partitions themselves have to be parallel.
+// - Parallel three-way partition: cut the range into blocks. Each thread
+// counts how many elements of its blocks are less than, equal to and
+// greater than the pivot. Prefix sums over the block counts give every
+// block the position where each of its three groups starts, then every
+// block copies its elements to those positions in a buffer in parallel,
+// and the buffer is copied back.
+// - Needs a buffer of n elements (no longer in-place) and compares every
+// element twice, but each pass is spread over all threads.
 
 // Quicksort Implementation:
 
 // import java.util.Comparator;
-// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+// import java.util.concurrent.ThreadLocalRandom;
 
 public class QuickSort {
+    // Ranges this small are insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    // Ranges at least this large use the ninther as pivot
+    private static final int NINTHER_THRESHOLD = 128;
+
+    // Arrays at least this large are sampled to choose the partitioning
+    private static final int SAMPLE_THRESHOLD = 1024;
+
+    // Number of sampled elements, and how many of them must equal another
+    // sampled element to pick three-way partitioning
+    private static final int SAMPLE_SIZE = 64;
+    private static final int SAMPLE_DUPLICATES_THRESHOLD = 8;
+
+    // Partitioning schemes
+    private static final int TWO_WAY = 0;
+    private static final int THREE_WAY = 1;
+    private static final int DUAL_PIVOT = 2;
+
+    // Ranges this small are sorted by one thread
+    private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+    // Number of elements each thread counts and copies at a time
+    private static final int PARTITION_BLOCK_SIZE = 1 << 13;
+
     public static <T> void quickSort(T[] array, Comparator<? super T> comparator) {
-        // Simply calling quicksort on the entire way.
-        quickSortRecursive(array, 0, array.length - 1, comparator); 
+        int partitioning = array.length >= SAMPLE_THRESHOLD
+                && hasManyDuplicates(array, comparator) ? THREE_WAY : DUAL_PIVOT;
+        quickSort(array, partitioning, comparator);
     }
 
-    // This function will recursively call itself until the array is fully partitioned
-    // and sorted.
-    private static <T> void quickSortRecursive(
+    public static <T> void quickSortTwoWay(
             T[] array,
-            int i,
-            int k,
             Comparator<? super T> comparator) {
+        quickSort(array, TWO_WAY, comparator);
+    }
+
+    public static <T> void quickSortThreeWay(
+            T[] array,
+            Comparator<? super T> comparator) {
+        quickSort(array, THREE_WAY, comparator);
+    }
+
+    public static <T> void quickSortDualPivot(
+            T[] array,
+            Comparator<? super T> comparator) {
+        quickSort(array, DUAL_PIVOT, comparator);
+    }
 
-        // Stop the recursion when it is not possible to partition further
-        if (i >= k) {
+    private static <T> void quickSort(
+            T[] array,
+            int partitioning,
+            Comparator<? super T> comparator) {
+        if (array.length < 2) {
             return;
         }
 
-        // Determine where to partition the elements
-        int j = partition(array, i, k, comparator);
+        // Allow 2 log n levels of partitioning before falling back to heapsort
+        int depthLimit = 2 * (31 - Integer.numberOfLeadingZeros(array.length));
+        introSort(array, 0, array.length - 1,
+                depthLimit, partitioning, comparator);
+    }
+
+    // Sorts a random sample of the array and counts the sampled elements that
+    // are equal to their predecessor.
+    private static <T> boolean hasManyDuplicates(
+            T[] array,
+            Comparator<? super T> comparator) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Object[] sample = new Object[SAMPLE_SIZE];
+        for (int s = 0; s < SAMPLE_SIZE; ++s) {
+            sample[s] = array[random.nextInt(array.length)];
+        }
+        @SuppressWarnings("unchecked")
+        T[] sorted = (T[]) sample;
+        InsertionSort.insertionSort(sorted, comparator);
+
+        int duplicates = 0;
+        for (int s = 1; s < SAMPLE_SIZE; ++s) {
+            if (comparator.compare(sorted[s - 1], sorted[s]) == 0) {
+                ++duplicates;
+            }
+        }
+
+        return duplicates >= SAMPLE_DUPLICATES_THRESHOLD;
+    }
+
+    // Sorts the elements from index i to index k (inclusive).
+    private static <T> void introSort(
+            T[] array,
+            int i,
+            int k,
+            int depthLimit,
+            int partitioning,
+            Comparator<? super T> comparator) {
+
+        // Partition until the range is small enough for insertion sort
+        while (k - i + 1 > INSERTION_SORT_THRESHOLD) {
+            if (depthLimit == 0) {
+                // Too many bad pivots, guarantee O(n log n)
+                heapSort(array, i, k, comparator);
+                return;
+            }
+            --depthLimit;
+
+            if (partitioning == TWO_WAY) {
+                // Determine where to partition the elements
+                int j = partition(array, i, k, comparator);
+
+                // Recurse into the smaller partition, keep looping on the larger
+                if (j - i < k - j) {
+                    introSort(array, i, j,
+                            depthLimit, partitioning, comparator);
+                    i = j + 1;
+                } else {
+                    introSort(array, j + 1, k,
+                            depthLimit, partitioning, comparator);
+                    k = j;
+                }
+            } else {
+                // Three partitions [i, lt - 1], [lt, gt] and [gt + 1, k]
+                long bounds = partitioning == THREE_WAY
+                        ? partitionThreeWay(array, i, k, comparator)
+                        : partitionDualPivot(array, i, k, comparator);
+                int lt = (int) (bounds >>> 32);
+                int gt = (int) bounds;
+
+                // Three-way: the middle holds only the pivot and is done.
+                // Dual-pivot: the middle still needs sorting unless the
+                // pivots were equal.
+                int middleFirst = lt;
+                int middleLast = gt;
+                if (partitioning == THREE_WAY
+                        || comparator.compare(array[lt], array[gt]) == 0) {
+                    middleFirst = lt + 1;
+                    middleLast = lt;
+                } else {
+                    ++middleFirst;
+                    --middleLast;
+                }
 
-        // Sort the left partition
-        quickSortRecursive(array, i, j, comparator);
+                // Recurse into the two smaller partitions, loop on the largest
+                int leftSize = lt - i;
+                int middleSize = middleLast - middleFirst + 1;
+                int rightSize = k - gt;
+                if (leftSize >= middleSize && leftSize >= rightSize) {
+                    introSort(array, middleFirst, middleLast,
+                            depthLimit, partitioning, comparator);
+                    introSort(array, gt + 1, k,
+                            depthLimit, partitioning, comparator);
+                    k = lt - 1;
+                } else if (rightSize >= middleSize) {
+                    introSort(array, i, lt - 1,
+                            depthLimit, partitioning, comparator);
+                    introSort(array, middleFirst, middleLast,
+                            depthLimit, partitioning, comparator);
+                    i = gt + 1;
+                } else {
+                    introSort(array, i, lt - 1,
+                            depthLimit, partitioning, comparator);
+                    introSort(array, gt + 1, k,
+                            depthLimit, partitioning, comparator);
+                    i = middleFirst;
+                    k = middleLast;
+                }
+            }
+        }
 
-        // Sort the right partition
-        quickSortRecursive(array, j + 1, k, comparator);
+        InsertionSort.insertionSort(array, i, k, comparator);
     }
 
     // Partition algorithm.
@@ -390,8 +599,10 @@ public class QuickSort {
             int k,
             Comparator<? super T> comparator) {
 
-        // Use the median-of-three method to find the partition value
-        T p = medianOfThree(array, i, k, comparator);
+        // Pick the partition value from a random sample
+        T p = k - i + 1 >= NINTHER_THRESHOLD
+                ? ninther(array, i, k, comparator)
+                : medianOfThree(array, i, k, comparator);
 
         // Create two partitions around the partition value
         --i;
@@ -421,6 +632,123 @@ public class QuickSort {
         return k;
     }
 
+    // Three-way partition algorithm: afterwards [i, lt - 1] is less than the
+    // pivot, [lt, gt] equal to it and [gt + 1, k] greater. Returns lt in the
+    // high 32 bits and gt in the low 32 bits.
+    private static <T> long partitionThreeWay(
+            T[] array,
+            int i,
+            int k,
+            Comparator<? super T> comparator) {
+
+        // Pick the partition value from a random sample
+        T p = k - i + 1 >= NINTHER_THRESHOLD
+                ? ninther(array, i, k, comparator)
+                : medianOfThree(array, i, k, comparator);
+
+        // Everything before lt is less, everything after gt is greater, and
+        // everything from lt up to m is equal
+        int lt = i;
+        int gt = k;
+        int m = i;
+        while (m <= gt) {
+            int c = comparator.compare(array[m], p);
+            if (c < 0) {
+                swap(array, lt++, m++);
+            } else if (c > 0) {
+                // The element swapped in from gt is unexamined, so m stays
+                swap(array, m, gt--);
+            } else {
+                ++m;
+            }
+        }
+
+        return ((long) lt << 32) | gt;
+    }
+
+    // Dual-pivot partition algorithm: afterwards the pivots p1 <= p2 are at
+    // lt and gt, [i, lt - 1] is less than p1, [lt + 1, gt - 1] is from p1 to
+    // p2 and [gt + 1, k] is greater than p2. Returns lt in the high 32 bits
+    // and gt in the low 32 bits.
+    private static <T> long partitionDualPivot(
+            T[] array,
+            int i,
+            int k,
+            Comparator<? super T> comparator) {
+
+        // Take one random element from each fifth of the range and sort the
+        // five in place; the second and fourth are the pivots, roughly at the
+        // first and second tercile
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int fifth = (k - i + 1) / 5;
+        int e1 = i + random.nextInt(fifth);
+        int e2 = i + fifth + random.nextInt(fifth);
+        int e3 = i + 2 * fifth + random.nextInt(fifth);
+        int e4 = i + 3 * fifth + random.nextInt(fifth);
+        int e5 = i + 4 * fifth + random.nextInt(fifth);
+
+        // Sorting network for 5 elements (9 compare-exchanges)
+        sortTwo(array, e1, e2, comparator);
+        sortTwo(array, e4, e5, comparator);
+        sortTwo(array, e3, e5, comparator);
+        sortTwo(array, e3, e4, comparator);
+        sortTwo(array, e2, e5, comparator);
+        sortTwo(array, e1, e4, comparator);
+        sortTwo(array, e1, e3, comparator);
+        sortTwo(array, e2, e4, comparator);
+        sortTwo(array, e2, e3, comparator);
+
+        // Park the pivots at the ends of the range
+        swap(array, i, e2);
+        swap(array, k, e4);
+        T p1 = array[i];
+        T p2 = array[k];
+
+        // Everything before lt is less than p1, everything after gt greater
+        // than p2, and everything from lt up to m in between
+        int lt = i + 1;
+        int gt = k - 1;
+        int m = lt;
+        while (m <= gt) {
+            if (comparator.compare(array[m], p1) < 0) {
+                swap(array, lt++, m);
+            } else if (comparator.compare(array[m], p2) > 0) {
+                // Skip elements at the top that are already greater than p2
+                while (m < gt && comparator.compare(array[gt], p2) > 0) {
+                    --gt;
+                }
+                swap(array, m, gt--);
+                if (comparator.compare(array[m], p1) < 0) {
+                    swap(array, lt++, m);
+                }
+            }
+            ++m;
+        }
+
+        // Move the pivots into their final positions
+        swap(array, i, --lt);
+        swap(array, k, ++gt);
+
+        return ((long) lt << 32) | gt;
+    }
+
+    // Swaps the elements at a and b if they are out of order.
+    private static <T> void sortTwo(
+            T[] array,
+            int a,
+            int b,
+            Comparator<? super T> comparator) {
+        if (comparator.compare(array[a], array[b]) > 0) {
+            swap(array, a, b);
+        }
+    }
+
+    private static <T> void swap(T[] array, int a, int b) {
+        T temp = array[a];
+        array[a] = array[b];
+        array[b] = temp;
+    }
+
     private static <T> T medianOfThree(
             T[] array,
             int i,
@@ -428,10 +756,28 @@ public class QuickSort {
             Comparator<? super T> comparator) {
 
         // Get 3 random values from the array
-        Random random = new Random();
-        T a = array[random.nextInt(k - i + 1) + i];
-        T b = array[random.nextInt(k - i + 1) + i];
-        T c = array[random.nextInt(k - i + 1) + i];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        T a = array[random.nextInt(i, k + 1)];
+        T b = array[random.nextInt(i, k + 1)];
+        T c = array[random.nextInt(i, k + 1)];
+
+        return median(a, b, c, comparator);
+    }
+
+    private static <T> T ninther(
+            T[] array,
+            int i,
+            int k,
+            Comparator<? super T> comparator) {
+
+        // The median of the medians of three random triples
+        return median(medianOfThree(array, i, k, comparator),
+                medianOfThree(array, i, k, comparator),
+                medianOfThree(array, i, k, comparator),
+                comparator);
+    }
+
+    private static <T> T median(T a, T b, T c, Comparator<? super T> comparator) {
 
         // Return the median of the 3 values
         if (comparator.compare(a, b) > 0) {             // a > b
@@ -452,6 +798,372 @@ public class QuickSort {
             }
         }
     }
+
+    // Heapsort of the elements from index i to index k: build a max heap in
+    // place, then repeatedly swap its largest element to the end of the range.
+    private static <T> void heapSort(
+            T[] array,
+            int i,
+            int k,
+            Comparator<? super T> comparator) {
+        int size = k - i + 1;
+        for (int parent = size / 2 - 1; parent >= 0; --parent) {
+            siftDown(array, i, parent, size, comparator);
+        }
+        for (int last = size - 1; last > 0; --last) {
+            T temp = array[i];
+            array[i] = array[i + last];
+            array[i + last] = temp;
+            siftDown(array, i, 0, last, comparator);
+        }
+    }
+
+    // Moves the element at heap position parent down until both children
+    // are smaller; heap position p is array index offset + p.
+    private static <T> void siftDown(
+            T[] array,
+            int offset,
+            int parent,
+            int size,
+            Comparator<? super T> comparator) {
+        T value = array[offset + parent];
+        int child;
+        while ((child = 2 * parent + 1) < size) {
+            if (child + 1 < size && comparator.compare(
+                    array[offset + child + 1], array[offset + child]) > 0) {
+                ++child;
+            }
+            if (comparator.compare(array[offset + child], value) <= 0) {
+                break;
+            }
+            array[offset + parent] = array[offset + child];
+            parent = child;
+        }
+        array[offset + parent] = value;
+    }
+
+    public static <T> void parallelSort(
+            T[] array,
+            Comparator<? super T> comparator,
+            ForkJoinPool pool) {
+        if (array.length <= PARALLEL_THRESHOLD) {
+            quickSort(array, comparator);
+            return;
+        }
+
+        int partitioning = hasManyDuplicates(array, comparator)
+                ? THREE_WAY : DUAL_PIVOT;
+        int depthLimit = 2 * (31 - Integer.numberOfLeadingZeros(array.length));
+        Object[] buffer = new Object[array.length];
+        pool.invoke(new ParallelSortTask<T>(array, buffer, 0, array.length - 1,
+                depthLimit, partitioning, comparator));
+    }
+
+    // Sorts the elements from index i to index k (inclusive), partitioning in
+    // parallel and sorting both sides in parallel.
+    private static final class ParallelSortTask<T> extends RecursiveAction {
+        private T[] array;
+        private Object[] buffer;
+        private int i, k, depthLimit, partitioning;
+        private Comparator<? super T> comparator;
+
+        private ParallelSortTask(
+                T[] array,
+                Object[] buffer,
+                int i,
+                int k,
+                int depthLimit,
+                int partitioning,
+                Comparator<? super T> comparator) {
+            this.array = array;
+            this.buffer = buffer;
+            this.i = i;
+            this.k = k;
+            this.depthLimit = depthLimit;
+            this.partitioning = partitioning;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            if (k - i + 1 <= PARALLEL_THRESHOLD || depthLimit == 0) {
+                introSort(array, i, k, depthLimit, partitioning, comparator);
+                return;
+            }
+
+            T p = ninther(array, i, k, comparator);
+            ParallelPartition<T> partition =
+                    new ParallelPartition<T>(array, buffer, i, k, p, comparator);
+            partition.run();
+
+            // The elements equal to the pivot are done
+            invokeAll(new ParallelSortTask<T>(array, buffer, i, partition.lt - 1,
+                            depthLimit - 1, partitioning, comparator),
+                    new ParallelSortTask<T>(array, buffer, partition.gt + 1, k,
+                            depthLimit - 1, partitioning, comparator));
+        }
+    }
+
+    // Three-way partition of the elements from index i to index k around the
+    // pivot, block by block through the buffer. Afterwards [i, lt - 1] is
+    // less than the pivot, [lt, gt] equal to it and [gt + 1, k] greater.
+    private static final class ParallelPartition<T> {
+        private static final int COUNT = 0, SCATTER = 1, COPY = 2;
+
+        private T[] array;
+        private Object[] buffer;
+        private int i, k;
+        private T pivot;
+        private Comparator<? super T> comparator;
+
+        // Per block: number of elements less than and equal to the pivot,
+        // then where the block's less, equal and greater elements go
+        private int[] less, equal;
+        private int[] lessStarts, equalStarts, greaterStarts;
+        private int lt, gt;
+
+        private ParallelPartition(
+                T[] array,
+                Object[] buffer,
+                int i,
+                int k,
+                T pivot,
+                Comparator<? super T> comparator) {
+            this.array = array;
+            this.buffer = buffer;
+            this.i = i;
+            this.k = k;
+            this.pivot = pivot;
+            this.comparator = comparator;
+        }
+
+        private void run() {
+            int numBlocks = (k - i + PARTITION_BLOCK_SIZE) / PARTITION_BLOCK_SIZE;
+            less = new int[numBlocks];
+            equal = new int[numBlocks];
+            new BlockTask(COUNT, 0, numBlocks).invoke();
+
+            // Prefix sums over the blocks
+            lessStarts = new int[numBlocks];
+            equalStarts = new int[numBlocks];
+            greaterStarts = new int[numBlocks];
+            int numLess = 0, numEqual = 0;
+            for (int b = 0; b < numBlocks; ++b) {
+                numLess += less[b];
+                numEqual += equal[b];
+            }
+            int nextLess = i;
+            int nextEqual = i + numLess;
+            int nextGreater = i + numLess + numEqual;
+            for (int b = 0; b < numBlocks; ++b) {
+                lessStarts[b] = nextLess;
+                equalStarts[b] = nextEqual;
+                greaterStarts[b] = nextGreater;
+                int size = Math.min(k + 1, blockBegin(b + 1)) - blockBegin(b);
+                nextLess += less[b];
+                nextEqual += equal[b];
+                nextGreater += size - less[b] - equal[b];
+            }
+            lt = i + numLess;
+            gt = i + numLess + numEqual - 1;
+
+            new BlockTask(SCATTER, 0, numBlocks).invoke();
+            new BlockTask(COPY, 0, numBlocks).invoke();
+        }
+
+        private int blockBegin(int b) {
+            return i + b * PARTITION_BLOCK_SIZE;
+        }
+
+        private void processBlock(int phase, int b) {
+            int begin = blockBegin(b);
+            int end = Math.min(k + 1, blockBegin(b + 1));
+            if (phase == COUNT) {
+                int numLess = 0, numEqual = 0;
+                for (int m = begin; m < end; ++m) {
+                    int c = comparator.compare(array[m], pivot);
+                    if (c < 0) {
+                        ++numLess;
+                    } else if (c == 0) {
+                        ++numEqual;
+                    }
+                }
+                less[b] = numLess;
+                equal[b] = numEqual;
+            } else if (phase == SCATTER) {
+                int nextLess = lessStarts[b];
+                int nextEqual = equalStarts[b];
+                int nextGreater = greaterStarts[b];
+                for (int m = begin; m < end; ++m) {
+                    int c = comparator.compare(array[m], pivot);
+                    if (c < 0) {
+                        buffer[nextLess++] = array[m];
+                    } else if (c == 0) {
+                        buffer[nextEqual++] = array[m];
+                    } else {
+                        buffer[nextGreater++] = array[m];
+                    }
+                }
+            } else {
+                System.arraycopy(buffer, begin, array, begin, end - begin);
+            }
+        }
+
+        private final class BlockTask extends RecursiveAction {
+            private int phase, begin, end;
+
+            private BlockTask(int phase, int begin, int end) {
+                this.phase = phase;
+                this.begin = begin;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                if (end - begin == 1) {
+                    processBlock(phase, begin);
+                    return;
+                }
+                int middle = (begin + end) >>> 1;
+                invokeAll(new BlockTask(phase, begin, middle),
+                        new BlockTask(phase, middle, end));
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 1,000,000 Integers that are random, already sorted, reversed, and
+// random with only 10 distinct values, next to Arrays.sort (a merge sort,
+// TimSort) as the baseline.
+// - The previous version recursed into both halves down to single elements
+// and built a Random per partition: random ~0.30 seconds, sorted ~0.18,
+// reversed ~0.18, many duplicates ~0.14.
+// - quickSort (sampled partitioning) on a single core: random ~0.16 (Arrays.sort
+// ~0.22), sorted ~0.024 (~0.001), reversed ~0.027 (~0.002), many duplicates
+// ~0.026 (~0.07). Arrays.sort finds sorted and reversed input as one run.
+// - Insertion sort thresholds of 8, 16, 24, 32, 48 and 64 gave 0.187, 0.173,
+// 0.172, 0.170, 0.166 and 0.168 seconds on random input.
+
+// import java.util.Arrays;
+// import java.util.Comparator;
+// import java.util.Random;
+
+public class QuickSortBenchmark {
+    public static final Comparator<Integer> NATURAL_ORDER =
+            new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return a.compareTo(b);
+                }
+            };
+
+    /**
+     * Returns the benchmark inputs: random, sorted, reversed and random
+     * with only 10 distinct values.
+     */
+    public static Integer[][] createInputs(int n, long seed) {
+        Random random = new Random(seed);
+        Integer[][] inputs = new Integer[4][n];
+        for (int i = 0; i < n; ++i) {
+            inputs[0][i] = random.nextInt();
+            inputs[1][i] = i;
+            inputs[2][i] = n - i;
+            inputs[3][i] = random.nextInt(10);
+        }
+
+        return inputs;
+    }
+
+    public static final String[] INPUT_NAMES =
+            {"Random", "Sorted", "Reversed", "Many duplicates"};
+
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Integer[][] inputs = createInputs(n, 42);
+        for (int input = 0; input < inputs.length; ++input) {
+            // Best of several runs, each on a fresh copy
+            long quickSort = Long.MAX_VALUE;
+            long baseline = Long.MAX_VALUE;
+            for (int r = 0; r < repeats; ++r) {
+                Integer[] array = inputs[input].clone();
+                long start = System.nanoTime();
+                QuickSort.quickSort(array, NATURAL_ORDER);
+                quickSort = Math.min(quickSort, System.nanoTime() - start);
+
+                array = inputs[input].clone();
+                start = System.nanoTime();
+                Arrays.sort(array, NATURAL_ORDER);
+                baseline = Math.min(baseline, System.nanoTime() - start);
+            }
+            System.out.println(INPUT_NAMES[input] + ": quicksort took "
+                    + quickSort / NANO_SECONDS_PER_SECOND
+                    + " seconds, Arrays.sort took "
+                    + baseline / NANO_SECONDS_PER_SECOND + " seconds.");
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 1,000,000 Integers with each partitioning scheme: distinct random
+// keys, 1,000 distinct keys, 10 distinct keys (like a status code column)
+// and a single repeated key. Two-way is the previous implementation.
+// - Measured on a single core (two-way / three-way / dual-pivot / sampled):
+// distinct 0.163 / 0.218 / 0.165 / 0.163 seconds, 1,000 distinct 0.122 /
+// 0.121 / 0.103 / 0.104, 10 distinct 0.064 / 0.026 / 0.027 / 0.026, all
+// equal 0.037 / 0.0024 / 0.0014 / 0.0024.
+// - Three-way pays for its extra swaps on distinct keys; dual-pivot also does
+// well on few keys because runs between two equal pivots are skipped.
+
+// import java.util.Comparator;
+// import java.util.Random;
+
+public class QuickSortPartitioningBenchmark {
+    public static final String[] INPUT_NAMES =
+            {"Distinct", "1,000 distinct", "10 distinct", "All equal"};
+
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Random random = new Random(42);
+        int[] distinctKeys = {Integer.MAX_VALUE, 1000, 10, 1};
+        Comparator<Integer> comparator = QuickSortBenchmark.NATURAL_ORDER;
+        for (int input = 0; input < distinctKeys.length; ++input) {
+            Integer[] values = new Integer[n];
+            for (int i = 0; i < n; ++i) {
+                values[i] = random.nextInt(distinctKeys[input]);
+            }
+
+            // Best of several runs for each scheme, each on a fresh copy
+            long[] best = {Long.MAX_VALUE, Long.MAX_VALUE,
+                    Long.MAX_VALUE, Long.MAX_VALUE};
+            for (int r = 0; r < repeats; ++r) {
+                for (int scheme = 0; scheme < best.length; ++scheme) {
+                    Integer[] array = values.clone();
+                    long start = System.nanoTime();
+                    if (scheme == 0) {
+                        QuickSort.quickSortTwoWay(array, comparator);
+                    } else if (scheme == 1) {
+                        QuickSort.quickSortThreeWay(array, comparator);
+                    } else if (scheme == 2) {
+                        QuickSort.quickSortDualPivot(array, comparator);
+                    } else {
+                        QuickSort.quickSort(array, comparator);
+                    }
+                    best[scheme] = Math.min(best[scheme], System.nanoTime() - start);
+                }
+            }
+            System.out.println(INPUT_NAMES[input] + ": two-way took "
+                    + best[0] / NANO_SECONDS_PER_SECOND + " seconds, three-way took "
+                    + best[1] / NANO_SECONDS_PER_SECOND + " seconds, dual-pivot took "
+                    + best[2] / NANO_SECONDS_PER_SECOND + " seconds, sampled took "
+                    + best[3] / NANO_SECONDS_PER_SECOND + " seconds.");
+        }
+    }
 }
 
 //------------------------------------------------------------------------------
@@ -484,147 +1196,1333 @@ public class QuickSort {
 // You should prefer to use quicksort unless your data is too big to fit in memory
 // or you need a stable merge. 
 
+// Adaptive merge sort (the idea behind TimSort):
+// - Splitting all the way down to single elements throws away any order the
+// data already has. Instead, scan for runs that are already sorted
+// (strictly descending runs are reversed) and merge those. Short runs are
+// extended to 32 elements with insertion sort first.
+// - With r runs there are only log r merge passes, so sorted input takes
+// O(n) and input made of a few sorted pieces, like log files appended from
+// several sources, takes close to O(n).
+// - One buffer of n elements is allocated per sort. Each pass merges from the
+// array into the buffer or back again (ping-pong), so nothing is allocated
+// per merge and nothing is copied back between passes.
+// - Galloping: once one run has won 7 comparisons in a row, it probably keeps
+// winning. Probe 1, 2, 4, 8, ... elements ahead to find where it stops, and
+// copy that whole block at once. Merging two runs that barely overlap then
+// takes O(log n) comparisons instead of O(n).
+
+// Parallel merge sort:
+// - The two halves are independent, so they can be sorted by different
+// threads (fork-join). Below a sequential threshold the task overhead
+// outweighs the work and a range is sorted by one thread.
+// - Sorting the halves in parallel is not enough: the final merge touches all
+// n elements on one thread, so the speedup can never exceed about log n.
+// - Parallel merge: take the middle element x of the larger sorted run and
+// binary search for its position in the other run. Everything before those
+// two positions merges in front of x, everything after merges behind it,
+// and x's final position is known. The two smaller merges run in parallel.
+// - Ties: elements of the left run equal to x stay before it and elements of
+// the right run equal to x go after it (lower bound in the right run, upper
+// bound in the left run), which keeps the sort stable.
+// - Uses the same single buffer and ping-pong merging as the sequential sort.
+
 // import java.util.Comparator;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
 
 public class MergeSort {
+    // Ranges this small are sorted, or merged, by one thread
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
 
-    // The mergeSort function just splits arrays recursively down to individual
-    // elements, then the merge function joins the elements back together in order.
+    // Runs shorter than this are extended with insertion sort
+    private static final int MIN_RUN = 32;
 
-    public static <T> void mergeSort(
-            T[] array,
-            Comparator<? super T> comparator) {
+    // Wins in a row after which a merge switches to galloping
+    private static final int MIN_GALLOP = 7;
 
-        // Recursive funcion that will ultimately sort the entire array.
-        mergeSortRecursive(array, 0, array.length - 1, comparator);
-    }
+    // The mergeSort function finds the sorted runs already in the array, then
+    // the merge function joins neighbouring runs together in order until one
+    // run is left.
 
-    private static <T> void mergeSortRecursive(
+    @SuppressWarnings("unchecked")
+    public static <T> void mergeSort(
             T[] array,
-            int i,
-            int k,
             Comparator<? super T> comparator) {
-
-        // Stop the recursion when no more divisions can be made
-        // When everything has been split to single elements
-        if (i >= k) {
+        if (array.length < 2) {
             return;
         }
 
-        // Determine where to divide the elements
-        int j = (i + k - 1) / 2;
+        // The only buffer allocated for the whole sort. In java we cannot
+        // create an array of generic objects (e.g. new T[]), so the sort
+        // works on Objects and the comparator is cast to compare them.
+        Object[] buffer = new Object[array.length];
+        sort(array, buffer, 0, array.length, (Comparator<Object>) comparator);
+    }
 
-        // Sort the left division
-        mergeSortRecursive(array, i, j, comparator);
+    // Sorts elements begin to end (exclusive) of the array, using the same
+    // range of the buffer as scratch space.
+    private static void sort(
+            Object[] array,
+            Object[] buffer,
+            int begin,
+            int end,
+            Comparator<Object> comparator) {
+
+        // Split the range into runs. runs[r] is where run r begins, and every
+        // run but the last holds at least MIN_RUN elements.
+        int[] runs = new int[(end - begin) / MIN_RUN + 2];
+        int numRuns = 0;
+        int start = begin;
+        while (start < end) {
+            int runEnd = findRun(array, start, end, comparator);
+            if (runEnd - start < MIN_RUN) {
+                // Too short to be worth a merge, extend it
+                int extendedEnd = Math.min(end, start + MIN_RUN);
+                insertionSort(array, start, runEnd, extendedEnd, comparator);
+                runEnd = extendedEnd;
+            }
+            runs[numRuns++] = start;
+            start = runEnd;
+        }
+        runs[numRuns] = end;
+
+        // Merge neighbouring runs pairwise, from the array into the buffer
+        // and back again, until one run is left
+        Object[] from = array;
+        Object[] to = buffer;
+        while (numRuns > 1) {
+            int numMerged = 0;
+            for (int r = 0; r < numRuns; r += 2) {
+                if (r + 1 < numRuns) {
+                    merge(from, to, runs[r], runs[r + 1], runs[r + 1],
+                            runs[r + 2], runs[r], comparator);
+                } else {
+                    // An odd run out moves over unchanged
+                    System.arraycopy(from, runs[r], to, runs[r],
+                            runs[r + 1] - runs[r]);
+                }
+                runs[numMerged++] = runs[r];
+            }
+            runs[numMerged] = end;
+            numRuns = numMerged;
 
-        // Sort the right division
-        mergeSortRecursive(array, j + 1, k, comparator);
+            Object[] temp = from;
+            from = to;
+            to = temp;
+        }
 
-        // Merge the two sorted divisions
-        merge(array, i, j, k, comparator);
+        // Only copy back if the last pass ended in the buffer
+        if (from != array) {
+            System.arraycopy(from, begin, array, begin, end - begin);
+        }
     }
 
-    // See the method implementation for an explanation as to why we're using
-    // the SuppressedWarnings annotation.
-    @SuppressWarnings("unchecked")
-    private static <T> void merge(
-            T[] array,
-            int i,
-            int j,
-            int k,
-            Comparator<? super T> comparator) {
+    // Returns the end of the run starting at begin. A strictly descending run
+    // is reversed in place, so every run returned is ascending. (Reversing a
+    // descending run with equal elements would change their order.)
+    private static int findRun(
+            Object[] array,
+            int begin,
+            int end,
+            Comparator<Object> comparator) {
+        int runEnd = begin + 1;
+        if (runEnd == end) {
+            return end;
+        }
 
-        // Create array to hold merged results.  In java we cannot
-        // create an array of generic objects (e.g. new T[]) so we must
-        // create an array of Objects and cast the elements later when
-        // we're ready to use them.
-        Object[] merged = new Object[k - i + 1];
-
-        // Continue while either sorted sequence has elements to merge
-        int pos1 = i;       // Position in first sequence
-        int pos2 = j + 1;   // Position in second sequence
-        int posM = 0;       // Position in merged sequence
-        while (pos1 <= j || pos2 <= k) {
-            if (pos1 > j) {
-                // The first sequence has no more elements to merge,
-                // merge all remaining elements from the second sequence
-                while (pos2 <= k) {
-                    merged[posM] = array[pos2];
-                    ++posM;
-                    ++pos2;
-                }
-            } else if (pos2 > k) {
-                // The second sequence has no more elements to merge,
-                // merge all remaining elements from the first sequence
-                while (pos1 <= j) {
-                    merged[posM] = array[pos1];
-                    ++posM;
-                    ++pos1;
-                }
-            } else {
-                // Both sequences have more elements to merge
-                if (comparator.compare(array[pos1], array[pos2]) < 0) {
-                    // Next element from sequence 1 is smaller, merge it
-                    merged[posM] = array[pos1];
-                    ++posM;
-                    ++pos1;
-                } else {
-                    // Next element from sequence 2 is smaller, merge it
-                    merged[posM] = array[pos2];
-                    ++posM;
-                    ++pos2;
-                }
+        if (comparator.compare(array[runEnd], array[begin]) < 0) {
+            while (runEnd < end
+                    && comparator.compare(array[runEnd], array[runEnd - 1]) < 0) {
+                ++runEnd;
+            }
+            for (int i = begin, k = runEnd - 1; i < k; ++i, --k) {
+                Object temp = array[i];
+                array[i] = array[k];
+                array[k] = temp;
+            }
+        } else {
+            while (runEnd < end
+                    && comparator.compare(array[runEnd], array[runEnd - 1]) >= 0) {
+                ++runEnd;
             }
         }
 
-        // Copy the merged sequence into the original array
-        for (int index = 0; index < merged.length; ++index) {
-            // This cast from Object to T results in an unchecked warning.
-            // We know this is safe since we stored T's in the merged
-            // array.  Therefore we suppress this warning with the
-            // @SuppressWarning annotation at the method level.
-            array[i + index] = (T)merged[index];
+        return runEnd;
+    }
+
+    // Insertion sort of elements begin to end (exclusive), where begin to
+    // sortedEnd are already in order. Finds each insertion point with a binary
+    // search, after any equal elements to stay stable, and shifts the larger
+    // elements up in one copy.
+    private static void insertionSort(
+            Object[] array,
+            int begin,
+            int sortedEnd,
+            int end,
+            Comparator<Object> comparator) {
+        for (int j = sortedEnd; j < end; ++j) {
+            Object key = array[j];
+            int i = upperBound(array, begin, j, key, comparator);
+            System.arraycopy(array, i, array, i + 1, j - i);
+            array[i] = key;
         }
     }
-}
 
-//------------------------------------------------------------------------------
-// Counting Sort
-//------------------------------------------------------------------------------
+    // Merges the sorted runs from[begin1, end1) and from[begin2, end2) into
+    // to, starting at index out. On ties the element from the first run goes
+    // first, which keeps the sort stable.
+    private static void merge(
+            Object[] from,
+            Object[] to,
+            int begin1,
+            int end1,
+            int begin2,
+            int end2,
+            int out,
+            Comparator<Object> comparator) {
+        int pos1 = begin1;  // Position in first sequence
+        int pos2 = begin2;  // Position in second sequence
+        int wins1 = 0;      // Elements in a row taken from the first sequence
+        int wins2 = 0;      // Elements in a row taken from the second sequence
+        while (pos1 < end1 && pos2 < end2) {
+            if (comparator.compare(from[pos2], from[pos1]) < 0) {
+                to[out++] = from[pos2++];
+                ++wins2;
+                wins1 = 0;
+            } else {
+                to[out++] = from[pos1++];
+                ++wins1;
+                wins2 = 0;
+            }
 
-// Linear time sort.
-// Counts how many times an element of a set occurs to see how it should be ordered.
-// - Does not require comparisons.
-// Improves upon O(n log n) upper bound of comparison sort algorithms.
-// Requires that elements in the set are integer types.
-// We also need to know what the largest value that can occur is.
-// Stable sort.
+            // One sequence keeps winning: find how far it keeps winning with
+            // an exponential search and copy all of those elements at once
+            if (wins1 >= MIN_GALLOP) {
+                int stop = gallop(from, pos1, end1, from[pos2], true, comparator);
+                System.arraycopy(from, pos1, to, out, stop - pos1);
+                out += stop - pos1;
+                pos1 = stop;
+                wins1 = 0;
+            } else if (wins2 >= MIN_GALLOP) {
+                int stop = gallop(from, pos2, end2, from[pos1], false, comparator);
+                System.arraycopy(from, pos2, to, out, stop - pos2);
+                out += stop - pos2;
+                pos2 = stop;
+                wins2 = 0;
+            }
+        }
 
-// Cost: O(n + k) where n is the number of elements and k is the max integer in the set + 1.
-// If the range of the data is small (i.e. 0-10), even if there are a 1m values in
-// the set (n) then k acts as a constant and the big O is O(n).
+        // One sequence is used up, copy the rest of the other
+        System.arraycopy(from, pos1, to, out, end1 - pos1);
+        System.arraycopy(from, pos2, to, out + end1 - pos1, end2 - pos2);
+    }
 
-// Space: Takes twice the space of the original list + space for the integer counts.
+    // Returns the first index in [begin, end) whose element is greater than
+    // the key (or not less than the key unless upper is set). Probes 1, 2, 4,
+    // 8, ... elements ahead, then binary searches the last gap, so it takes
+    // O(log d) comparisons when the answer is d elements ahead.
+    private static int gallop(
+            Object[] array,
+            int begin,
+            int end,
+            Object key,
+            boolean upper,
+            Comparator<Object> comparator) {
+        int last = 0;
+        int step = 1;
+        while (step <= end - begin) {
+            int c = comparator.compare(array[begin + step - 1], key);
+            if (upper ? c > 0 : c >= 0) {
+                break;
+            }
+            last = step;
+            step *= 2;
+        }
 
-// Works with arrays, singly linked lists, and doubly linked lists.
+        int stop = Math.min(end, begin + step);
+        return upper
+                ? upperBound(array, begin + last, stop, key, comparator)
+                : lowerBound(array, begin + last, stop, key, comparator);
+    }
 
-// Good when sorting integral types with a small range (small maximum values).
+    public static <T> void parallelSort(
+            T[] array,
+            Comparator<? super T> comparator,
+            ForkJoinPool pool) {
+        if (array.length <= SEQUENTIAL_THRESHOLD) {
+            mergeSort(array, comparator);
+            return;
+        }
 
-// Implementation: 
+        Object[] buffer = new Object[array.length];
+        pool.invoke(new SortTask(array, buffer, 0, array.length, false,
+                comparator));
+    }
 
-public class CountingSort {
-    public static void countingSort(int[] array, int maxElementValue) {
+    // Sorts elements begin to end (exclusive) of the array. The sorted result
+    // ends up in the buffer if intoBuffer is set, in the array otherwise.
+    private static final class SortTask extends RecursiveAction {
+        private Object[] array, buffer;
+        private int begin, end;
+        private boolean intoBuffer;
+        private Comparator<Object> comparator;
+
+        @SuppressWarnings("unchecked")
+        private SortTask(
+                Object[] array,
+                Object[] buffer,
+                int begin,
+                int end,
+                boolean intoBuffer,
+                Comparator<?> comparator) {
+            this.array = array;
+            this.buffer = buffer;
+            this.begin = begin;
+            this.end = end;
+            this.intoBuffer = intoBuffer;
+            this.comparator = (Comparator<Object>) comparator;
+        }
 
-        // Create array to hold the counts (set counts = to 0)
-        int[] counts = new int[maxElementValue + 1];
-        for (int i = 0; i <= maxElementValue; ++i) {
-            counts[i] = 0;
+        @Override
+        protected void compute() {
+            if (end - begin <= SEQUENTIAL_THRESHOLD) {
+                sort(array, buffer, begin, end, comparator);
+                if (intoBuffer) {
+                    System.arraycopy(array, begin, buffer, begin, end - begin);
+                }
+                return;
+            }
+
+            // Sort both halves into the other array, then merge them back
+            int middle = (begin + end) >>> 1;
+            invokeAll(new SortTask(array, buffer, begin, middle, !intoBuffer,
+                            comparator),
+                    new SortTask(array, buffer, middle, end, !intoBuffer,
+                            comparator));
+            Object[] from = intoBuffer ? array : buffer;
+            Object[] to = intoBuffer ? buffer : array;
+            new MergeTask(from, to, begin, middle, middle, end, begin,
+                    comparator).invoke();
         }
+    }
 
-        // Count the occurrences of each element, increment the index of the count
-        // array by 1 for each occurrence
-        for (int value : array) {
-            ++counts[value];
+    // Merges the sorted runs from[begin1, end1) and from[begin2, end2) into
+    // to, starting at index out.
+    private static final class MergeTask extends RecursiveAction {
+        private Object[] from, to;
+        private int begin1, end1, begin2, end2, out;
+        private Comparator<Object> comparator;
+
+        private MergeTask(
+                Object[] from,
+                Object[] to,
+                int begin1,
+                int end1,
+                int begin2,
+                int end2,
+                int out,
+                Comparator<Object> comparator) {
+            this.from = from;
+            this.to = to;
+            this.begin1 = begin1;
+            this.end1 = end1;
+            this.begin2 = begin2;
+            this.end2 = end2;
+            this.out = out;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            int size1 = end1 - begin1;
+            int size2 = end2 - begin2;
+            if (size1 + size2 <= SEQUENTIAL_THRESHOLD) {
+                merge(from, to, begin1, end1, begin2, end2, out, comparator);
+                return;
+            }
+
+            // Place the middle element of the larger run, split the other
+            // run around it
+            int split1, split2;
+            if (size1 >= size2) {
+                split1 = (begin1 + end1) >>> 1;
+                split2 = lowerBound(from, begin2, end2, from[split1], comparator);
+                to[out + (split1 - begin1) + (split2 - begin2)] = from[split1];
+                invokeAll(new MergeTask(from, to, begin1, split1, begin2, split2,
+                                out, comparator),
+                        new MergeTask(from, to, split1 + 1, end1, split2, end2,
+                                out + (split1 - begin1) + (split2 - begin2) + 1,
+                                comparator));
+            } else {
+                split2 = (begin2 + end2) >>> 1;
+                split1 = upperBound(from, begin1, end1, from[split2], comparator);
+                to[out + (split1 - begin1) + (split2 - begin2)] = from[split2];
+                invokeAll(new MergeTask(from, to, begin1, split1, begin2, split2,
+                                out, comparator),
+                        new MergeTask(from, to, split1, end1, split2 + 1, end2,
+                                out + (split1 - begin1) + (split2 - begin2) + 1,
+                                comparator));
+            }
+        }
+    }
+
+    // Returns the first index in [begin, end) whose element is not less than
+    // the key.
+    private static int lowerBound(
+            Object[] array,
+            int begin,
+            int end,
+            Object key,
+            Comparator<Object> comparator) {
+        while (begin < end) {
+            int middle = (begin + end) >>> 1;
+            if (comparator.compare(array[middle], key) < 0) {
+                begin = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+
+        return begin;
+    }
+
+    // Returns the first index in [begin, end) whose element is greater than
+    // the key.
+    private static int upperBound(
+            Object[] array,
+            int begin,
+            int end,
+            Object key,
+            Comparator<Object> comparator) {
+        while (begin < end) {
+            int middle = (begin + end) >>> 1;
+            if (comparator.compare(array[middle], key) <= 0) {
+                begin = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+
+        return begin;
+    }
+}
+
+// Benchmark:
+// - Sorts 1,000,000 Integers that are random, sorted, reversed, made of 8
+// sorted pieces (like log files from 8 sources appended together), and
+// sorted with 1,000 random swaps, next to Arrays.sort (TimSort).
+// - The previous version split down to single elements and allocated a new
+// array for every merge: random ~0.25 seconds, sorted ~0.088, reversed
+// ~0.075, 8 pieces ~0.14, 1,000 swaps ~0.091.
+// - Measured on a single core: random ~0.25 seconds (Arrays.sort ~0.22),
+// sorted ~0.0012 (~0.0010), reversed ~0.0025 (~0.0022), 8 pieces ~0.053
+// (~0.046), 1,000 swaps ~0.013 (~0.008).
+// - Random input gains nothing in time: a young-generation allocation is
+// cheap, and the 20 levels of new arrays (~160 MB of garbage for 1,000,000
+// references) only show up as collector pressure. Minimum run lengths of 16,
+// 32 and 64 measured the same.
+
+// import java.util.Arrays;
+// import java.util.Random;
+
+public class MergeSortBenchmark {
+    public static final String[] INPUT_NAMES =
+            {"Random", "Sorted", "Reversed", "8 sorted pieces", "1,000 swaps"};
+
+    /**
+     * Returns the benchmark inputs in the order of INPUT_NAMES.
+     */
+    public static Integer[][] createInputs(int n, long seed) {
+        Random random = new Random(seed);
+        Integer[][] inputs = new Integer[5][n];
+        for (int i = 0; i < n; ++i) {
+            inputs[0][i] = random.nextInt();
+            inputs[1][i] = i;
+            inputs[2][i] = n - i;
+            inputs[3][i] = random.nextInt();
+            inputs[4][i] = i;
+        }
+        for (int piece = 0; piece < 8; ++piece) {
+            Arrays.sort(inputs[3], piece * n / 8, (piece + 1) * n / 8);
+        }
+        for (int swap = 0; swap < 1000 && n > 0; ++swap) {
+            int a = random.nextInt(n);
+            int b = random.nextInt(n);
+            Integer temp = inputs[4][a];
+            inputs[4][a] = inputs[4][b];
+            inputs[4][b] = temp;
+        }
+
+        return inputs;
+    }
+
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Integer[][] inputs = createInputs(n, 42);
+        for (int input = 0; input < inputs.length; ++input) {
+            // Best of several runs, each on a fresh copy
+            long mergeSort = Long.MAX_VALUE;
+            long baseline = Long.MAX_VALUE;
+            for (int r = 0; r < repeats; ++r) {
+                Integer[] array = inputs[input].clone();
+                long start = System.nanoTime();
+                MergeSort.mergeSort(array, QuickSortBenchmark.NATURAL_ORDER);
+                mergeSort = Math.min(mergeSort, System.nanoTime() - start);
+
+                array = inputs[input].clone();
+                start = System.nanoTime();
+                Arrays.sort(array, QuickSortBenchmark.NATURAL_ORDER);
+                baseline = Math.min(baseline, System.nanoTime() - start);
+            }
+            System.out.println(INPUT_NAMES[input] + ": merge sort took "
+                    + mergeSort / NANO_SECONDS_PER_SECOND
+                    + " seconds, Arrays.sort took "
+                    + baseline / NANO_SECONDS_PER_SECOND + " seconds.");
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 5,000,000 random Integers with the sequential sorts, then with
+// parallelSort in pools of 1, 2, 4, ... threads.
+// - Measured on a machine with a single core, so this only shows the
+// overhead, not the scaling: merge sort ~2.0 seconds, quicksort ~1.3,
+// parallel merge sort ~2.1 with 1 thread, parallel quicksort ~1.7 with 1
+// thread (it compares every element twice and copies through the buffer
+// in the large partitions). More threads than cores gave no speedup.
+// - Run it on a multi-core machine with the core count as the second
+// argument to see the scaling curve.
+
+// import java.util.Comparator;
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class ParallelSortBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        Random random = new Random(42);
+        Integer[] values = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = random.nextInt();
+        }
+        Comparator<Integer> comparator = QuickSortBenchmark.NATURAL_ORDER;
+
+        Integer[] array = values.clone();
+        long start = System.nanoTime();
+        MergeSort.mergeSort(array, comparator);
+        long stop = System.nanoTime();
+        System.out.println("Merge sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = values.clone();
+        start = System.nanoTime();
+        QuickSort.quickSort(array, comparator);
+        stop = System.nanoTime();
+        System.out.println("Quicksort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+
+            array = values.clone();
+            start = System.nanoTime();
+            MergeSort.parallelSort(array, comparator, pool);
+            stop = System.nanoTime();
+            System.out.println("Parallel merge sort with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds.");
+
+            array = values.clone();
+            start = System.nanoTime();
+            QuickSort.parallelSort(array, comparator, pool);
+            stop = System.nanoTime();
+            System.out.println("Parallel quicksort with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds.");
+
+            pool.shutdown();
+        }
+    }
+}
+
+//------------------------------------------------------------------------------
+// External Merge Sort
+//------------------------------------------------------------------------------
+
+// Sorts a file of records that is too large to fit in memory. Merge sort only
+// ever reads its runs front to back, so the runs can live on disk.
+
+// Two phases:
+// - Run formation: read the input in chunks that fit in the memory budget,
+// sort each chunk in memory and write (spill) it to a temporary file as a
+// sorted run. N bytes of input with M bytes of memory give about N / M runs.
+// - Merging: read all runs at the same time, a buffer at a time, and
+// repeatedly output the smallest of their first records. Every byte is read
+// and written once per phase, all sequentially, which is what disks are
+// fastest at.
+// - If there are more runs than read buffers fit in memory, merge groups of
+// runs into longer runs first (a merge pass) and repeat.
+
+// Parallel run formation:
+// - Sorting a chunk is CPU work, reading the next chunk is disk work, so they
+// overlap: full chunks are handed to the fork-join pool, which sorts and
+// spills up to one chunk per thread while the next chunk is being read.
+// - The memory budget is split between those chunks, so each run is shorter
+// with more threads.
+
+// k-way merge with a loser tree:
+// - A heap of the k run heads costs about 2 log k comparisons per record
+// (sift down compares with both children).
+// - A loser tree is a tournament: every inner node remembers the loser of
+// the match played there and the overall winner sits on top. When the
+// winner is replaced by the next record of its run, only the matches on the
+// path from its leaf to the root are replayed: exactly log k comparisons, no
+// matter what.
+// - On ties the run that came first in the input wins, so the sort is stable.
+
+// Records:
+// - Stored as a 4 byte length followed by the bytes of a RecordCodec, so
+// records can have any length (e.g. strings). Input, runs and output all use
+// this format.
+// - The memory taken by a record is estimated as its encoded size plus a fixed
+// allowance for the object header, fields and array slots.
+
+// Usage:
+// ExternalMergeSort<String> sorter = new ExternalMergeSort<String>(
+//         ExternalMergeSort.STRINGS, comparator, 256L << 20,
+//         temporaryDirectory, pool);
+// sorter.sort(input, output);
+
+// import java.io.Closeable;
+// import java.io.IOException;
+// import java.io.UncheckedIOException;
+// import java.nio.ByteBuffer;
+// import java.nio.ByteOrder;
+// import java.nio.channels.FileChannel;
+// import java.nio.charset.StandardCharsets;
+// import java.nio.file.Files;
+// import java.nio.file.Path;
+// import java.nio.file.StandardOpenOption;
+// import java.util.ArrayDeque;
+// import java.util.ArrayList;
+// import java.util.Arrays;
+// import java.util.Comparator;
+// import java.util.List;
+// import java.util.NoSuchElementException;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.ForkJoinTask;
+// import java.util.concurrent.RecursiveTask;
+// import static com.google.common.base.Preconditions.*;
+
+/**
+ * Sorts files of records larger than memory: sorted runs are spilled to
+ * temporary files, then merged with a loser tree.
+ * @param <T> Type of the records.
+ */
+public final class ExternalMergeSort<T> {
+    // Bytes read or written at a time per file
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Estimated heap bytes per record beyond its encoded size
+    private static final int RECORD_OVERHEAD = 64;
+
+    // Largest number of runs merged at once
+    private static final int MAX_FAN_IN = 512;
+
+    /**
+     * Converts records to and from bytes.
+     */
+    public interface RecordCodec<T> {
+        /**
+         * Number of bytes encode() writes for value.
+         */
+        int getSize(T value);
+
+        /**
+         * Writes value at the buffer's position, advancing it by
+         * getSize(value) bytes.
+         */
+        void encode(T value, ByteBuffer buffer);
+
+        /**
+         * Reads a value of size bytes at the buffer's position.
+         */
+        T decode(ByteBuffer buffer, int size);
+    }
+
+    /**
+     * Codec for strings as UTF-8 bytes.
+     */
+    public static final RecordCodec<String> STRINGS =
+            new RecordCodec<String>() {
+                public int getSize(String value) {
+                    return value.getBytes(StandardCharsets.UTF_8).length;
+                }
+
+                public void encode(String value, ByteBuffer buffer) {
+                    buffer.put(value.getBytes(StandardCharsets.UTF_8));
+                }
+
+                public String decode(ByteBuffer buffer, int size) {
+                    byte[] bytes = new byte[size];
+                    buffer.get(bytes);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            };
+
+    private RecordCodec<T> codec;
+    private Comparator<? super T> comparator;
+    private long memoryBudget;
+    private Path temporaryDirectory;
+    private ForkJoinPool pool;
+
+    // Statistics of the last sort
+    private int numRuns;
+    private int numMergePasses;
+
+    /**
+     * Creates a sorter that holds at most about memoryBudget bytes of
+     * records and read buffers at a time, and spills runs to files in
+     * temporaryDirectory.
+     */
+    public ExternalMergeSort(
+            RecordCodec<T> codec,
+            Comparator<? super T> comparator,
+            long memoryBudget,
+            Path temporaryDirectory,
+            ForkJoinPool pool) {
+        checkNotNull(codec, "codec must not be null");
+        checkNotNull(comparator, "comparator must not be null");
+        checkArgument(memoryBudget >= 4L * BUFFER_SIZE,
+                "memoryBudget must be at least 4 MB");
+        checkNotNull(temporaryDirectory, "temporaryDirectory must not be null");
+        checkNotNull(pool, "pool must not be null");
+
+        this.codec = codec;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.temporaryDirectory = temporaryDirectory;
+        this.pool = pool;
+    }
+
+    /**
+     * Number of sorted runs the last sort spilled, 0 if the input fit in
+     * memory.
+     */
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    /**
+     * Number of merge passes of the last sort before the final merge.
+     */
+    public int getNumMergePasses() {
+        return numMergePasses;
+    }
+
+    /**
+     * Sorts the records of input into output, replacing any existing file.
+     */
+    public void sort(Path input, Path output) throws IOException {
+        checkNotNull(input, "input must not be null");
+        checkNotNull(output, "output must not be null");
+
+        numRuns = 0;
+        numMergePasses = 0;
+        ArrayList<Path> temporaryFiles = new ArrayList<Path>();
+        ArrayDeque<ForkJoinTask<Path>> pending =
+                new ArrayDeque<ForkJoinTask<Path>>();
+        try {
+            ArrayList<Path> runs = new ArrayList<Path>();
+            long chunkBudget = (memoryBudget - 2L * BUFFER_SIZE)
+                    / (pool.getParallelism() + 1);
+            ArrayList<T> chunk = new ArrayList<T>();
+            long chunkBytes = 0;
+
+            // Run formation: spill each full chunk as a sorted run, sorting
+            // up to one chunk per thread while the next one is read
+            try (RecordReader<T> reader = new RecordReader<T>(input, codec)) {
+                while (reader.hasNext()) {
+                    T record = reader.next();
+                    chunk.add(record);
+                    chunkBytes += reader.getLastSize() + RECORD_OVERHEAD;
+                    if (chunkBytes >= chunkBudget) {
+                        Path run = createTemporaryFile(temporaryFiles);
+                        pending.add(pool.submit(new SpillTask(chunk, run)));
+                        chunk = new ArrayList<T>();
+                        chunkBytes = 0;
+                        if (pending.size() > pool.getParallelism()) {
+                            runs.add(join(pending.removeFirst()));
+                        }
+                    }
+                }
+            }
+
+            // Everything fit in one chunk, no runs needed
+            if (pending.isEmpty()) {
+                spill(chunk, output);
+                return;
+            }
+            if (!chunk.isEmpty()) {
+                Path run = createTemporaryFile(temporaryFiles);
+                pending.add(pool.submit(new SpillTask(chunk, run)));
+            }
+            chunk = null;
+            while (!pending.isEmpty()) {
+                runs.add(join(pending.removeFirst()));
+            }
+            numRuns = runs.size();
+
+            // Merge passes until the remaining runs can be merged at once,
+            // keeping one buffer for the output
+            int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN,
+                    memoryBudget / BUFFER_SIZE - 1));
+            while (runs.size() > fanIn) {
+                ArrayList<Path> merged = new ArrayList<Path>();
+                for (int r = 0; r < runs.size(); r += fanIn) {
+                    List<Path> group =
+                            runs.subList(r, Math.min(runs.size(), r + fanIn));
+                    Path run = createTemporaryFile(temporaryFiles);
+                    merge(group, run);
+                    for (Path done : group) {
+                        Files.delete(done);
+                        temporaryFiles.remove(done);
+                    }
+                    merged.add(run);
+                }
+                runs = merged;
+                ++numMergePasses;
+            }
+            merge(runs, output);
+        } finally {
+            // After a failure, let running spills finish before deleting
+            for (ForkJoinTask<Path> task : pending) {
+                task.quietlyJoin();
+            }
+            for (Path file : temporaryFiles) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Path createTemporaryFile(ArrayList<Path> temporaryFiles)
+            throws IOException {
+        Path file = Files.createTempFile(temporaryDirectory, "run", ".tmp");
+        temporaryFiles.add(file);
+        return file;
+    }
+
+    // Waits for a spill and rethrows the IOException it failed with
+    private static Path join(ForkJoinTask<Path> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Sorts one chunk and writes it to a file
+    @SuppressWarnings("unchecked")
+    private void spill(ArrayList<T> chunk, Path file) throws IOException {
+        T[] records = (T[]) chunk.toArray();
+        chunk.clear();
+        MergeSort.mergeSort(records, comparator);
+        try (RecordWriter<T> writer = new RecordWriter<T>(file, codec)) {
+            for (T record : records) {
+                writer.write(record);
+            }
+        }
+    }
+
+    // Spills one chunk on a pool thread
+    private final class SpillTask extends RecursiveTask<Path> {
+        private ArrayList<T> chunk;
+        private Path file;
+
+        private SpillTask(ArrayList<T> chunk, Path file) {
+            this.chunk = chunk;
+            this.file = file;
+        }
+
+        @Override
+        protected Path compute() {
+            try {
+                spill(chunk, file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunk = null;
+
+            return file;
+        }
+    }
+
+    // Merges the sorted runs into output
+    private void merge(List<Path> runs, Path output)
+            throws IOException {
+        ArrayList<RecordReader<T>> readers = new ArrayList<RecordReader<T>>();
+        try (RecordWriter<T> writer = new RecordWriter<T>(output, codec)) {
+            for (Path run : runs) {
+                readers.add(new RecordReader<T>(run, codec));
+            }
+            LoserTree tree = new LoserTree(readers);
+            while (!tree.isEmpty()) {
+                writer.write(tree.next());
+            }
+        } finally {
+            for (RecordReader<T> reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    // Tournament over the heads of k sorted runs. tree[0] is the run whose
+    // head is smallest, tree[1..k-1] hold the loser of the match at that
+    // node. The leaf of run r is node k + r, the parent of node t is t / 2.
+    private final class LoserTree {
+        private ArrayList<RecordReader<T>> readers;
+        private Object[] heads;
+        private boolean[] exhausted;
+        private int[] tree;
+        private int k;
+
+        private LoserTree(ArrayList<RecordReader<T>> readers)
+                throws IOException {
+            this.readers = readers;
+            k = readers.size();
+            heads = new Object[k];
+            exhausted = new boolean[k];
+            tree = new int[k];
+            for (int r = 0; r < k; ++r) {
+                advance(r);
+            }
+
+            // Start with a virtual run k that beats everything in every
+            // node, then let each run play its way up once
+            Arrays.fill(tree, k);
+            for (int r = k - 1; r >= 0; --r) {
+                replay(r);
+            }
+        }
+
+        private boolean isEmpty() {
+            return k == 0 || exhausted[tree[0]];
+        }
+
+        @SuppressWarnings("unchecked")
+        private T next() throws IOException {
+            int winner = tree[0];
+            T record = (T) heads[winner];
+            advance(winner);
+            replay(winner);
+            return record;
+        }
+
+        private void advance(int r) throws IOException {
+            if (readers.get(r).hasNext()) {
+                heads[r] = readers.get(r).next();
+            } else {
+                heads[r] = null;
+                exhausted[r] = true;
+            }
+        }
+
+        // Replays the matches from run r's leaf to the root
+        private void replay(int r) {
+            int winner = r;
+            for (int t = (r + k) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], winner)) {
+                    int loser = winner;
+                    winner = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = winner;
+        }
+
+        // Whether the head of run a goes before the head of run b. An
+        // exhausted run loses to everything, equal heads go to the earlier run.
+        @SuppressWarnings("unchecked")
+        private boolean beats(int a, int b) {
+            if (a == k || b == k) {
+                return a == k;
+            }
+            if (exhausted[a] || exhausted[b]) {
+                return !exhausted[a];
+            }
+            int c = comparator.compare((T) heads[a], (T) heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+    }
+
+    /**
+     * Writes records to a file, each as a 4 byte length and its encoding.
+     */
+    public static final class RecordWriter<T> implements Closeable {
+        private FileChannel channel;
+        private RecordCodec<? super T> codec;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        public RecordWriter(Path file, RecordCodec<? super T> codec)
+                throws IOException {
+            checkNotNull(file, "file must not be null");
+            checkNotNull(codec, "codec must not be null");
+
+            this.codec = codec;
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void write(T record) throws IOException {
+            int size = codec.getSize(record);
+            if (buffer.remaining() < 4 + size) {
+                flush();
+                if (buffer.capacity() < 4 + size) {
+                    buffer = ByteBuffer.allocateDirect(4 + size)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+
+            buffer.putInt(size);
+            int start = buffer.position();
+            codec.encode(record, buffer);
+            checkState(buffer.position() - start == size,
+                    "codec wrote a different size than it reported");
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        public void close() throws IOException {
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                flush();
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the records written by a RecordWriter, in order.
+     */
+    public static final class RecordReader<T> implements Closeable {
+        private FileChannel channel;
+        private RecordCodec<? extends T> codec;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private boolean endOfFile;
+        private int lastSize;
+
+        public RecordReader(Path file, RecordCodec<? extends T> codec)
+                throws IOException {
+            checkNotNull(file, "file must not be null");
+            checkNotNull(codec, "codec must not be null");
+
+            this.codec = codec;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer.flip();
+        }
+
+        public boolean hasNext() throws IOException {
+            return fill(4);
+        }
+
+        public T next() throws IOException {
+            if (!fill(4)) {
+                throw new NoSuchElementException();
+            }
+            int size = buffer.getInt(buffer.position());
+            if (size < 0 || !fill(4 + size)) {
+                throw new IOException("record file is truncated");
+            }
+
+            buffer.position(buffer.position() + 4);
+            int start = buffer.position();
+            T record = codec.decode(buffer, size);
+            buffer.position(start + size);
+            lastSize = size;
+            return record;
+        }
+
+        /**
+         * Encoded size of the record last returned by next().
+         */
+        public int getLastSize() {
+            return lastSize;
+        }
+
+        // Reads until at least numBytes are buffered, returns false if the
+        // file ends first
+        private boolean fill(int numBytes) throws IOException {
+            if (buffer.remaining() >= numBytes) {
+                return true;
+            }
+            if (buffer.capacity() < numBytes) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(numBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                larger.put(buffer);
+                larger.flip();
+                buffer = larger;
+            }
+
+            buffer.compact();
+            while (!endOfFile && buffer.position() < numBytes) {
+                if (channel.read(buffer) < 0) {
+                    endOfFile = true;
+                }
+            }
+            buffer.flip();
+            return buffer.remaining() >= numBytes;
+        }
+
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Writes a file of random trades (time, symbol, price; ~30 bytes each),
+// sorts it by time with a memory budget far smaller than the file, and
+// times the same sort done in memory with no budget.
+// - Measured with 10,000,000 trades (228 MB) on a single core with a 3 GB
+// heap: 64 MB budget ~8.4 seconds (26 runs, merged at once), 8 MB budget
+// ~7.3 seconds (268 runs, 2 merge passes), in memory ~12.9 seconds.
+// - The in-memory sort loses to both: holding 10,000,000 trade objects at
+// once keeps the garbage collector busy, while the runs and the merge touch
+// little memory and the files stay in the operating system's page cache.
+
+// import java.io.IOException;
+// import java.nio.ByteBuffer;
+// import java.nio.charset.StandardCharsets;
+// import java.nio.file.Files;
+// import java.nio.file.Path;
+// import java.util.Comparator;
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class ExternalMergeSortBenchmark {
+    public static final class Trade {
+        private long time;
+        private String symbol;
+        private double price;
+
+        public Trade(long time, String symbol, double price) {
+            this.time = time;
+            this.symbol = symbol;
+            this.price = price;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+    }
+
+    /**
+     * Codec for trades: time and price, then the symbol as UTF-8 bytes.
+     */
+    public static final ExternalMergeSort.RecordCodec<Trade> TRADE_CODEC =
+            new ExternalMergeSort.RecordCodec<Trade>() {
+                public int getSize(Trade trade) {
+                    return 16 + trade.symbol.getBytes(StandardCharsets.UTF_8)
+                            .length;
+                }
+
+                public void encode(Trade trade, ByteBuffer buffer) {
+                    buffer.putLong(trade.time);
+                    buffer.putDouble(trade.price);
+                    buffer.put(trade.symbol.getBytes(StandardCharsets.UTF_8));
+                }
+
+                public Trade decode(ByteBuffer buffer, int size) {
+                    long time = buffer.getLong();
+                    double price = buffer.getDouble();
+                    byte[] symbol = new byte[size - 16];
+                    buffer.get(symbol);
+                    return new Trade(time, new String(symbol,
+                            StandardCharsets.UTF_8), price);
+                }
+            };
+
+    public static final Comparator<Trade> BY_TIME = new Comparator<Trade>() {
+        public int compare(Trade a, Trade b) {
+            return Long.compare(a.time, b.time);
+        }
+    };
+
+    public static void main(String args[]) throws IOException {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int numTrades = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        long memoryBudget = args.length > 1
+                ? Long.parseLong(args[1]) << 20 : 64L << 20;
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        Path directory = Files.createTempDirectory("trades");
+        Path input = directory.resolve("trades.bin");
+        Path output = directory.resolve("sorted.bin");
+
+        Random random = new Random(42);
+        String[] symbols = {"AAPL", "MSFT", "GOOG", "AMZN", "NVDA", "TSLA"};
+        try (ExternalMergeSort.RecordWriter<Trade> writer =
+                new ExternalMergeSort.RecordWriter<Trade>(input, TRADE_CODEC)) {
+            for (int i = 0; i < numTrades; ++i) {
+                writer.write(new Trade(random.nextLong(),
+                        symbols[random.nextInt(symbols.length)],
+                        100 * random.nextDouble()));
+            }
+        }
+        System.out.println(numTrades + " trades, "
+                + Files.size(input) / (1 << 20) + " MB.");
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ExternalMergeSort<Trade> sorter = new ExternalMergeSort<Trade>(
+                TRADE_CODEC, BY_TIME, memoryBudget, directory, pool);
+        long start = System.nanoTime();
+        sorter.sort(input, output);
+        long stop = System.nanoTime();
+        System.out.println("External merge sort with "
+                + (memoryBudget >> 20) + " MB took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds, "
+                + sorter.getNumRuns() + " runs, "
+                + sorter.getNumMergePasses() + " merge passes.");
+
+        // Check the output is in order
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        try (ExternalMergeSort.RecordReader<Trade> reader =
+                new ExternalMergeSort.RecordReader<Trade>(output, TRADE_CODEC)) {
+            while (reader.hasNext()) {
+                long time = reader.next().getTime();
+                if (time < last) {
+                    throw new IllegalStateException("output is not sorted");
+                }
+                last = time;
+                ++count;
+            }
+        }
+        if (count != numTrades) {
+            throw new IllegalStateException("output lost trades");
+        }
+
+        sorter = new ExternalMergeSort<Trade>(
+                TRADE_CODEC, BY_TIME, Long.MAX_VALUE, directory, pool);
+        start = System.nanoTime();
+        sorter.sort(input, output);
+        stop = System.nanoTime();
+        System.out.println("In-memory sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        pool.shutdown();
+        Files.delete(input);
+        Files.delete(output);
+        Files.delete(directory);
+    }
+}
+
+//------------------------------------------------------------------------------
+// Counting Sort
+//------------------------------------------------------------------------------
+
+// Linear time sort.
+// Counts how many times an element of a set occurs to see how it should be ordered.
+// - Does not require comparisons.
+// Improves upon O(n log n) upper bound of comparison sort algorithms.
+// Requires that elements in the set are integer types.
+// We also need to know what the largest value that can occur is.
+// Stable sort.
+
+// Cost: O(n + k) where n is the number of elements and k is the max integer in the set + 1.
+// If the range of the data is small (i.e. 0-10), even if there are a 1m values in
+// the set (n) then k acts as a constant and the big O is O(n).
+
+// Space: Takes twice the space of the original list + space for the integer counts.
+
+// Works with arrays, singly linked lists, and doubly linked lists.
+
+// Good when sorting integral types with a small range (small maximum values).
+
+// Range detection:
+// - Nothing needs the values to start at 0. Find the smallest and largest
+// value in one pass and count value - min, so the counts cover max - min + 1
+// values: negative values work, and values 1,000,000 to 1,000,100 need 101
+// counts, not 1,000,101.
+// - The counts array is incremented at random positions. While it fits in
+// the cache (256K counts = 1 MB, about a core's L2 cache), counting runs at
+// about the speed of reading the array. Once it is larger every increment
+// can be a cache miss, and a radix sort, whose 256 counts per pass always
+// fit, is faster. So a range wider than that falls back to RadixSort.
+// - Sorting plain ints needs no second array: equal ints cannot be told
+// apart, so the sorted array is written straight from the counts.
+
+// Parallel counting:
+// - Every thread counts its block of the array into its own counts (no
+// shared counters to contend on), then the counts are added up.
+// - Adding up and writing the output are split by value range: each thread
+// takes a range of values, sums their counts over all threads, and fills
+// the positions where those values go.
+
+// Implementation: 
+
+// import java.util.Arrays;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+
+public class CountingSort {
+    // Widest range of values counted, wider ranges are radix sorted
+    private static final int MAX_RANGE = 1 << 18;
+
+    // Arrays at least this large are sorted in parallel by parallelSort
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    public static void countingSort(int[] array, int maxElementValue) {
+
+        // Create array to hold the counts (set counts = to 0)
+        int[] counts = new int[maxElementValue + 1];
+        for (int i = 0; i <= maxElementValue; ++i) {
+            counts[i] = 0;
+        }
+
+        // Count the occurrences of each element, increment the index of the count
+        // array by 1 for each occurrence
+        for (int value : array) {
+            ++counts[value];
         }
 
         // Sum up the counts by position
@@ -632,103 +2530,1133 @@ public class CountingSort {
             counts[i] = counts[i] + counts[i - 1];
         }
 
-        // Use the counts to position each element where it belongs
-        int[] sorted = new int[array.length];
-        for (int i = array.length - 1; i >= 0; --i) {
-            sorted[counts[array[i]] - 1] = array[i];
-            --counts[array[i]];
+        // Use the counts to position each element where it belongs
+        int[] sorted = new int[array.length];
+        for (int i = array.length - 1; i >= 0; --i) {
+            sorted[counts[array[i]] - 1] = array[i];
+            --counts[array[i]];
+        }
+
+        // Replace the original array with the sorted array
+        System.arraycopy(sorted, 0, array, 0, array.length);
+    }
+
+    // Sorts any ints, counting from the smallest value.
+    public static void countingSort(int[] array) {
+        if (array.length < 2) {
+            return;
+        }
+
+        // Find the range of the values
+        int min = array[0];
+        int max = array[0];
+        for (int value : array) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if ((long) max - min + 1 > MAX_RANGE) {
+            RadixSort.sort(array);
+            return;
+        }
+
+        // Count the occurrences of each value, offset by the smallest
+        int[] counts = new int[max - min + 1];
+        for (int value : array) {
+            ++counts[value - min];
+        }
+
+        // Write each value as many times as it occurred
+        int position = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            Arrays.fill(array, position, position + counts[i], min + i);
+            position += counts[i];
+        }
+    }
+
+    public static void parallelSort(int[] array, ForkJoinPool pool) {
+        if (array.length < PARALLEL_THRESHOLD) {
+            countingSort(array);
+            return;
+        }
+        new ParallelCountingSort(array, pool).run();
+    }
+
+    // Counting sort with one counts array per block of the array. The blocks
+    // are sized so each thread counts about one of them.
+    private static final class ParallelCountingSort {
+        private static final int MIN_MAX = 0, COUNT = 1, SUM = 2, FILL = 3;
+
+        private int[] array;
+        private ForkJoinPool pool;
+        private int numBlocks, blockSize;
+
+        private int[] mins, maxes;      // Per block
+        private int min, range;
+        private int[][] blockCounts;    // Per block, value - min
+        private int[] counts;           // Summed over the blocks
+        private int[] sliceStarts;      // Output position of each slice
+        private int sliceSize;          // Values per slice for SUM and FILL
+
+        private ParallelCountingSort(int[] array, ForkJoinPool pool) {
+            this.array = array;
+            this.pool = pool;
+        }
+
+        private void run() {
+            numBlocks = pool.getParallelism();
+            blockSize = (array.length + numBlocks - 1) / numBlocks;
+
+            // Find the range of the values
+            mins = new int[numBlocks];
+            maxes = new int[numBlocks];
+            pool.invoke(new BlockTask(MIN_MAX, 0, numBlocks));
+            min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int b = 0; b < numBlocks; ++b) {
+                min = Math.min(min, mins[b]);
+                max = Math.max(max, maxes[b]);
+            }
+            if ((long) max - min + 1 > MAX_RANGE) {
+                RadixSort.parallelSort(array, pool);
+                return;
+            }
+            range = max - min + 1;
+
+            // Count every block into its own counts, then add them up
+            blockCounts = new int[numBlocks][range];
+            pool.invoke(new BlockTask(COUNT, 0, numBlocks));
+            counts = new int[range];
+            sliceSize = (range + numBlocks - 1) / numBlocks;
+            pool.invoke(new BlockTask(SUM, 0, numBlocks));
+
+            // Where the values of each slice start in the output
+            sliceStarts = new int[numBlocks];
+            int position = 0;
+            for (int v = 0; v < range; ++v) {
+                if (v % sliceSize == 0) {
+                    sliceStarts[v / sliceSize] = position;
+                }
+                position += counts[v];
+            }
+            pool.invoke(new BlockTask(FILL, 0, numBlocks));
+        }
+
+        private void processBlock(int phase, int b) {
+            if (phase == MIN_MAX || phase == COUNT) {
+                int begin = b * blockSize;
+                int end = Math.min(array.length, begin + blockSize);
+                if (phase == MIN_MAX) {
+                    int blockMin = Integer.MAX_VALUE;
+                    int blockMax = Integer.MIN_VALUE;
+                    for (int i = begin; i < end; ++i) {
+                        blockMin = Math.min(blockMin, array[i]);
+                        blockMax = Math.max(blockMax, array[i]);
+                    }
+                    mins[b] = blockMin;
+                    maxes[b] = blockMax;
+                } else {
+                    int[] blockCount = blockCounts[b];
+                    for (int i = begin; i < end; ++i) {
+                        ++blockCount[array[i] - min];
+                    }
+                }
+                return;
+            }
+
+            // SUM and FILL work on slice b of the values
+            int begin = Math.min(range, b * sliceSize);
+            int end = Math.min(range, begin + sliceSize);
+            if (phase == SUM) {
+                for (int[] blockCount : blockCounts) {
+                    for (int v = begin; v < end; ++v) {
+                        counts[v] += blockCount[v];
+                    }
+                }
+            } else {
+                int position = sliceStarts[b];
+                for (int v = begin; v < end; ++v) {
+                    Arrays.fill(array, position, position + counts[v], min + v);
+                    position += counts[v];
+                }
+            }
+        }
+
+        private final class BlockTask extends RecursiveAction {
+            private int phase, begin, end;
+
+            private BlockTask(int phase, int begin, int end) {
+                this.phase = phase;
+                this.begin = begin;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                if (end - begin == 1) {
+                    processBlock(phase, begin);
+                    return;
+                }
+                int middle = (begin + end) >>> 1;
+                invokeAll(new BlockTask(phase, begin, middle),
+                        new BlockTask(phase, middle, end));
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 10,000,000 ints drawn from ranges of 100 to 16,777,216 values with
+// the countingSort that takes the maximum (counts the whole range at any
+// size), with countingSort(array) (falls back to radix sort past 262,144
+// values) and with RadixSort.sort, then parallelSort in pools of 1, 2, 4, ...
+// threads at 10,000 values.
+// - Measured on a single core (counting the range / countingSort(array) /
+// radix sort): 100 values 0.08 / 0.04 / 0.11 seconds, 10,000 values 0.11 /
+// 0.04 / 0.12, 65,536 values 0.08 / 0.02 / 0.09, 262,144 values 0.11 / 0.03
+// / 0.12, 1,048,576 values 0.13 / 0.12 (radix) / 0.13, 16,777,216 values
+// 0.26 / 0.18 (radix) / 0.15.
+// - Counting stays ahead of radix sort up to 262,144 values and falls behind
+// past about a million, where its counts no longer fit in the cache.
+// Writing straight from the counts instead of through a second array makes
+// countingSort(array) about twice as fast as counting the range.
+// - parallelSort ~0.04 seconds with 1 thread; a single core cannot show the
+// scaling.
+
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class CountingSortBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        Random random = new Random(42);
+        int[] ranges = {100, 10000, 1 << 16, 1 << 18, 1 << 20, 1 << 24};
+        for (int range : ranges) {
+            int[] values = new int[n];
+            for (int i = 0; i < n; ++i) {
+                values[i] = random.nextInt(range);
+            }
+
+            int[] array = values.clone();
+            long start = System.nanoTime();
+            CountingSort.countingSort(array, range - 1);
+            long stop = System.nanoTime();
+            double counting = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            array = values.clone();
+            start = System.nanoTime();
+            CountingSort.countingSort(array);
+            stop = System.nanoTime();
+            double automatic = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            array = values.clone();
+            start = System.nanoTime();
+            RadixSort.sort(array);
+            stop = System.nanoTime();
+            System.out.println(range + " values: counting the range took "
+                    + counting + " seconds, countingSort(array) took "
+                    + automatic + " seconds, radix sort took "
+                    + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+        }
+
+        int[] values = new int[n];
+        for (int i = 0; i < n; ++i) {
+            values[i] = random.nextInt(10000);
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            int[] array = values.clone();
+            long start = System.nanoTime();
+            CountingSort.parallelSort(array, pool);
+            long stop = System.nanoTime();
+            pool.shutdown();
+            System.out.println("parallelSort with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds.");
+        }
+    }
+}
+
+//------------------------------------------------------------------------------
+// Radix Sort
+//------------------------------------------------------------------------------
+
+// Linear time sort.
+
+// Sorts data in pieces called digits, from the digit in the least significant
+// position to the digit in the most significant position.
+
+// Example sorting radix-10 numbers:
+// Unsorted: {15, 12, 49, 16, 36, 40}
+// After sorting least significant digit (1s place): {40, 12, 15, 16, 36, 49}
+// After sorting most significant digit (10s place): {12, 15, 16, 36, 40, 49}
+
+// Sort each place, digit-wise.
+
+// The sorting algorithm used in this approach must be stable because when 
+// you are sorting the 10s place for example (10, 12), and you have two 1s,
+// you want to keep the order of the 10s place the same (10, 12) and not
+// reverse the numbers.
+
+// Can only be applied to integers, but most data types such as strings can
+// be converted to integers.
+
+// The Big O is the same as counting sort, but you need to apply counting sort 
+// for each digits (0s place, 10s place, 100s place, etc). 
+
+// Cost: O(pn + pk)
+// p = number of passes (number of digits)
+// n = number of elements
+// k = range of values for each digit (10 for radix-10)
+
+// Radix is the number of digits utilized in a positional number system before
+// "rolling over" to the next digit's place.
+// - For example in a base 10 number system the digits used are 0-9, so the radix is 10.
+
+// Can only be used with arrays.
+
+// Digits as bits:
+// - With a power of two radix, a digit is a group of bits: (value >>> shift)
+// & mask. That is one shift and one and, where (value / radix^p) % radix
+// costs two divisions plus Math.pow on every pass.
+// - 8 bit digits (radix 256): 4 passes for an int. The 256 counts fit in 1 KB
+// of L1 cache.
+// - 11 bit digits (radix 2048): 6 passes for a long instead of 8 with bytes.
+// 2048 counts (8 KB) still fit in L1, and the scatter writes to at most 2048
+// places at once.
+// - The counts of every pass can be computed in one read of the array before
+// the first pass, since the digits of a value do not change when it moves.
+// - A pass where every value has the same digit (e.g. the high bytes of small
+// numbers) would only copy the array, so it is skipped.
+
+// Signed and floating point keys:
+// - Two's complement negative numbers have the top bit set, so as unsigned
+// bit patterns they sort after the positive numbers. Flipping the top bit
+// (x ^ 0x80000000) puts them first and keeps both halves in order.
+// - IEEE 754 floats are sign and magnitude: positive floats already order
+// like their bits. Negative floats order backwards, so all their bits are
+// flipped; positive floats only get the top bit flipped. Afterwards the
+// keys sort as unsigned ints, and the mapping is undone at the end.
+// - This puts -0.0 before 0.0 and NaN after positive infinity, the same as
+// Arrays.sort. NaNs come back as the canonical NaN.
+
+// Parallel radix sort:
+// - Each thread counts the digits of its own block of the array into its own
+// counts (no shared counters to contend on).
+// - Prefix sums in (digit, block) order give each block the position where
+// its elements with each digit start, so every block scatters its part in
+// parallel and the result is still stable.
+
+// Sorting objects by key:
+// - Radix sort needs an integer key, so objects are sorted by a key
+// extracted from each one (e.g. a task's priority or a trade's time).
+// - Extract all keys once into a primitive array. Reading a key through the
+// object on every pass means following a pointer to a random place in
+// memory per element per pass; the key array is read front to back.
+// - Sort the keys together with the index each object started at, then put
+// the objects in order in one final pass. Only keys and indices move
+// during the passes, the objects never do.
+// - An int key and its index fit into one long (key in the high 32 bits,
+// index in the low 32 bits), so only one array moves and only the 4 passes
+// over the high bits are needed.
+// - Stable like every LSD radix sort: objects with equal keys keep their
+// order.
+
+// Implementation:
+
+// import java.util.Arrays;
+// import java.util.concurrent.ForkJoinPool;
+// import java.util.concurrent.RecursiveAction;
+// import java.util.function.ToIntFunction;
+// import java.util.function.ToLongFunction;
+// import static com.google.common.base.Preconditions.*;
+
+public class RadixSort {
+    // Digit sizes for int and long keys
+    private static final int INT_DIGIT_BITS = 8;
+    private static final int INT_PASSES = 4;
+    private static final int LONG_DIGIT_BITS = 11;
+    private static final int LONG_PASSES = 6;
+
+    // Arrays at least this large are sorted in parallel by parallelSort
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    // Smallest block of the array counted and scattered by one thread
+    private static final int MIN_BLOCK_SIZE = 1 << 16;
+
+    // Sorts non-negative values of at most numPositions digits in the
+    // given radix.
+    public static void radixSort(
+            int[] array,
+            int numPositions,
+            int radix) {
+
+        // A negative value would give a negative digit; checked once here
+        // rather than in every pass
+        for (int value : array) {
+            checkArgument(value >= 0,
+                    "radixSort needs non-negative values, use sort()");
+        }
+
+        // Create array to hold the counts
+        int[] counts = new int[radix + 1];
+
+        // Create array to hold the sorted elements
+        int[] sorted = new int[array.length];
+
+        // The position's power (e.g. 10^0, 10^1, 10^2), one multiplication per
+        // pass instead of Math.pow
+        int positionValue = 1;
+
+        // Sort once for each position from least to most significant
+        for (int position = 0; position < numPositions; ++position) {
+            // Initialize the counts
+            for (int i = 0; i <= radix; ++i) {
+                counts[i] = 0;
+            }
+
+            // Count the occurrences of each digit in that position
+            for (int value : array) {
+                int index = (value / positionValue) % radix;
+                ++counts[index];
+            }
+
+            // Adjust each count to reflect the counts before it
+            for (int i = 1; i <= radix; ++i) {
+                counts[i] = counts[i] + counts[i - 1];
+            }
+
+            // Use the counts to position each element where it belongs
+            for (int i = array.length - 1; i >= 0; --i) {
+                int index = (array[i] / positionValue) % radix;
+                sorted[counts[index] - 1] = array[i];
+                --counts[index];
+            }
+
+            // Replace the original array with the sorted array
+            System.arraycopy(sorted, 0, array, 0, array.length);
+
+            // Move back up to the top of the for loop and sort again.
+            positionValue *= radix;
+        }
+    }
+
+    public static void sort(int[] array) {
+        sortKeys(array, new int[array.length], Integer.MIN_VALUE);
+    }
+
+    public static void sort(long[] array) {
+        sortKeys(array, new long[array.length], Long.MIN_VALUE);
+    }
+
+    public static void sort(float[] array) {
+        int[] keys = toKeys(array);
+        sortKeys(keys, new int[keys.length], 0);
+        fromKeys(keys, array);
+    }
+
+    public static void sort(double[] array) {
+        long[] keys = toKeys(array);
+        sortKeys(keys, new long[keys.length], 0);
+        fromKeys(keys, array);
+    }
+
+    public static void parallelSort(int[] array, ForkJoinPool pool) {
+        if (array.length < PARALLEL_THRESHOLD) {
+            sort(array);
+            return;
+        }
+        new ParallelRadixSort(array, Integer.MIN_VALUE, pool).run();
+    }
+
+    public static void parallelSort(long[] array, ForkJoinPool pool) {
+        if (array.length < PARALLEL_THRESHOLD) {
+            sort(array);
+            return;
+        }
+        new ParallelRadixSort(array, Long.MIN_VALUE, pool).run();
+    }
+
+    public static void parallelSort(float[] array, ForkJoinPool pool) {
+        if (array.length < PARALLEL_THRESHOLD) {
+            sort(array);
+            return;
+        }
+        int[] keys = toKeys(array);
+        new ParallelRadixSort(keys, 0, pool).run();
+        fromKeys(keys, array);
+    }
+
+    public static void parallelSort(double[] array, ForkJoinPool pool) {
+        if (array.length < PARALLEL_THRESHOLD) {
+            sort(array);
+            return;
+        }
+        long[] keys = toKeys(array);
+        new ParallelRadixSort(keys, 0, pool).run();
+        fromKeys(keys, array);
+    }
+
+    /**
+     * Stable sort of array by the int key of each element.
+     */
+    public static <T> void sortByIntKey(T[] array, ToIntFunction<? super T> key) {
+        checkNotNull(key, "key must not be null");
+        int n = array.length;
+        if (n < 2) {
+            return;
+        }
+
+        // Sortable key in the high half, original index in the low half
+        long[] packed = new long[n];
+        for (int i = 0; i < n; ++i) {
+            long sortable = key.applyAsInt(array[i]) ^ Integer.MIN_VALUE;
+            packed[i] = (sortable << 32) | i;
+        }
+
+        // Count the digits of every pass in one read of the keys
+        int[][] counts = new int[INT_PASSES][1 << INT_DIGIT_BITS];
+        for (long value : packed) {
+            ++counts[0][(int) (value >>> 32) & 0xff];
+            ++counts[1][(int) (value >>> 40) & 0xff];
+            ++counts[2][(int) (value >>> 48) & 0xff];
+            ++counts[3][(int) (value >>> 56)];
+        }
+
+        long[] from = packed;
+        long[] to = new long[n];
+        for (int pass = 0; pass < INT_PASSES; ++pass) {
+            int shift = 32 + pass * INT_DIGIT_BITS;
+            int[] starts = counts[pass];
+
+            // Every key has the same digit, nothing would move
+            if (starts[(int) (from[0] >>> shift) & 0xff] == n) {
+                continue;
+            }
+
+            // Turn the counts into the position where each digit starts
+            int next = 0;
+            for (int digit = 0; digit < starts.length; ++digit) {
+                int count = starts[digit];
+                starts[digit] = next;
+                next += count;
+            }
+
+            // Move each key to the next free position for its digit
+            for (long value : from) {
+                to[starts[(int) (value >>> shift) & 0xff]++] = value;
+            }
+            long[] temp = from;
+            from = to;
+            to = temp;
+        }
+
+        // Put the objects in key order
+        Object[] original = array.clone();
+        for (int i = 0; i < n; ++i) {
+            @SuppressWarnings("unchecked")
+            T element = (T) original[(int) from[i]];
+            array[i] = element;
+        }
+    }
+
+    /**
+     * Stable sort of array by the long key of each element.
+     */
+    public static <T> void sortByLongKey(
+            T[] array,
+            ToLongFunction<? super T> key) {
+        checkNotNull(key, "key must not be null");
+        int n = array.length;
+        if (n < 2) {
+            return;
+        }
+
+        // Sortable keys and the index each key started at
+        long[] keys = new long[n];
+        int[] indices = new int[n];
+        for (int i = 0; i < n; ++i) {
+            keys[i] = key.applyAsLong(array[i]) ^ Long.MIN_VALUE;
+            indices[i] = i;
         }
 
-        // Replace the original array with the sorted array
-        System.arraycopy(sorted, 0, array, 0, array.length);
+        // Count the digits of every pass in one read of the keys
+        final int MASK = (1 << LONG_DIGIT_BITS) - 1;
+        int[][] counts = new int[LONG_PASSES][1 << LONG_DIGIT_BITS];
+        for (long value : keys) {
+            for (int pass = 0; pass < LONG_PASSES; ++pass) {
+                ++counts[pass][(int) (value >>> (pass * LONG_DIGIT_BITS)) & MASK];
+            }
+        }
+
+        long[] fromKeys = keys;
+        long[] toKeys = new long[n];
+        int[] fromIndices = indices;
+        int[] toIndices = new int[n];
+        for (int pass = 0; pass < LONG_PASSES; ++pass) {
+            int shift = pass * LONG_DIGIT_BITS;
+            int[] starts = counts[pass];
+
+            // Every key has the same digit, nothing would move
+            if (starts[(int) (fromKeys[0] >>> shift) & MASK] == n) {
+                continue;
+            }
+
+            // Turn the counts into the position where each digit starts
+            int next = 0;
+            for (int digit = 0; digit < starts.length; ++digit) {
+                int count = starts[digit];
+                starts[digit] = next;
+                next += count;
+            }
+
+            // Move each key and its index to the next free position for its
+            // digit
+            for (int i = 0; i < n; ++i) {
+                int position = starts[(int) (fromKeys[i] >>> shift) & MASK]++;
+                toKeys[position] = fromKeys[i];
+                toIndices[position] = fromIndices[i];
+            }
+            long[] tempKeys = fromKeys;
+            fromKeys = toKeys;
+            toKeys = tempKeys;
+            int[] tempIndices = fromIndices;
+            fromIndices = toIndices;
+            toIndices = tempIndices;
+        }
+
+        // Put the objects in key order
+        Object[] original = array.clone();
+        for (int i = 0; i < n; ++i) {
+            @SuppressWarnings("unchecked")
+            T element = (T) original[fromIndices[i]];
+            array[i] = element;
+        }
     }
-}
 
-//------------------------------------------------------------------------------
-// Radix Sort
-//------------------------------------------------------------------------------
+    // LSD radix sort of the values as unsigned ints after xor with flip,
+    // 8 bits per pass, ping-ponging between array and buffer.
+    private static void sortKeys(int[] array, int[] buffer, int flip) {
+        int n = array.length;
+        if (n < 2) {
+            return;
+        }
 
-// Linear time sort.
+        // Count the digits of every pass in one read of the array
+        int[][] counts = new int[INT_PASSES][1 << INT_DIGIT_BITS];
+        for (int value : array) {
+            int key = value ^ flip;
+            ++counts[0][key & 0xff];
+            ++counts[1][(key >>> 8) & 0xff];
+            ++counts[2][(key >>> 16) & 0xff];
+            ++counts[3][key >>> 24];
+        }
 
-// Sorts data in pieces called digits, from the digit in the least significant
-// position to the digit in the most significant position.
+        int[] from = array;
+        int[] to = buffer;
+        for (int pass = 0; pass < INT_PASSES; ++pass) {
+            int shift = pass * INT_DIGIT_BITS;
+            int[] starts = counts[pass];
 
-// Example sorting radix-10 numbers:
-// Unsorted: {15, 12, 49, 16, 36, 40}
-// After sorting least significant digit (1s place): {40, 12, 15, 16, 36, 49}
-// After sorting most significant digit (10s place): {12, 15, 16, 36, 40, 49}
+            // Every value has the same digit, nothing would move
+            if (starts[((from[0] ^ flip) >>> shift) & 0xff] == n) {
+                continue;
+            }
 
-// Sort each place, digit-wise.
+            // Turn the counts into the position where each digit starts
+            int next = 0;
+            for (int digit = 0; digit < starts.length; ++digit) {
+                int count = starts[digit];
+                starts[digit] = next;
+                next += count;
+            }
 
-// The sorting algorithm used in this approach must be stable because when 
-// you are sorting the 10s place for example (10, 12), and you have two 1s,
-// you want to keep the order of the 10s place the same (10, 12) and not
-// reverse the numbers.
+            // Move each value to the next free position for its digit
+            for (int value : from) {
+                to[starts[((value ^ flip) >>> shift) & 0xff]++] = value;
+            }
+            int[] temp = from;
+            from = to;
+            to = temp;
+        }
 
-// Can only be applied to integers, but most data types such as strings can
-// be converted to integers.
+        if (from != array) {
+            System.arraycopy(from, 0, array, 0, n);
+        }
+    }
 
-// The Big O is the same as counting sort, but you need to apply counting sort 
-// for each digits (0s place, 10s place, 100s place, etc). 
+    // LSD radix sort of the values as unsigned longs after xor with flip,
+    // 11 bits per pass, ping-ponging between array and buffer.
+    private static void sortKeys(long[] array, long[] buffer, long flip) {
+        int n = array.length;
+        if (n < 2) {
+            return;
+        }
 
-// Cost: O(pn + pk)
-// p = number of passes (number of digits)
-// n = number of elements
-// k = range of values for each digit (10 for radix-10)
+        // Count the digits of every pass in one read of the array
+        final int MASK = (1 << LONG_DIGIT_BITS) - 1;
+        int[][] counts = new int[LONG_PASSES][1 << LONG_DIGIT_BITS];
+        for (long value : array) {
+            long key = value ^ flip;
+            for (int pass = 0; pass < LONG_PASSES; ++pass) {
+                ++counts[pass][(int) (key >>> (pass * LONG_DIGIT_BITS)) & MASK];
+            }
+        }
 
-// Radix is the number of digits utilized in a positional number system before
-// "rolling over" to the next digit's place.
-// - For example in a base 10 number system the digits used are 0-9, so the radix is 10.
+        long[] from = array;
+        long[] to = buffer;
+        for (int pass = 0; pass < LONG_PASSES; ++pass) {
+            int shift = pass * LONG_DIGIT_BITS;
+            int[] starts = counts[pass];
 
-// Can only be used with arrays.
+            // Every value has the same digit, nothing would move
+            if (starts[(int) ((from[0] ^ flip) >>> shift) & MASK] == n) {
+                continue;
+            }
 
-// Implementation:
-public class RadixSort {
-    public static void radixSort(
-            int[] array,
-            int numPositions,
-            int radix) {
+            // Turn the counts into the position where each digit starts
+            int next = 0;
+            for (int digit = 0; digit < starts.length; ++digit) {
+                int count = starts[digit];
+                starts[digit] = next;
+                next += count;
+            }
 
-        // Create array to hold the counts
-        int[] counts = new int[radix + 1];
+            // Move each value to the next free position for its digit
+            for (long value : from) {
+                to[starts[(int) ((value ^ flip) >>> shift) & MASK]++] = value;
+            }
+            long[] temp = from;
+            from = to;
+            to = temp;
+        }
 
-        // Create array to hold the sorted elements
-        int[] sorted = new int[array.length];
+        if (from != array) {
+            System.arraycopy(from, 0, array, 0, n);
+        }
+    }
 
-        // Sort once for each position from least to most significant
-        for (int position = 0; position < numPositions; ++position) {
-            // Initialize the counts
-            for (int i = 0; i <= radix; ++i) {
-                counts[i] = 0;
+    // Maps floats to ints that sort as unsigned ints in the same order
+    private static int[] toKeys(float[] array) {
+        int[] keys = new int[array.length];
+        for (int i = 0; i < array.length; ++i) {
+            int bits = Float.floatToIntBits(array[i]);
+            keys[i] = bits ^ ((bits >> 31) | Integer.MIN_VALUE);
+        }
+
+        return keys;
+    }
+
+    private static void fromKeys(int[] keys, float[] array) {
+        for (int i = 0; i < keys.length; ++i) {
+            int key = keys[i];
+            array[i] = Float.intBitsToFloat(
+                    key < 0 ? key ^ Integer.MIN_VALUE : ~key);
+        }
+    }
+
+    // Maps doubles to longs that sort as unsigned longs in the same order
+    private static long[] toKeys(double[] array) {
+        long[] keys = new long[array.length];
+        for (int i = 0; i < array.length; ++i) {
+            long bits = Double.doubleToLongBits(array[i]);
+            keys[i] = bits ^ ((bits >> 63) | Long.MIN_VALUE);
+        }
+
+        return keys;
+    }
+
+    private static void fromKeys(long[] keys, double[] array) {
+        for (int i = 0; i < keys.length; ++i) {
+            long key = keys[i];
+            array[i] = Double.longBitsToDouble(
+                    key < 0 ? key ^ Long.MIN_VALUE : ~key);
+        }
+    }
+
+    // Parallel LSD radix sort of an int[] or a long[] (the other is null),
+    // block by block with per-block counts.
+    private static final class ParallelRadixSort {
+        private static final int HISTOGRAM = 0, COUNT = 1, SCATTER = 2;
+
+        private int[] ints, intBuffer;
+        private long[] longs, longBuffer;
+        private long flip;
+        private ForkJoinPool pool;
+
+        private int n, numPasses, digitBits, mask;
+        private int blockSize, numBlocks;
+        private int shift;                  // Of the current pass
+
+        // Per block: counts of every pass, then of the current pass (turned
+        // into start positions before scattering)
+        private int[][][] histograms;
+        private int[][] blockCounts;
+
+        private ParallelRadixSort(int[] array, int flip, ForkJoinPool pool) {
+            ints = array;
+            intBuffer = new int[array.length];
+            this.flip = flip;
+            this.pool = pool;
+            n = array.length;
+            numPasses = INT_PASSES;
+            digitBits = INT_DIGIT_BITS;
+        }
+
+        private ParallelRadixSort(long[] array, long flip, ForkJoinPool pool) {
+            longs = array;
+            longBuffer = new long[array.length];
+            this.flip = flip;
+            this.pool = pool;
+            n = array.length;
+            numPasses = LONG_PASSES;
+            digitBits = LONG_DIGIT_BITS;
+        }
+
+        private void run() {
+            mask = (1 << digitBits) - 1;
+            int parallelism = pool.getParallelism();
+            blockSize = Math.max(MIN_BLOCK_SIZE,
+                    (n + 4 * parallelism - 1) / (4 * parallelism));
+            numBlocks = (n + blockSize - 1) / blockSize;
+            histograms = new int[numBlocks][numPasses][1 << digitBits];
+            blockCounts = new int[numBlocks][1 << digitBits];
+
+            // Count the digits of every pass in one read of the array
+            pool.invoke(new BlockTask(HISTOGRAM, 0, numBlocks));
+            int[][] totals = new int[numPasses][1 << digitBits];
+            for (int b = 0; b < numBlocks; ++b) {
+                for (int pass = 0; pass < numPasses; ++pass) {
+                    for (int digit = 0; digit <= mask; ++digit) {
+                        totals[pass][digit] += histograms[b][pass][digit];
+                    }
+                }
             }
 
-            // Calculate the position's power (e.g. 10^0, 10^1, 10^2)
-            int positionValue = (int)Math.pow(radix, position);
+            boolean inBuffer = false;
+            for (int pass = 0; pass < numPasses; ++pass) {
+                shift = pass * digitBits;
 
-            // Count the occurrences of each digit in that position
-            for (int value : array) {
-                int index = (value / positionValue) % radix;
-                ++counts[index];
+                // Every value has the same digit, nothing would move
+                if (totals[pass][digit(0)] == n) {
+                    continue;
+                }
+
+                pool.invoke(new BlockTask(COUNT, 0, numBlocks));
+
+                // Start of each block's values with each digit, in (digit,
+                // block) order so equal digits keep their order
+                int next = 0;
+                for (int digit = 0; digit <= mask; ++digit) {
+                    for (int b = 0; b < numBlocks; ++b) {
+                        int count = blockCounts[b][digit];
+                        blockCounts[b][digit] = next;
+                        next += count;
+                    }
+                }
+
+                pool.invoke(new BlockTask(SCATTER, 0, numBlocks));
+                swap();
+                inBuffer = !inBuffer;
             }
 
-            // Adjust each count to reflect the counts before it
-            for (int i = 1; i <= radix; ++i) {
-                counts[i] = counts[i] + counts[i - 1];
+            if (inBuffer) {
+                swap();
+                if (ints != null) {
+                    System.arraycopy(intBuffer, 0, ints, 0, n);
+                } else {
+                    System.arraycopy(longBuffer, 0, longs, 0, n);
+                }
             }
+        }
 
-            // Use the counts to position each element where it belongs
-            for (int i = array.length - 1; i >= 0; --i) {
-                int index = (array[i] / positionValue) % radix;
-                sorted[counts[index] - 1] = array[i];
-                --counts[index];
+        // Digit of the current pass of element i of the values being read
+        private int digit(int i) {
+            return ints != null
+                    ? (int) (((ints[i] ^ flip) & 0xffffffffL) >>> shift) & mask
+                    : (int) ((longs[i] ^ flip) >>> shift) & mask;
+        }
+
+        private void swap() {
+            int[] intTemp = ints;
+            ints = intBuffer;
+            intBuffer = intTemp;
+            long[] longTemp = longs;
+            longs = longBuffer;
+            longBuffer = longTemp;
+        }
+
+        private void processBlock(int phase, int b) {
+            int begin = b * blockSize;
+            int end = Math.min(n, begin + blockSize);
+            if (phase == HISTOGRAM) {
+                int[][] counts = histograms[b];
+                for (int i = begin; i < end; ++i) {
+                    long key = ints != null
+                            ? (ints[i] ^ flip) & 0xffffffffL
+                            : longs[i] ^ flip;
+                    for (int pass = 0; pass < numPasses; ++pass) {
+                        ++counts[pass][(int) (key >>> (pass * digitBits)) & mask];
+                    }
+                }
+            } else if (phase == COUNT) {
+                int[] counts = blockCounts[b];
+                Arrays.fill(counts, 0);
+                if (ints != null) {
+                    int intFlip = (int) flip;
+                    for (int i = begin; i < end; ++i) {
+                        ++counts[((ints[i] ^ intFlip) >>> shift) & mask];
+                    }
+                } else {
+                    for (int i = begin; i < end; ++i) {
+                        ++counts[(int) ((longs[i] ^ flip) >>> shift) & mask];
+                    }
+                }
+            } else {
+                int[] starts = blockCounts[b];
+                if (ints != null) {
+                    int intFlip = (int) flip;
+                    for (int i = begin; i < end; ++i) {
+                        int value = ints[i];
+                        intBuffer[starts[((value ^ intFlip) >>> shift) & mask]++] =
+                                value;
+                    }
+                } else {
+                    for (int i = begin; i < end; ++i) {
+                        long value = longs[i];
+                        longBuffer[starts[(int) ((value ^ flip) >>> shift)
+                                & mask]++] = value;
+                    }
+                }
             }
+        }
 
-            // Replace the original array with the sorted array
-            System.arraycopy(sorted, 0, array, 0, array.length);
+        private final class BlockTask extends RecursiveAction {
+            private int phase, begin, end;
 
-            // Move back up to the top of the for loop and sort again.
+            private BlockTask(int phase, int begin, int end) {
+                this.phase = phase;
+                this.begin = begin;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                if (end - begin == 1) {
+                    processBlock(phase, begin);
+                    return;
+                }
+                int middle = (begin + end) >>> 1;
+                invokeAll(new BlockTask(phase, begin, middle),
+                        new BlockTask(phase, middle, end));
+            }
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 10,000,000 random non-negative ints with the division based
+// radixSort (radix 256, 4 positions), with sort() and with Arrays.sort
+// (dual-pivot quicksort). Then ints below 1,000 (trivial passes skipped),
+// random longs and doubles, and parallelSort in pools of 1, 2, 4, ... threads.
+// - Measured on a single core: radixSort ~0.40 seconds, sort() ~0.20,
+// Arrays.sort ~1.2. Ints below 1,000 ~0.15 (2 of 4 passes skipped). Longs
+// ~0.48 (Arrays.sort ~1.2), doubles ~0.51 (Arrays.sort ~1.3).
+// - parallelSort with 1 thread: ints ~0.35 seconds, longs ~0.64. It reads
+// every block once more per pass to count it, which only pays off with
+// several cores; a single core cannot show the scaling.
+
+// import java.util.Arrays;
+// import java.util.Random;
+// import java.util.concurrent.ForkJoinPool;
+
+public class RadixSortBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        Random random = new Random(42);
+        int[] ints = new int[n];
+        int[] smallInts = new int[n];
+        long[] longs = new long[n];
+        double[] doubles = new double[n];
+        for (int i = 0; i < n; ++i) {
+            ints[i] = random.nextInt(Integer.MAX_VALUE);
+            smallInts[i] = random.nextInt(1000);
+            longs[i] = random.nextLong();
+            doubles[i] = random.nextGaussian();
+        }
+
+        int[] array = ints.clone();
+        long start = System.nanoTime();
+        RadixSort.radixSort(array, 4, 256);
+        long stop = System.nanoTime();
+        System.out.println("radixSort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = ints.clone();
+        start = System.nanoTime();
+        RadixSort.sort(array);
+        stop = System.nanoTime();
+        System.out.println("Ints: sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = ints.clone();
+        start = System.nanoTime();
+        Arrays.sort(array);
+        stop = System.nanoTime();
+        System.out.println("Ints: Arrays.sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = smallInts.clone();
+        start = System.nanoTime();
+        RadixSort.sort(array);
+        stop = System.nanoTime();
+        System.out.println("Ints below 1,000: sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        long[] longArray = longs.clone();
+        start = System.nanoTime();
+        RadixSort.sort(longArray);
+        stop = System.nanoTime();
+        System.out.println("Longs: sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        longArray = longs.clone();
+        start = System.nanoTime();
+        Arrays.sort(longArray);
+        stop = System.nanoTime();
+        System.out.println("Longs: Arrays.sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        double[] doubleArray = doubles.clone();
+        start = System.nanoTime();
+        RadixSort.sort(doubleArray);
+        stop = System.nanoTime();
+        System.out.println("Doubles: sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        doubleArray = doubles.clone();
+        start = System.nanoTime();
+        Arrays.sort(doubleArray);
+        stop = System.nanoTime();
+        System.out.println("Doubles: Arrays.sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+
+            array = ints.clone();
+            start = System.nanoTime();
+            RadixSort.parallelSort(array, pool);
+            stop = System.nanoTime();
+            System.out.println("Ints: parallelSort with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds.");
+
+            longArray = longs.clone();
+            start = System.nanoTime();
+            RadixSort.parallelSort(longArray, pool);
+            stop = System.nanoTime();
+            System.out.println("Longs: parallelSort with " + threads
+                    + " threads took " + (stop - start) / NANO_SECONDS_PER_SECOND
+                    + " seconds.");
+
+            pool.shutdown();
+        }
+    }
+}
+
+// Benchmark:
+// - Sorts 5,000,000 trades by time (a long key) and by price in cents (an
+// int key) with the key radix sorts, next to MergeSort and Arrays.sort
+// (TimSort) with a comparator on the same key.
+// - Measured on a single core: by time sortByLongKey ~0.57 seconds, merge
+// sort ~2.8, Arrays.sort ~2.2. By cents sortByIntKey ~0.47, Arrays.sort
+// ~2.5 (the comparator recomputes both keys on every comparison).
+
+// import java.util.Arrays;
+// import java.util.Comparator;
+// import java.util.Random;
+// import java.util.function.ToIntFunction;
+// import java.util.function.ToLongFunction;
+
+public class KeyRadixSortBenchmark {
+    public static final ToLongFunction<ExternalMergeSortBenchmark.Trade> TIME =
+            new ToLongFunction<ExternalMergeSortBenchmark.Trade>() {
+                public long applyAsLong(ExternalMergeSortBenchmark.Trade trade) {
+                    return trade.getTime();
+                }
+            };
 
+    public static final ToIntFunction<ExternalMergeSortBenchmark.Trade> CENTS =
+            new ToIntFunction<ExternalMergeSortBenchmark.Trade>() {
+                public int applyAsInt(ExternalMergeSortBenchmark.Trade trade) {
+                    return (int) Math.round(100 * trade.getPrice());
+                }
+            };
+
+    public static final Comparator<ExternalMergeSortBenchmark.Trade> BY_CENTS =
+            new Comparator<ExternalMergeSortBenchmark.Trade>() {
+                public int compare(
+                        ExternalMergeSortBenchmark.Trade a,
+                        ExternalMergeSortBenchmark.Trade b) {
+                    return Integer.compare(CENTS.applyAsInt(a),
+                            CENTS.applyAsInt(b));
+                }
+            };
+
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+        Random random = new Random(42);
+        ExternalMergeSortBenchmark.Trade[] trades =
+                new ExternalMergeSortBenchmark.Trade[n];
+        for (int i = 0; i < n; ++i) {
+            trades[i] = new ExternalMergeSortBenchmark.Trade(
+                    random.nextLong(), "AAPL", 1000 * random.nextDouble());
         }
+
+        ExternalMergeSortBenchmark.Trade[] array = trades.clone();
+        long start = System.nanoTime();
+        RadixSort.sortByLongKey(array, TIME);
+        long stop = System.nanoTime();
+        System.out.println("By time: sortByLongKey took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = trades.clone();
+        start = System.nanoTime();
+        MergeSort.mergeSort(array, ExternalMergeSortBenchmark.BY_TIME);
+        stop = System.nanoTime();
+        System.out.println("By time: merge sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = trades.clone();
+        start = System.nanoTime();
+        Arrays.sort(array, ExternalMergeSortBenchmark.BY_TIME);
+        stop = System.nanoTime();
+        System.out.println("By time: Arrays.sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = trades.clone();
+        start = System.nanoTime();
+        RadixSort.sortByIntKey(array, CENTS);
+        stop = System.nanoTime();
+        System.out.println("By cents: sortByIntKey took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
+
+        array = trades.clone();
+        start = System.nanoTime();
+        Arrays.sort(array, BY_CENTS);
+        stop = System.nanoTime();
+        System.out.println("By cents: Arrays.sort took "
+                + (stop - start) / NANO_SECONDS_PER_SECOND + " seconds.");
     }
 }
 
@@ -788,7 +3716,51 @@ public class LinearSearch {
 // - Repeatedly dividing by two is logarithmic base 2.
 // - i.e. 64 requires log base 2 of 64 = 6 steps to get to 1 element.
 
+// Branchless binary search:
+// - Whether the search goes left or right is a coin flip the processor cannot
+// predict, so about half of the log n branches are mispredicted, each
+// throwing away ~15 cycles of work.
+// - Instead keep only the start (base) of the range and its length, and halve
+// the length every step: base = array[base + half] < key ? base + half :
+// base. The JIT compiles this to a conditional move, there is nothing to
+// predict, and every search takes exactly the same number of steps.
+// - Stopping early on an exact match is dropped: a lower bound (the first
+// element >= key) answers "is it there", "where would it go" and "how many
+// are smaller" with one search. The upper bound is the first element > key.
+
+// Cache misses:
+// - Once the array no longer fits in the cache, every step of a search is a
+// cache miss (~100 ns from main memory), far more than the comparisons.
+// The first few steps touch the same few elements in every search, so
+// those stay cached; the last steps land anywhere.
+// - In C the next steps' elements can be prefetched. Java has no prefetch
+// instruction, but searching a batch of keys together has the same effect:
+// step j of all the searches is independent, so the processor has many
+// cache misses in flight at once instead of waiting for each in turn.
+// - The branchless search is no help here: it waits for every load, where
+// the branchy search guesses the next step and starts its load early. At
+// 16M longs it is slower than Arrays.binarySearch (3.27 against 2.37
+// seconds in the benchmark below), so for arrays past the cache only the
+// batched and Eytzinger searches are worth using. Both are for longs only.
+
+// Eytzinger layout:
+// - Store the sorted values in breadth-first order of the implicit binary
+// search tree, like a binary heap: the root at 1, the children of node k
+// at 2k and 2k + 1.
+// - The elements the first levels of every search touch are at the front of
+// the array, next to each other, so they share cache lines. Node k's 16
+// descendants four levels down are 16 neighbouring elements (128 bytes of
+// longs, two cache lines), so a search runs through the array in one
+// direction instead of jumping across it.
+// - The search is branchless too: k = 2k + (tree[k] < key). When k falls off
+// the bottom, the lower bound is the node where the search last went left,
+// found by dropping the trailing 1 bits and one more bit of k.
+// - The layout has to be built once (O(n)) and loses the sorted order, so it
+// suits lookup tables that are built once and searched often.
+
+// import java.util.Arrays;
 // import java.util.Comparator;
+// import static com.google.common.base.Preconditions.*;
 
 public class BinarySearch {
     public static <T> int binarySearch(
@@ -818,4 +3790,359 @@ public class BinarySearch {
         // Key not found
         return -1;
     }
+
+    // Number of keys searched together by the batch searches
+    private static final int BATCH_SIZE = 16;
+
+    /**
+     * Index of the first element of sortedArray that is not less than key,
+     * sortedArray.length if there is none. Faster than Arrays.binarySearch
+     * while the array fits in the cache, slower past it; large arrays should
+     * be searched with lowerBounds or an EytzingerIndex.
+     */
+    public static int lowerBound(long[] sortedArray, long key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        // Halve the range, keeping the half that holds the lower bound
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] < key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] < key ? 1 : 0);
+    }
+
+    /**
+     * Index of the first element of sortedArray that is greater than key,
+     * sortedArray.length if there is none.
+     */
+    public static int upperBound(long[] sortedArray, long key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] <= key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] <= key ? 1 : 0);
+    }
+
+    public static int lowerBound(int[] sortedArray, int key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] < key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] < key ? 1 : 0);
+    }
+
+    public static int upperBound(int[] sortedArray, int key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] <= key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] <= key ? 1 : 0);
+    }
+
+    // The double versions compare with < and <=, so the array and the key
+    // must not contain NaN.
+    public static int lowerBound(double[] sortedArray, double key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] < key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] < key ? 1 : 0);
+    }
+
+    public static int upperBound(double[] sortedArray, double key) {
+        int base = 0;
+        int length = sortedArray.length;
+        if (length == 0) {
+            return 0;
+        }
+
+        while (length > 1) {
+            int half = length >>> 1;
+            base = sortedArray[base + half] <= key ? base + half : base;
+            length -= half;
+        }
+
+        return base + (sortedArray[base] <= key ? 1 : 0);
+    }
+
+    // Index of key in sortedArray, -1 if it is not there.
+    public static int binarySearch(long[] sortedArray, long key) {
+        int index = lowerBound(sortedArray, key);
+        return index < sortedArray.length && sortedArray[index] == key
+                ? index : -1;
+    }
+
+    public static int binarySearch(int[] sortedArray, int key) {
+        int index = lowerBound(sortedArray, key);
+        return index < sortedArray.length && sortedArray[index] == key
+                ? index : -1;
+    }
+
+    public static int binarySearch(double[] sortedArray, double key) {
+        int index = lowerBound(sortedArray, key);
+        return index < sortedArray.length && sortedArray[index] == key
+                ? index : -1;
+    }
+
+    /**
+     * Stores lowerBound(sortedArray, keys[i]) in results[i] for every key,
+     * searching BATCH_SIZE keys in lockstep. This and EytzingerIndex are the
+     * searches meant for arrays larger than the cache.
+     */
+    public static void lowerBounds(long[] sortedArray, long[] keys, int[] results) {
+        checkArgument(results.length >= keys.length,
+                "results must be as long as keys");
+        int[] bases = new int[BATCH_SIZE];
+        for (int first = 0; first < keys.length; first += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, keys.length - first);
+            if (sortedArray.length == 0) {
+                Arrays.fill(results, first, first + count, 0);
+                continue;
+            }
+
+            // The range lengths do not depend on the key, so every search in
+            // the batch takes the same steps
+            Arrays.fill(bases, 0);
+            int length = sortedArray.length;
+            while (length > 1) {
+                int half = length >>> 1;
+                for (int j = 0; j < count; ++j) {
+                    int base = bases[j];
+                    bases[j] = sortedArray[base + half] < keys[first + j]
+                            ? base + half : base;
+                }
+                length -= half;
+            }
+            for (int j = 0; j < count; ++j) {
+                results[first + j] = bases[j]
+                        + (sortedArray[bases[j]] < keys[first + j] ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Sorted longs in Eytzinger (breadth-first) order for searching.
+     */
+    public static final class EytzingerIndex {
+        private long[] tree;         // tree[1..n], tree[0] unused
+        private int[] sortedIndices; // Index in the sorted array of each node
+
+        public EytzingerIndex(long[] sortedArray) {
+            // Node numbers go up to 2n + 1 while searching
+            int n = sortedArray.length;
+            checkArgument(n < (1 << 30), "too many values for an int node number");
+            tree = new long[n + 1];
+            sortedIndices = new int[n + 1];
+            sortedIndices[0] = n;
+
+            // An in-order walk of the implicit tree visits the nodes in
+            // sorted order, so it places the sorted values one by one
+            int next = 0;
+            int k = 1;
+            while (true) {
+                // Go as far left as possible
+                while (k <= n) {
+                    k = 2 * k;
+                }
+                // Back up to the first ancestor reached from the left
+                k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+                if (k == 0) {
+                    break;
+                }
+                tree[k] = sortedArray[next];
+                sortedIndices[k] = next;
+                ++next;
+                k = 2 * k + 1;
+            }
+        }
+
+        public int getSize() {
+            return tree.length - 1;
+        }
+
+        /**
+         * Node holding the first value that is not less than key, 0 if there
+         * is none.
+         */
+        public int lowerBoundNode(long key) {
+            int k = 1;
+            int n = tree.length - 1;
+            while (k <= n) {
+                k = 2 * k + (tree[k] < key ? 1 : 0);
+            }
+
+            // Drop the right turns taken since the last left turn, then the
+            // left turn itself
+            return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+        }
+
+        /**
+         * Index in the sorted array of the first value that is not less than
+         * key, the same as BinarySearch.lowerBound on the sorted array.
+         */
+        public int lowerBound(long key) {
+            return sortedIndices[lowerBoundNode(key)];
+        }
+
+        /**
+         * Node holding the first value that is greater than key, 0 if there
+         * is none.
+         */
+        public int upperBoundNode(long key) {
+            int k = 1;
+            int n = tree.length - 1;
+            while (k <= n) {
+                k = 2 * k + (tree[k] <= key ? 1 : 0);
+            }
+
+            return k >>> (Integer.numberOfTrailingZeros(~k) + 1);
+        }
+
+        /**
+         * Index in the sorted array of the first value that is greater than
+         * key, the same as BinarySearch.upperBound on the sorted array.
+         */
+        public int upperBound(long key) {
+            return sortedIndices[upperBoundNode(key)];
+        }
+
+        public boolean contains(long key) {
+            int k = lowerBoundNode(key);
+            return k != 0 && tree[k] == key;
+        }
+
+        public long getValue(int node) {
+            checkElementIndex(node - 1, tree.length - 1, "node");
+            return tree[node];
+        }
+
+        /**
+         * Index in the sorted array of the value at node, for looking up data
+         * stored next to the sorted values.
+         */
+        public int getSortedIndex(int node) {
+            checkElementIndex(node - 1, tree.length - 1, "node");
+            return sortedIndices[node];
+        }
+    }
+}
+
+// Benchmark:
+// - 4,000,000 lookups of random longs, half of them present, single core
+// (Arrays.binarySearch / lowerBound / lowerBounds / EytzingerIndex):
+// 1,024 longs 0.29 / 0.07 / 0.09 / 0.06 seconds, 65,536 longs 0.47 / 0.21 /
+// 0.08 / 0.15, 1,048,576 longs 1.13 / 0.92 / 0.25 / 0.58, 16,777,216 longs
+// 2.37 / 3.27 / 0.62 / 2.17.
+// - While the array is in the cache the branchless search is about four
+// times faster than the branchy one; all the time goes to mispredictions.
+// - Past the cache the branchless search falls behind: the branchy one
+// guesses the next step and starts its load early, a free prefetch that is
+// right half the time, while the conditional move waits for every load.
+// - Searching batches of 16 keys at once hides the cache misses and stays
+// 4 times faster than Arrays.binarySearch at every size. The Eytzinger
+// layout gains 2x in the middle sizes, where its top levels stay cached.
+
+// import java.util.Arrays;
+// import java.util.Random;
+
+public class BinarySearchBenchmark {
+    public static void main(String args[]) {
+        final double NANO_SECONDS_PER_SECOND = 1000000000;
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+        int maxLog = args.length > 1 ? Integer.parseInt(args[1]) : 24;
+
+        Random random = new Random(42);
+        long[] keys = new long[lookups];
+        int[] results = new int[lookups];
+
+        // 8 KB (fits in L1) up to 128 MB (far past the last level cache)
+        for (int log = 10; log <= maxLog; log += 2) {
+            int n = 1 << log;
+            long[] sortedArray = new long[n];
+            for (int i = 0; i < n; ++i) {
+                sortedArray[i] = random.nextLong();
+            }
+            Arrays.sort(sortedArray);
+            BinarySearch.EytzingerIndex index = new BinarySearch.EytzingerIndex(sortedArray);
+
+            // Half of the keys are in the array
+            for (int i = 0; i < lookups; ++i) {
+                keys[i] = (i & 1) == 0 ? sortedArray[random.nextInt(n)]
+                        : random.nextLong();
+            }
+
+            // Sum the results so the searches are not optimized away
+            long sum = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                sum += Arrays.binarySearch(sortedArray, keys[i]);
+            }
+            long stop = System.nanoTime();
+            double branchy = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                sum += BinarySearch.lowerBound(sortedArray, keys[i]);
+            }
+            stop = System.nanoTime();
+            double branchless = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            start = System.nanoTime();
+            BinarySearch.lowerBounds(sortedArray, keys, results);
+            stop = System.nanoTime();
+            sum += results[lookups - 1];
+            double batch = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; ++i) {
+                sum += index.lowerBound(keys[i]);
+            }
+            stop = System.nanoTime();
+            double eytzinger = (stop - start) / NANO_SECONDS_PER_SECOND;
+
+            System.out.println(n + " longs: Arrays.binarySearch took " + branchy
+                    + " seconds, lowerBound took " + branchless
+                    + " seconds, lowerBounds took " + batch
+                    + " seconds, EytzingerIndex took " + eytzinger
+                    + " seconds (" + lookups + " lookups, " + sum + ").");
+        }
+    }
 }
@@ -656,3 +656,227 @@ public class MissionToMars {
 
 
 
+
+//------------------------------------------------------------------------------
+// Disjoint Sets (Union-Find)
+//------------------------------------------------------------------------------
+
+/*
+- Keeps elements 0..n-1 partitioned into disjoint sets. Supports two
+  operations:
+    - Find = which set is x in? Answered with a representative element (the
+      root), so x and y are in the same set if find(x) == find(y).
+    - Union = merge the sets containing x and y.
+- Answers connectivity questions as edges arrive: does this pipeline network
+  connect A and B, how many components are there, would this edge close a
+  cycle (Kruskal's algorithm).
+
+- Each set is a tree stored as an array of parent indices, the root is its
+  own parent. Plain int arrays, no node objects.
+- Union by rank: hang the shorter tree under the taller one (rank = upper
+  bound on height). Trees stay O(lg n) high.
+- Path halving: while walking up during find, point every other vertex at
+  its grandparent. One pass, no recursion or second loop, and later finds get
+  shorter.
+- Together: any sequence of m operations costs O(m α(n)), where α is the
+  inverse Ackermann function (at most 4 for any realistic n), i.e. near
+  constant per operation.
+
+- Concurrent variant (for edges arriving from several threads):
+    - Parents live in an AtomicIntegerArray.
+    - Union links one root under the other with compare-and-set, if another
+      thread changed that root first the CAS fails and the union retries.
+    - Path halving also uses compare-and-set. A failed CAS is harmless, some
+      other thread already moved the link up the tree.
+    - Ranks cannot be updated together with the parent in one CAS, so roots
+      are linked in a fixed pseudo-random order of their indices instead,
+      which keeps trees shallow in expectation and never creates a cycle.
+*/
+
+// Implementation:
+
+public class UnionFind {
+    private int[] parents;
+    private byte[] ranks;   // Rank <= lg n, fits in a byte
+    private int numSets;
+
+    public UnionFind(int size) throws
+            IllegalArgumentException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+
+        parents = new int[size];
+        ranks = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            parents[i] = i;
+        }
+        numSets = size;
+    }
+
+    public int getSize() {
+        return parents.length;
+    }
+
+    public int getNumSets() {
+        return numSets;
+    }
+
+    public int find(int x) throws
+            IndexOutOfBoundsException {
+        if (x < 0 || x >= parents.length) {
+            throw new IndexOutOfBoundsException("element out of range: " + x);
+        }
+
+        // Path halving: point every other element at its grandparent
+        while (parents[x] != x) {
+            parents[x] = parents[parents[x]];
+            x = parents[x];
+        }
+
+        return x;
+    }
+
+    public boolean isConnected(int x, int y) throws
+            IndexOutOfBoundsException {
+        return find(x) == find(y);
+    }
+
+    /**
+     * Merges the sets containing x and y. Returns false if they were already
+     * in the same set.
+     */
+    public boolean union(int x, int y) throws
+            IndexOutOfBoundsException {
+        int rootX = find(x);
+        int rootY = find(y);
+        if (rootX == rootY) {
+            return false;
+        }
+
+        // Hang the lower ranked tree under the other
+        if (ranks[rootX] < ranks[rootY]) {
+            parents[rootX] = rootY;
+        } else if (ranks[rootX] > ranks[rootY]) {
+            parents[rootY] = rootX;
+        } else {
+            parents[rootY] = rootX;
+            ++ranks[rootX];
+        }
+        --numSets;
+
+        return true;
+    }
+}
+
+// import java.util.concurrent.atomic.AtomicInteger;
+// import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ConcurrentUnionFind {
+    private AtomicIntegerArray parents;
+    private AtomicInteger numSets;
+
+    public ConcurrentUnionFind(int size) throws
+            IllegalArgumentException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+
+        parents = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; ++i) {
+            parents.set(i, i);
+        }
+        numSets = new AtomicInteger(size);
+    }
+
+    public int getSize() {
+        return parents.length();
+    }
+
+    public int getNumSets() {
+        return numSets.get();
+    }
+
+    public int find(int x) throws
+            IndexOutOfBoundsException {
+        if (x < 0 || x >= parents.length()) {
+            throw new IndexOutOfBoundsException("element out of range: " + x);
+        }
+
+        while (true) {
+            int parent = parents.get(x);
+            if (parent == x) {
+                return x;
+            }
+            int grandparent = parents.get(parent);
+            if (parent != grandparent) {
+                // May fail if another thread got there first, that's fine
+                parents.compareAndSet(x, parent, grandparent);
+            }
+            x = grandparent;
+        }
+    }
+
+    /**
+     * True if x and y were in the same set at some moment during the call.
+     */
+    public boolean isConnected(int x, int y) throws
+            IndexOutOfBoundsException {
+        while (true) {
+            int rootX = find(x);
+            int rootY = find(y);
+            if (rootX == rootY) {
+                return true;
+            }
+
+            // rootX is still a root, so the sets really were separate
+            if (parents.get(rootX) == rootX) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Merges the sets containing x and y. Returns false if they were already
+     * in the same set. Exactly one of several threads merging the same two
+     * sets gets true.
+     */
+    public boolean union(int x, int y) throws
+            IndexOutOfBoundsException {
+        while (true) {
+            int rootX = find(x);
+            int rootY = find(y);
+            if (rootX == rootY) {
+                return false;
+            }
+
+            // Link the lower ordered root under the other
+            if (isLower(rootY, rootX)) {
+                int swap = rootX;
+                rootX = rootY;
+                rootY = swap;
+            }
+            if (parents.compareAndSet(rootX, rootX, rootY)) {
+                numSets.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    // Fixed pseudo-random total order on the elements
+    private static boolean isLower(int x, int y) {
+        int hashX = mix(x);
+        int hashY = mix(y);
+        return hashX != hashY ? hashX < hashY : x < y;
+    }
+
+    // Spreads the bits of an index (the finalizer step of MurmurHash3)
+    private static int mix(int x) {
+        x ^= x >>> 16;
+        x *= 0x85ebca6b;
+        x ^= x >>> 13;
+        x *= 0xc2b2ae35;
+        x ^= x >>> 16;
+        return x;
+    }
+}